@@ -5,7 +5,9 @@ import java.util.List;
 
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.jdbc.CannotGetJdbcConnectionException;
 import org.springframework.security.crypto.password.PasswordEncoder;
@@ -17,12 +19,16 @@ import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 
+import src.ddpsc.config.DataSourceRegistry;
+import src.ddpsc.database.experiment.ExperimentCatalogue;
 import src.ddpsc.database.user.Group;
 import src.ddpsc.database.user.User;
 import src.ddpsc.database.user.UserDao;
 import src.ddpsc.exceptions.ObjectNotFoundException;
 import src.ddpsc.exceptions.UserException;
 
+import com.google.gson.Gson;
+
 /**
  * This class contains all the actions which provide functionality to the administrator page. Mainly just user modification,
  * add, remove, etc.
@@ -44,6 +50,12 @@ public class AdminController
 	@Autowired
 	UserDao ud;
 	
+	@Autowired
+	DataSourceRegistry dataSources;
+	
+	@Autowired
+	ExperimentCatalogue experimentCatalogue;
+	
 	
 	/**
      * Exact same as user action. remove and point this action at the other
@@ -346,4 +358,30 @@ public class AdminController
 			return new ResponseEntity<String>("User data corrupted.", HttpStatus.BAD_REQUEST);
 		}
 	}
+	
+	/**
+	 * Reports the connections in use and idle in each database connection pool.
+	 * 
+	 * @return					JSON of the pools, by database
+	 */
+	@RequestMapping(value = "/datasources", method = RequestMethod.GET)
+	public @ResponseBody ResponseEntity<String> dataSourcesAction()
+	{
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		headers.setCacheControl("no-cache");
+		return new ResponseEntity<String>(new Gson().toJson(dataSources.getMetrics()), headers, HttpStatus.OK);
+	}
+	
+	/**
+	 * Recounts the snapshots and tiles of every experiment in the background, for experiments imaged since the last
+	 * scheduled refresh.
+	 */
+	@RequestMapping(value = "/experiments/refresh", method = RequestMethod.POST)
+	public @ResponseBody ResponseEntity<String> refreshExperimentsAction()
+	{
+		experimentCatalogue.requestRefresh();
+		log.info("Experiment catalogue refresh requested, last refreshed " + experimentCatalogue.getLastRefreshed() + ".");
+		return new ResponseEntity<String>("Experiments are being recounted.", HttpStatus.OK);
+	}
 }
@@ -0,0 +1,99 @@
+package com.ddpsc.phenofront;
+
+/**
+ * A single byte range from an HTTP Range header, used to resume downloads of staged archives.
+ *
+ * Only single ranges are served. Multiple ranges, other units and malformed headers are ignored, which HTTP allows,
+ * and the whole file is sent instead.
+ *
+ * @author shill
+ */
+public class ByteRange
+{
+	private static final String BYTES_UNIT = "bytes=";
+
+	public final long start;
+	public final long end;
+	public final long length;
+
+	private ByteRange(long start, long end, long length)
+	{
+		this.start = start;
+		this.end = end;
+		this.length = length;
+	}
+
+	/**
+	 * Parses a Range header against a file of the supplied length.
+	 *
+	 * @param header		The Range header, may be null
+	 * @param length		Length of the file the range is in
+	 * @return				The requested range, or null if the whole file should be sent
+	 */
+	public static ByteRange parse(String header, long length)
+	{
+		if (header == null || ! header.startsWith(BYTES_UNIT))
+			return null;
+
+		String range = header.substring(BYTES_UNIT.length()).trim();
+		int dash = range.indexOf('-');
+		if (dash < 0 || range.indexOf(',') >= 0)
+			return null;
+
+		try {
+			String first = range.substring(0, dash).trim();
+			String last = range.substring(dash + 1).trim();
+
+			// Suffix range, the last so many bytes
+			if (first.isEmpty()) {
+				long suffix = Long.parseLong(last);
+				if (suffix <= 0 || length == 0)
+					return unsatisfiable(length);
+				return new ByteRange(Math.max(length - suffix, 0), length - 1, length);
+			}
+
+			long start = Long.parseLong(first);
+			long end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+			if (start < 0 || (! last.isEmpty() && Long.parseLong(last) < start))
+				return null;
+			if (start >= length)
+				return unsatisfiable(length);
+
+			return new ByteRange(start, end, length);
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static ByteRange unsatisfiable(long length)
+	{
+		return new ByteRange(-1, -1, length);
+	}
+
+	/**
+	 * @return		False if the range lies outside the file, which should be answered with 416
+	 */
+	public boolean isSatisfiable()
+	{
+		return start >= 0;
+	}
+
+	/**
+	 * @return		Number of bytes in the range
+	 */
+	public long size()
+	{
+		return end - start + 1;
+	}
+
+	/**
+	 * @return		The Content-Range header describing this range
+	 */
+	public String contentRange()
+	{
+		if ( ! isSatisfiable())
+			return "bytes */" + length;
+		return "bytes " + start + "-" + end + "/" + length;
+	}
+}
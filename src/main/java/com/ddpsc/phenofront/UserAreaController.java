@@ -3,14 +3,19 @@ package com.ddpsc.phenofront;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -23,6 +28,7 @@ import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessException;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -37,6 +43,7 @@ import org.springframework.web.bind.annotation.ModelAttribute;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.SessionAttributes;
@@ -46,24 +53,37 @@ import org.springframework.web.servlet.ModelAndView;
 import src.ddpsc.authentication.CustomAuthenticationManager;
 import src.ddpsc.config.Config;
 import src.ddpsc.database.experiment.Experiment;
+import src.ddpsc.database.experiment.ExperimentCatalogue;
 import src.ddpsc.database.experiment.ExperimentDao;
 import src.ddpsc.database.queries.QueryFilter;
 import src.ddpsc.database.queries.Query;
 import src.ddpsc.database.queries.QueryDao;
 import src.ddpsc.database.queries.QueryMetadata;
 import src.ddpsc.database.snapshot.Snapshot;
+import src.ddpsc.database.snapshot.SnapshotCursor;
 import src.ddpsc.database.snapshot.SnapshotDao;
 import src.ddpsc.database.tagging.MetadataFileReader;
+import src.ddpsc.database.tagging.MetadataFileReport;
 import src.ddpsc.database.tagging.TaggingDao;
 import src.ddpsc.database.user.User;
 import src.ddpsc.database.user.UserDao;
 import src.ddpsc.exceptions.ExperimentNotAllowedException;
-import src.ddpsc.exceptions.MalformedConfigException;
 import src.ddpsc.exceptions.NotImplementedException;
 import src.ddpsc.exceptions.ObjectNotFoundException;
 import src.ddpsc.exceptions.UserException;
+import src.ddpsc.results.ConvertedImage;
+import src.ddpsc.results.ConvertedImageCache;
+import src.ddpsc.results.DemosaicAlgorithm;
+import src.ddpsc.results.DownloadJob;
+import src.ddpsc.results.DownloadJobService;
+import src.ddpsc.results.DownloadProgress;
+import src.ddpsc.results.DownloadProgressRegistry;
 import src.ddpsc.results.DownloadZipResult;
+import src.ddpsc.results.ImageConversionService;
+import src.ddpsc.results.ImageEncoding;
+import src.ddpsc.results.PngFilter;
 import src.ddpsc.results.ResultsBuilder;
+import src.ddpsc.results.ThumbnailService;
 
 import com.google.gson.Gson;
 
@@ -86,12 +106,18 @@ public class UserAreaController
 	private static final String METADATA_INSTRUCTIONS_FILEPATH = "metadata modification instructions.txt";
 	private static final String RESUME_DOWNLOAD_APPLICATION_FILEPATH = "ResumeDownloadApplication.jar";
 	
+	// Longest a progress request waits for the download to move on
+	private static final long PROGRESS_POLL_MS = 25000;
+	
 	@Autowired
 	UserDao userData;
 	
 	@Autowired
 	ExperimentDao experimentData;
 	
+	@Autowired
+	ExperimentCatalogue experimentCatalogue;
+	
 	@Autowired
 	QueryDao queryData;
 	
@@ -101,6 +127,18 @@ public class UserAreaController
 	@Autowired
 	TaggingDao taggingData;
 	
+	@Autowired
+	ImageConversionService imageConversion;
+	
+	@Autowired
+	ThumbnailService thumbnails;
+	
+	@Autowired
+	DownloadJobService downloadJobs;
+	
+	@Autowired
+	DownloadProgressRegistry downloadProgress;
+	
 	@Autowired
 	ServletContext servletContext;
 	
@@ -109,11 +147,9 @@ public class UserAreaController
 	 * 
 	 * @param model			Internal system model to interact with the view
 	 * @return 				An experiment selection page, or error page
-	 * @throws IOException 
-	 * @throws MalformedConfigException 
 	 */
 	@RequestMapping(value = "/selectexperiment", method = RequestMethod.GET)
-	public String selectAction(Model model) throws MalformedConfigException, IOException
+	public String selectAction(Model model)
 	{
 		String username = ControllerHelper.currentUsername();
 		log.info("Selecting experiments for user " + username);
@@ -133,9 +169,8 @@ public class UserAreaController
 		}
 		
 		try {
-			Set<Experiment> allExperiments = experimentData.findAll();
-			experimentData.generateExperimentMetadata(allExperiments);
-			taggingData.setExperimentMetadata(allExperiments);
+			// Counted in the background, so this never waits on the experiment databases
+			Set<Experiment> allExperiments = new HashSet<Experiment>(experimentCatalogue.getExperiments());
 			
 			user.setAllowedExperiments(allExperiments);
 			Set<Experiment> allowedExperiments = user.getAllowedExperiments();
@@ -158,9 +193,8 @@ public class UserAreaController
 	 * 
 	 * Expects the user to be authenticated and a part of the SessionModel.
 	 * 
-	 * Reads the experiment data source from a configuration file.
-	 * 
-	 * @see Config
+	 * Only the user's active experiment changes, each request then looks up its snapshots
+	 * with {@link SnapshotDao#forExperiment(String)}.
 	 * 
 	 * @param	user				The user logged loading the experiment
 	 * @param	experiment			The experiment to load
@@ -182,8 +216,6 @@ public class UserAreaController
 			Experiment experimentObject = user.getExperimentByExperimentName(experiment);
 			user.setActiveExperiment(experimentObject);
 			
-			snapshotData.setSnapshotExperiment(experiment);
-			
 			log.info("The experiment " + experiment + " selected by user " + user.getUsername() + " loaded successfully.");
 			return new ResponseEntity<String>("Experiment Loaded.", HttpStatus.OK);
 		}
@@ -191,10 +223,6 @@ public class UserAreaController
 			log.info("The experiment " + experiment + " selected by user " + user.getUsername() + " does not exist or is not allowed.");
 			return new ResponseEntity<String>("Experiment does not exist or is not allowed.", HttpStatus.BAD_REQUEST);
 		}
-		catch (MalformedConfigException e) {
-			log.fatal("Database connection configuration file is not written correctly (probably ltdatabase.config).", e);
-			return new ResponseEntity<String>("Could not access experiment server.", HttpStatus.INTERNAL_SERVER_ERROR);
-		}
 	}
 
 	/**
@@ -301,7 +329,7 @@ public class UserAreaController
 			User user = userData.findByUsername(username);
 			
 			Experiment activeExperiment = experimentData.getByName(experiment);
-			snapshotData.setSnapshotExperiment(experiment);
+			SnapshotDao experimentSnapshots = snapshotData.forExperiment(experiment);
 			
 			// If the experiment isn't valid
 			if (activeExperiment == null) {
@@ -324,7 +352,7 @@ public class UserAreaController
 						includeNearInfraredImages );
 				
 				Timestamp timeOfQuery = new Timestamp(DateTime.now().getMillis());
-				List<Snapshot> snapshots = snapshotData.executeCustomQuery(query);
+				List<Snapshot> snapshots = experimentSnapshots.executeCustomQuery(query);
 				
 				
 				// Gather information on the query
@@ -387,6 +415,8 @@ public class UserAreaController
 	 * @param includeFluorescentImages	Whether to include fluorescent images in the returned snapshots
 	 * @param includeNearInfraredImages	Whether to include near IR images in the returned snapshots
 	 * 
+	 * @param raw						Whether to copy each tile's raw camera frame as it is, instead of converting it
+	 * 
 	 * @return							A TCP download of the queried files
 	 * 
 	 * @throws IOException						Thrown if the user disconnects from the server
@@ -414,7 +444,12 @@ public class UserAreaController
 			
 			@RequestParam(value = "logQuery",			required = false,	defaultValue = "false")	boolean logQuery,
 			
-			@RequestParam(value = "convertJPEG",		required = false,	defaultValue = "false")	boolean convertJPEG )
+			@RequestParam(value = "convertJPEG",		required = false,	defaultValue = "false")	boolean convertJPEG,
+			@RequestParam(value = "raw",				required = false,	defaultValue = "false")	boolean raw,
+			@RequestParam(value = "jpegQuality",		required = false,	defaultValue = "0.75")	float jpegQuality,
+			@RequestParam(value = "pngLevel",			required = false,	defaultValue = "-1")	int pngLevel,
+			@RequestParam(value = "pngFilter",			required = false,	defaultValue = "auto")	String pngFilter,
+			@RequestParam(value = "demosaic",			required = false,	defaultValue = "bilinear")	String demosaic )
 					throws IOException
 	{
 		log.info("Requesting a mass download for download key ='" + downloadKey + "': "
@@ -426,7 +461,39 @@ public class UserAreaController
 				+ "\nInclude Watering?: " + includeWatering
 				+ "\nInclude Visible?: " + includeVisibleLightImages
 				+ "\nInclude Fluorescent?: " + includeFluorescentImages
-				+ "\nInclude Infrared?: " + includeNearInfraredImages );
+				+ "\nInclude Infrared?: " + includeNearInfraredImages
+				+ "\nConvert JPEG?: " + convertJPEG
+				+ "\nRaw?: " + raw
+				+ "\nJPEG Quality: " + jpegQuality
+				+ "\nPNG Level: " + pngLevel
+				+ "\nPNG Filter: " + pngFilter
+				+ "\nDemosaic: " + demosaic );
+		
+		DemosaicAlgorithm demosaicAlgorithm;
+		try {
+			demosaicAlgorithm = DemosaicAlgorithm.fromString(demosaic);
+		}
+		catch (IllegalArgumentException e) {
+			log.info("Unknown demosaic algorithm '" + demosaic + "'. Terminating mass download.");
+			response.sendError(400, "Unknown demosaic algorithm");
+			response.flushBuffer();
+			return;
+		}
+		
+		ImageEncoding encoding;
+		try {
+			// Raw downloads copy the blobs' frames, and ignore the encoding settings
+			if (raw)
+				encoding = ImageEncoding.raw();
+			else
+				encoding = new ImageEncoding(convertJPEG, jpegQuality, pngLevel, PngFilter.fromString(pngFilter));
+		}
+		catch (IllegalArgumentException e) {
+			log.info(e.getMessage() + " Terminating mass download.");
+			response.sendError(400, e.getMessage());
+			response.flushBuffer();
+			return;
+		}
 		
 		if (downloadKey == null) {
 			log.info("The download key was null. Terminating mass download.");
@@ -455,7 +522,7 @@ public class UserAreaController
 			// Setup the snapshot data to pull from the appropriate experiment
 		    String username = user.getUsername();
 			Experiment activeExperiment = experimentData.getByName(experiment);
-			snapshotData.setSnapshotExperiment(experiment);
+			SnapshotDao experimentSnapshots = snapshotData.forExperiment(experiment);
 			
 			// If the experiment isn't valid
 			if (activeExperiment == null) {
@@ -486,16 +553,14 @@ public class UserAreaController
 					includeFluorescentImages,
 					includeNearInfraredImages);
 		    
-			List<Snapshot> snapshots = snapshotData.executeCustomQuery(query);
 			
-			
-			// Gather information on the query
+			// Gather information on the query, snapshots are streamed so they are only counted once written
 			QueryMetadata metadata = new QueryMetadata(
 					user.getUserId(),
 					user.getUsername(),
 					timeOfQuery,
-					snapshots.size(),
-					Snapshot.getTiles(snapshots).size(),
+					0,
+					0,
 					"");
 			query.metadata = metadata;
 			
@@ -505,16 +570,20 @@ public class UserAreaController
 				query.id = queryId;
 			}
 			
+			SnapshotCursor snapshots = experimentSnapshots.openCustomQuery(query, SnapshotCursor.DEFAULT_BATCH_SIZE);
 			Timestamp timeOfDownloadStart = new Timestamp(DateTime.now().getMillis());
 			DownloadZipResult downloadedZip = new DownloadZipResult(-1, new ArrayList<Integer>(), false);
 			
 			try {
-			    log.info("Got snapshots and tiles. Building results.");
+			    log.info("Opened snapshot cursor. Building results.");
 				ResultsBuilder results = new ResultsBuilder(
 						response.getOutputStream(),
 						snapshots,
 						activeExperiment,
-						convertJPEG);
+						encoding,
+						demosaicAlgorithm,
+						imageConversion);
+				results.setProgressListener(downloadProgress.register(downloadKey, username));
 				
 			    log.info("Writing zip archive.");
 				downloadedZip = results.writeZipArchive();
@@ -526,6 +595,10 @@ public class UserAreaController
 				log.info("The mass download for user " + username + " was interrupted because the connection was lost.");
 			}
 			
+			finally {
+				snapshots.close();
+			}
+			
 			Timestamp timeOfDownloadEnd = new Timestamp(DateTime.now().getMillis());
 			
 			// Permanently log the query
@@ -535,6 +608,7 @@ public class UserAreaController
 				queryData.setDownloadEnd(queryId, timeOfDownloadEnd);
 				queryData.setInterrupted(queryId, ! downloadedZip.succeeded);
 				queryData.setMissedSnapshots(queryId, downloadedZip.missedSnapshots);
+				queryData.setQueryCounts(queryId, snapshots.getSnapshotsRead(), snapshots.getTilesRead());
 			}
 			
 			log.info("The mass download for user " + username + " with active experiment " + experiment + " is successful.");
@@ -613,7 +687,7 @@ public class UserAreaController
 			// Setup the snapshot data to pull from the appropriate experiment
 		    String username = user.getUsername();
 			Experiment activeExperiment = experimentData.getByName(experiment);
-			snapshotData.setSnapshotExperiment(experiment);
+			SnapshotDao experimentSnapshots = snapshotData.forExperiment(experiment);
 			
 			// If the experiment isn't valid
 			if (activeExperiment == null) {
@@ -634,14 +708,15 @@ public class UserAreaController
 			
 		    log.info("Querying database for snapshots and tiles.");
 			
-			List<Snapshot> snapshots = snapshotData.findById(snapshotIds);
+			List<Snapshot> snapshots = experimentSnapshots.findById(snapshotIds);
 			
 		    log.info("Got snapshots and tiles. Building results.");
 			ResultsBuilder results = new ResultsBuilder(
 					response.getOutputStream(),
 					snapshots,
 					activeExperiment,
-					convertJPEG);
+					convertJPEG,
+					imageConversion);
 			
 		    log.info("Writing zip archive.");
 			results.writeZipArchive();
@@ -690,14 +765,14 @@ public class UserAreaController
 		response.flushBuffer();
 		
 		try {
-			snapshotData.setSnapshotExperiment(experiment);
-			Snapshot snapshot = snapshotData.findById(snapshotId);
+			Snapshot snapshot = snapshotData.forExperiment(experiment).findById(snapshotId);
 			
 			ResultsBuilder results = new ResultsBuilder(
 					response.getOutputStream(),
 					Arrays.asList(new Snapshot[]{snapshot}),
 					user.getActiveExperiment(),
-					false);
+					false,
+					imageConversion);
 			
 			results.writeZipArchive();
 			
@@ -717,6 +792,385 @@ public class UserAreaController
 		}
 	}
 	
+	/**
+	 * Serves a jpeg preview of a single tile. Previews come in 128 and 512 pixel and full sizes, and are rendered
+	 * on first request and cached afterwards (see {@link ThumbnailService}). A cached preview is served without
+	 * touching the experiment's database.
+	 * 
+	 * The previews of a tile never change, so they carry an ETag and may be cached by the browser.
+	 * 
+	 * Answers 409 if the user has not selected an experiment to look the tile up in.
+	 * 
+	 * @param response			The HTTP response to this action
+	 * @param user				The user viewing the tile
+	 * @param tileId			The ID of the tile to preview
+	 * @param size				Longest side in pixels, rounded up to the next preview size, or "full"
+	 * @param ifNoneMatch		The ETag of the browser's copy, if it has one
+	 * 
+	 * @throws IOException		Thrown if the client times out
+	 */
+	@RequestMapping(value = "/userarea/tile/{id}/thumbnail", method = RequestMethod.GET)
+	public void tileThumbnail(
+																			HttpServletResponse	response,
+			@ModelAttribute("user")											User				user,
+			@PathVariable("id")												int					tileId,
+			@RequestParam(value = "size", defaultValue = "128")				String				size,
+			@RequestHeader(value = "If-None-Match", required = false)		String				ifNoneMatch)
+					throws IOException
+	{
+		Experiment experiment = user.getActiveExperiment();
+		
+		// Tiles are only found within the active experiment
+		if (experiment == null) {
+			log.info("The active experiment for the user " + user.getUsername() + " was found to not be set. Terminating tile preview.");
+			response.sendError(409, "No experiment selected.");
+			response.flushBuffer();
+			return;
+		}
+		
+		int level;
+		try {
+			level = ThumbnailService.level(size);
+		}
+		catch (IllegalArgumentException e) {
+			response.sendError(400, e.getMessage());
+			response.flushBuffer();
+			return;
+		}
+		
+		try {
+			ConvertedImageCache.CachedImage cached = thumbnails.openCached(experiment, tileId, level);
+			if (cached != null) {
+				try {
+					if (writeThumbnailHeaders(response, tileId, level, cached.getCrc(), cached.getLength(), ifNoneMatch))
+						cached.transferTo(Channels.newChannel(response.getOutputStream()));
+				}
+				finally {
+					cached.close();
+				}
+				return;
+			}
+			
+			log.info("Rendering a thumbnail of the tile with id='" + tileId + "' for user " + user.getUsername());
+			Snapshot snapshot = snapshotData.forExperiment(experiment.name).findByTileId(tileId);
+			ConvertedImage thumbnail = thumbnails.render(experiment, snapshot, snapshot.getTiles().get(0), level);
+			
+			if (writeThumbnailHeaders(response, tileId, level, thumbnail.getCrc(), thumbnail.getLength(), ifNoneMatch))
+				thumbnail.writeTo(response.getOutputStream());
+		}
+		
+		catch (ObjectNotFoundException e) {
+			log.info(e.getMessage());
+			response.sendError(404, "Tile not found.");
+			response.flushBuffer();
+		}
+		
+		catch (Exception e) {
+			ControllerHelper.handleCustomQueryPOSTExceptions(
+					e,
+					response,
+					"preview the tile with id='" + tileId + "'",
+					experiment.name,
+					"<NOT SPECIFIED BY USER>",
+					"<NOT SPECIFIED BY USER>",
+					log);
+		}
+	}
+	
+	/**
+	 * Sets the caching headers of a thumbnail, answering 304 if the browser already has it.
+	 * 
+	 * @return		True if the thumbnail itself should be sent
+	 */
+	private static boolean writeThumbnailHeaders(HttpServletResponse response, int tileId, int level, long crc, long length, String ifNoneMatch)
+	{
+		String etag = "\"" + tileId + "-" + level + "-" + Long.toHexString(crc) + "\"";
+		response.setHeader("ETag", etag);
+		response.setHeader("Cache-Control", "private, max-age=604800");
+		
+		if (etag.equals(ifNoneMatch)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return false;
+		}
+		
+		response.setContentType("image/jpeg");
+		response.setHeader("Content-Length", Long.toString(length));
+		return true;
+	}
+	
+	/**
+	 * Starts building the archive of a query on the server, for the user to fetch once it is finished. Takes the same
+	 * query and image settings as a mass download.
+	 * 
+	 * Unlike a mass download, a lost connection loses nothing: the archive is kept for a day and can be fetched again
+	 * from where the client left off (see {@link #downloadJobArchive}).
+	 * 
+	 * Returns as soon as the job is queued; the query itself is run by the job.
+	 * 
+	 * @return							The job's status as JSON, see {@link #downloadJobStatus}
+	 * 
+	 * @throws IOException				Thrown if the server cannot be accessed
+	 */
+	@RequestMapping(value = "/userarea/downloads", method = RequestMethod.POST)
+	public @ResponseBody ResponseEntity<String> submitDownloadJob(
+			@RequestParam(value = "experiment",			required = true)	String experiment,
+			
+			@RequestParam(value = "barcode",			required = false,	defaultValue = "") String plantBarcode,
+			@RequestParam(value = "measurementLabel",	required = false,	defaultValue = "") String measurementLabel,
+			@RequestParam(value = "startTime",			required = false,	defaultValue = "") String startTime,
+			@RequestParam(value = "endTime",			required = false,	defaultValue = "") String endTime,
+			
+			@RequestParam(value = "includeWatering",	required = false,	defaultValue = "false")	boolean includeWatering,
+			
+			@RequestParam(value = "includeVisible",		required = false,	defaultValue = "false")	boolean includeVisibleLightImages,
+			@RequestParam(value = "includeFluorescent",	required = false,	defaultValue = "false")	boolean includeFluorescentImages,
+			@RequestParam(value = "includeInfrared",	required = false,	defaultValue = "false")	boolean includeNearInfraredImages,
+			
+			@RequestParam(value = "convertJPEG",		required = false,	defaultValue = "false")	boolean convertJPEG,
+			@RequestParam(value = "raw",				required = false,	defaultValue = "false")	boolean raw,
+			@RequestParam(value = "jpegQuality",		required = false,	defaultValue = "0.75")	float jpegQuality,
+			@RequestParam(value = "pngLevel",			required = false,	defaultValue = "-1")	int pngLevel,
+			@RequestParam(value = "pngFilter",			required = false,	defaultValue = "auto")	String pngFilter,
+			@RequestParam(value = "demosaic",			required = false,	defaultValue = "bilinear")	String demosaic )
+					throws IOException
+	{
+		String username = ControllerHelper.currentUsername();
+		log.info("Requesting a download job for user " + username
+				+ "\nExperiment: " + experiment
+				+ "\nPlant Barcode: " + plantBarcode
+				+ "\nMeasurement Label: " + measurementLabel
+				+ "\nStart Time: " + startTime
+				+ "\nEnd Time: " + endTime
+				+ "\nRaw?: " + raw );
+		
+		if (ControllerHelper.isAnonymous(username))
+			return new ResponseEntity<String>("ERROR: " + ControllerHelper.ANONYMOUS_USER_MESSAGE, HttpStatus.FORBIDDEN);
+		
+		DemosaicAlgorithm demosaicAlgorithm;
+		ImageEncoding encoding;
+		try {
+			demosaicAlgorithm = DemosaicAlgorithm.fromString(demosaic);
+			if (raw)
+				encoding = ImageEncoding.raw();
+			else
+				encoding = new ImageEncoding(convertJPEG, jpegQuality, pngLevel, PngFilter.fromString(pngFilter));
+		}
+		catch (IllegalArgumentException e) {
+			return new ResponseEntity<String>(e.getMessage(), HttpStatus.BAD_REQUEST);
+		}
+		
+		if ( ! downloadJobs.isAvailable()) {
+			log.error("Refused a download job for user " + username + " as downloads can't be staged in " + downloadJobs.getStagingDirectory() + ".");
+			return new ResponseEntity<String>("Downloads can't be prepared on the server right now.", HttpStatus.SERVICE_UNAVAILABLE);
+		}
+		
+		try {
+			Experiment activeExperiment = experimentData.getByName(experiment);
+			SnapshotDao experimentSnapshots = snapshotData.forExperiment(experiment);
+			
+			Query query = new Query(
+					experiment,
+					plantBarcode,
+					measurementLabel,
+					startTime,
+					endTime,
+					includeWatering,
+					includeVisibleLightImages,
+					includeFluorescentImages,
+					includeNearInfraredImages);
+			
+			DownloadJob job = downloadJobs.submit(username, experimentSnapshots, query, activeExperiment, encoding, demosaicAlgorithm);
+			
+			HttpHeaders headers = new HttpHeaders();
+			headers.setContentType(MediaType.APPLICATION_JSON);
+			headers.set("Location", servletContext.getContextPath() + "/userarea/downloads/" + job.getId());
+			return new ResponseEntity<String>(new Gson().toJson(job.toStatus()), headers, HttpStatus.CREATED);
+		}
+		
+		catch (Exception e) {
+			return ControllerHelper.handleCustomQueryPOSTExceptions(e, username, experiment, measurementLabel, plantBarcode, log);
+		}
+	}
+	
+	/**
+	 * Reports on one of the user's download jobs: its state, how much of the archive is written, and, once it stops,
+	 * the size of the archive or why it failed.
+	 * 
+	 * @param jobId				The job's id, as returned when it was submitted
+	 * @return					The job's status as JSON
+	 */
+	@RequestMapping(value = "/userarea/downloads/{id}", method = RequestMethod.GET)
+	public @ResponseBody ResponseEntity<String> downloadJobStatus(
+			@PathVariable("id")		String jobId)
+	{
+		DownloadJob job = ownedDownloadJob(jobId);
+		if (job == null)
+			return new ResponseEntity<String>("Download not found.", HttpStatus.NOT_FOUND);
+		
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		headers.setCacheControl("no-cache");
+		return new ResponseEntity<String>(new Gson().toJson(job.toStatus()), headers, HttpStatus.OK);
+	}
+	
+	/**
+	 * Stops one of the user's download jobs and deletes its archive.
+	 * 
+	 * @param jobId				The job's id, as returned when it was submitted
+	 */
+	@RequestMapping(value = "/userarea/downloads/{id}", method = RequestMethod.DELETE)
+	public @ResponseBody ResponseEntity<String> cancelDownloadJob(
+			@PathVariable("id")		String jobId)
+	{
+		DownloadJob job = ownedDownloadJob(jobId);
+		if (job == null)
+			return new ResponseEntity<String>("Download not found.", HttpStatus.NOT_FOUND);
+		
+		downloadJobs.cancel(job);
+		return new ResponseEntity<String>("Download cancelled.", HttpStatus.OK);
+	}
+	
+	/**
+	 * Sends the archive of one of the user's finished download jobs. A Range header asking for a single range is
+	 * honoured, so interrupted clients can resume from the byte they stopped at (e.g. wget -c).
+	 * 
+	 * @param response			The HTTP response to this action
+	 * @param jobId				The job's id, as returned when it was submitted
+	 * @param rangeHeader		The part of the archive wanted, if not all of it
+	 * 
+	 * @throws IOException		Thrown if the client disconnects
+	 */
+	@RequestMapping(value = "/userarea/downloads/{id}/archive", method = RequestMethod.GET)
+	public void downloadJobArchive(
+																HttpServletResponse	response,
+			@PathVariable("id")										String				jobId,
+			@RequestHeader(value = "Range", required = false)		String				rangeHeader)
+					throws IOException
+	{
+		DownloadJob job = ownedDownloadJob(jobId);
+		if (job == null) {
+			response.sendError(404, "Download not found.");
+			response.flushBuffer();
+			return;
+		}
+		if (job.getState() != DownloadJob.State.FINISHED) {
+			response.sendError(409, "Download is " + job.getState().name().toLowerCase() + ".");
+			response.flushBuffer();
+			return;
+		}
+		
+		FileInputStream input;
+		try {
+			input = new FileInputStream(job.getArchive());
+		}
+		catch (FileNotFoundException e) {
+			// Cancelled or expired since its state was read
+			response.sendError(404, "Download not found.");
+			response.flushBuffer();
+			return;
+		}
+		
+		try {
+			FileChannel archive = input.getChannel();
+			long length = archive.size();
+			ByteRange range = ByteRange.parse(rangeHeader, length);
+			
+			response.setHeader("Accept-Ranges", "bytes");
+			response.setHeader("ETag", "\"" + job.getId() + "\"");
+			if (range != null && ! range.isSatisfiable()) {
+				response.setHeader("Content-Range", range.contentRange());
+				response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+				response.flushBuffer();
+				return;
+			}
+			
+			long start = 0;
+			long count = length;
+			if (range != null) {
+				start = range.start;
+				count = range.size();
+				response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+				response.setHeader("Content-Range", range.contentRange());
+			}
+			
+			response.setContentType("application/zip");
+			response.setHeader("Content-Disposition", "attachment; filename=\"Snapshots " + job.getId() + ".zip\"");
+			response.setHeader("Content-Length", Long.toString(count));
+			
+			log.info("Sending " + count + " bytes of download job " + job.getId() + " from byte " + start + ".");
+			WritableByteChannel output = Channels.newChannel(response.getOutputStream());
+			long position = start;
+			long end = start + count;
+			while (position < end) {
+				long transferred = archive.transferTo(position, end - position, output);
+				if (transferred <= 0)
+					throw new IOException("Archive of download job " + job.getId() + " ended early.");
+				position += transferred;
+			}
+			response.flushBuffer();
+		}
+		finally {
+			input.close();
+		}
+	}
+	
+	/**
+	 * Reports the progress of one of the user's downloads: snapshots and tiles written, bytes written, throughput,
+	 * the estimated time left, and whether the download is waiting on conversion or on the network.
+	 * 
+	 * Polled as a long poll: a request with the version of the last status it saw is held until the progress moves
+	 * past it, or for at most {@value #PROGRESS_POLL_MS} milliseconds.
+	 * 
+	 * @param key				The download key of a mass download, or the id of a download job
+	 * @param since				Version of the last status seen, or -1 to answer at once
+	 * @return					The download's progress as JSON
+	 */
+	@RequestMapping(value = "/userarea/downloads/{key}/progress", method = RequestMethod.GET)
+	public @ResponseBody ResponseEntity<String> downloadProgress(
+			@PathVariable("key")													String	key,
+			@RequestParam(value = "since",	required = false,	defaultValue = "-1")	long	since)
+	{
+		String username = ControllerHelper.currentUsername();
+		
+		DownloadProgress progress = null;
+		DownloadJob job = ownedDownloadJob(key);
+		if (job != null)
+			progress = job.getProgress();
+		else {
+			progress = downloadProgress.find(key);
+			if (progress != null && ! progress.getOwner().equals(username))
+				progress = null;
+		}
+		
+		if (progress == null)
+			return new ResponseEntity<String>("Download not found.", HttpStatus.NOT_FOUND);
+		
+		if (since >= 0) {
+			try {
+				progress.awaitChange(since, PROGRESS_POLL_MS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		headers.setCacheControl("no-cache");
+		return new ResponseEntity<String>(new Gson().toJson(progress.toStatus()), headers, HttpStatus.OK);
+	}
+	
+	/**
+	 * @return		The download job with the supplied id if it belongs to the current user, otherwise null
+	 */
+	private DownloadJob ownedDownloadJob(String jobId)
+	{
+		DownloadJob job = downloadJobs.find(jobId);
+		if (job == null || ! job.getOwner().equals(ControllerHelper.currentUsername()))
+			return null;
+		return job;
+	}
+	
 	/**
 	 * Sends the user to the query builder page, where they build a custom snapshot query. Upon submission, a key is provided
 	 * to the user which validates their download (for use with wget and other command line tools)
@@ -738,7 +1192,7 @@ public class UserAreaController
 		Experiment activeExperiment = user.getActiveExperiment();
 		model.addAttribute("experiment", activeExperiment.name);
 		
-		List<String> measurementLabels = snapshotData.getAllMeasurementLabels();
+		List<String> measurementLabels = snapshotData.forExperiment(activeExperiment.name).getAllMeasurementLabels();
 		Collections.sort(measurementLabels);
 		model.addAttribute("measurementLabels", measurementLabels);
 		
@@ -818,25 +1272,27 @@ public class UserAreaController
 			InputStream input = file.getInputStream();
 			BufferedReader fileReader = new BufferedReader(new InputStreamReader(input));
 			
-			MetadataFileReader changes = new MetadataFileReader(fileReader);
+			// Applied a batch at a time as the file is read, but committed all at once or not at all
+			MetadataFileReader changes = new MetadataFileReader(fileReader, MetadataFileReader.DEFAULT_BATCH_SIZE);
+			MetadataFileReport report = taggingData.applyMetadataFile(changes);
 			
-			for (Integer id : changes.queryCommentChanges.keySet())
-				queryData.setQueryComment(id, changes.queryCommentChanges.get(id));
+			HttpHeaders headers = new HttpHeaders();
+			headers.setContentType(MediaType.APPLICATION_JSON);
+			headers.setCacheControl("no-cache");
 			
-			for (Integer id : changes.snapshotTagChanges.keySet())
-				taggingData.changeSnapshotTag(id, changes.experiment, changes.snapshotTagChanges.get(id));
-			
-			for (Integer id : changes.tileTagChanges.keySet())
-				taggingData.changeTileTag(id, changes.experiment, changes.tileTagChanges.get(id));
+			if ( ! report.committed) {
+				log.error("Could not read the metdata change file because it has " + report.errorCount + " malformed lines.");
+				return new ResponseEntity<String>(new Gson().toJson(report), headers, HttpStatus.BAD_REQUEST);
+			}
 			
 			log.info("Successfully changed metadata as specified by an uploaded file.");
-			return new ResponseEntity<String>("Metadata changed.", HttpStatus.OK);
+			return new ResponseEntity<String>(new Gson().toJson(report), headers, HttpStatus.OK);
 		}
 		
 		
-		catch (MalformedConfigException e) {
-			log.error("Could not read the metdata change file because it is not configured correctly. " + e.getMessage());
-			return new ResponseEntity<String>(e.getMessage(), HttpStatus.BAD_REQUEST);
+		catch (DataAccessException e) {
+			log.error("Could not apply the metadata change file, no changes were made.", e);
+			return new ResponseEntity<String>("Could not apply the metadata changes, none were made.", HttpStatus.INTERNAL_SERVER_ERROR);
 		}
 	}
 	
@@ -0,0 +1,245 @@
+package src.ddpsc.config;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.log4j.Logger;
+
+import src.ddpsc.exceptions.MalformedConfigException;
+
+/**
+ * Pooled connections to the LemnaTec experiment databases and the user and metadata database, shared by every
+ * request.
+ *
+ * The configuration files are read once, when the registry is made. Each experiment database gets its own pool the
+ * first time it is asked for, which is then handed to every later request for that experiment. Idle connections
+ * past the minimum are closed by an evictor, and connections are validated before being handed out so those dropped
+ * by the server are replaced rather than failing a request. Pool settings apply to pools made after they are set.
+ *
+ * {@link Config} still makes unpooled data sources, for the connection tests.
+ *
+ * @author shill
+ */
+public class DataSourceRegistry
+{
+	private static final Logger log = Logger.getLogger(DataSourceRegistry.class);
+
+	public static final String VALIDATION_QUERY = "SELECT 1";
+
+	private final LemnaTechDatabaseConfigReader lemnaTecConfig;
+	private final UserDatabaseConfigReader metadataConfig;
+
+	private final ConcurrentMap<String, BasicDataSource> experimentPools = new ConcurrentHashMap<String, BasicDataSource>();
+	private BasicDataSource metadataPool;
+
+	private int minIdle = 0;
+	private int maxIdle = 4;
+	private int maxActive = 16;
+	private int maxWaitSeconds = 30;
+	private int evictionSeconds = 60;
+	private int idleSeconds = 300;
+
+	/**
+	 * @param lemnaTecConfigFile		Configuration of the LemnaTec server, e.g. ltdatabase.conf
+	 * @param metadataConfigFile		Configuration of the metadata server, e.g. userdatabase.conf
+	 *
+	 * @throws MalformedConfigException		Thrown if either configuration file is incomplete
+	 * @throws IOException					Thrown if either configuration file cannot be read
+	 */
+	public DataSourceRegistry(String lemnaTecConfigFile, String metadataConfigFile) throws MalformedConfigException, IOException
+	{
+		this.lemnaTecConfig = new LemnaTechDatabaseConfigReader(lemnaTecConfigFile);
+		this.metadataConfig = new UserDatabaseConfigReader(metadataConfigFile);
+	}
+
+	/**
+	 * Returns the pool of connections to the supplied experiment's database, making it if this is the first request
+	 * for the experiment.
+	 *
+	 * @param database		Name of the database on the LemnaTec server
+	 * @return				The experiment's pool, shared with every other caller
+	 */
+	public DataSource experimentDataSource(String database)
+	{
+		database = database.replace("\\", "").replace("/", ""); // Removes any leading slashes
+
+		BasicDataSource pool = experimentPools.get(database);
+		if (pool != null)
+			return pool;
+
+		pool = newPool(
+				"org.postgresql.Driver",
+				"jdbc:postgresql://" + lemnaTecConfig.url + ":" + lemnaTecConfig.port + "/" + database,
+				lemnaTecConfig.username,
+				lemnaTecConfig.password);
+
+		// Pools open no connections until used, so one made by a losing thread costs nothing to drop
+		BasicDataSource existing = experimentPools.putIfAbsent(database, pool);
+		if (existing != null)
+			return existing;
+
+		log.info("Created a connection pool for the experiment database " + database + ".");
+		return pool;
+	}
+
+	/**
+	 * Returns the pool of connections to the metadata database, which is currently also the user database.
+	 */
+	public synchronized DataSource metadataDataSource()
+	{
+		if (metadataPool == null) {
+			metadataPool = newPool(
+					"com.mysql.jdbc.Driver",
+					// Batches of inserts are sent as multi-row statements, rather than a round trip each
+					"jdbc:mysql://" + metadataConfig.url + ":" + metadataConfig.port + "/" + metadataConfig.database
+						+ "?rewriteBatchedStatements=true",
+					metadataConfig.username,
+					metadataConfig.password);
+			log.info("Created a connection pool for the metadata database.");
+		}
+		return metadataPool;
+	}
+
+	/**
+	 * Returns the pool of connections to the user database. Users and metadata are currently on the same database,
+	 * so this is the same pool as {@link #metadataDataSource()}.
+	 */
+	public DataSource userDataSource()
+	{
+		return metadataDataSource();
+	}
+
+	private BasicDataSource newPool(String driver, String url, String username, String password)
+	{
+		BasicDataSource pool = new BasicDataSource();
+		pool.setDriverClassName(driver);
+		pool.setUrl(url);
+		pool.setUsername(username);
+		pool.setPassword(password);
+
+		pool.setMinIdle(minIdle);
+		pool.setMaxIdle(maxIdle);
+		pool.setMaxActive(maxActive);
+		pool.setMaxWait(maxWaitSeconds * 1000L);
+
+		pool.setValidationQuery(VALIDATION_QUERY);
+		pool.setTestOnBorrow(true);
+		pool.setTestWhileIdle(true);
+		pool.setTimeBetweenEvictionRunsMillis(evictionSeconds * 1000L);
+		pool.setMinEvictableIdleTimeMillis(idleSeconds * 1000L);
+		return pool;
+	}
+
+	/**
+	 * Connections in use and idle in each pool, by database, for administrators.
+	 */
+	public Map<String, Object> getMetrics()
+	{
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		synchronized (this) {
+			if (metadataPool != null)
+				metrics.put("metadata", poolMetrics(metadataPool));
+		}
+
+		Map<String, Object> experiments = new TreeMap<String, Object>();
+		for (Map.Entry<String, BasicDataSource> pool : experimentPools.entrySet())
+			experiments.put(pool.getKey(), poolMetrics(pool.getValue()));
+		metrics.put("experiments", experiments);
+		return metrics;
+	}
+
+	private static Map<String, Object> poolMetrics(BasicDataSource pool)
+	{
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put("active", pool.getNumActive());
+		metrics.put("idle", pool.getNumIdle());
+		metrics.put("maxActive", pool.getMaxActive());
+		return metrics;
+	}
+
+	/**
+	 * Closes every pool. Connections in use are closed as they are returned.
+	 */
+	public synchronized void close()
+	{
+		for (BasicDataSource pool : experimentPools.values())
+			closePool(pool);
+		experimentPools.clear();
+
+		if (metadataPool != null)
+			closePool(metadataPool);
+		metadataPool = null;
+	}
+
+	private static void closePool(BasicDataSource pool)
+	{
+		try {
+			pool.close();
+		}
+		catch (SQLException e) {
+			log.warn("Could not close the connection pool for " + pool.getUrl() + ".", e);
+		}
+	}
+
+
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	// Get/Set Methods
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	/**
+	 * @param minIdle		Idle connections the evictor leaves open in each pool
+	 */
+	public void setMinIdle(int minIdle)
+	{
+		this.minIdle = minIdle;
+	}
+
+	/**
+	 * @param maxIdle		Most idle connections kept open in each pool, others are closed as they are returned
+	 */
+	public void setMaxIdle(int maxIdle)
+	{
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * @param maxActive		Most connections each pool has open at once
+	 */
+	public void setMaxActive(int maxActive)
+	{
+		this.maxActive = maxActive;
+	}
+
+	/**
+	 * @param maxWaitSeconds	How long a request waits for a connection from a full pool before failing
+	 */
+	public void setMaxWaitSeconds(int maxWaitSeconds)
+	{
+		this.maxWaitSeconds = maxWaitSeconds;
+	}
+
+	/**
+	 * @param evictionSeconds	Time between runs of the evictor, which also validates idle connections
+	 */
+	public void setEvictionSeconds(int evictionSeconds)
+	{
+		this.evictionSeconds = evictionSeconds;
+	}
+
+	/**
+	 * @param idleSeconds		How long a connection may sit idle before the evictor closes it
+	 */
+	public void setIdleSeconds(int idleSeconds)
+	{
+		this.idleSeconds = idleSeconds;
+	}
+}
@@ -0,0 +1,199 @@
+package src.ddpsc.database.experiment;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.springframework.dao.DataAccessException;
+
+import src.ddpsc.database.tagging.TaggingDao;
+import src.ddpsc.utility.Time;
+
+/**
+ * Every experiment on the LemnaTec server with its snapshot and tile counts, kept in memory for page loads.
+ *
+ * Counting an experiment's snapshots and tiles means a connection to its own database, so the counts are refreshed
+ * on a background thread, every few minutes and whenever an administrator asks, then saved to the metadata server.
+ * Readers get the experiments of the last refresh and never wait on one. Until the first refresh finishes they get
+ * the experiments with the counts last saved to the metadata server, which needs neither the experiment databases
+ * nor a refresh.
+ *
+ * An experiment whose database can't be counted keeps its previous counts, the rest are still refreshed.
+ *
+ * @author shill
+ */
+public class ExperimentCatalogue
+{
+	private static final Logger log = Logger.getLogger(ExperimentCatalogue.class);
+
+	public static final int DEFAULT_REFRESH_MINUTES = 15;
+
+	private final ExperimentDao experimentData;
+	private final TaggingDao taggingData;
+
+	private int refreshMinutes = DEFAULT_REFRESH_MINUTES;
+	private boolean enabled = true;
+
+	private volatile Set<Experiment> experiments;
+	private volatile Timestamp lastRefreshed;
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param experimentData	Lists the experiments and counts their snapshots and tiles
+	 * @param taggingData		Saves the counts to, and reads the last saved counts from, the metadata server
+	 */
+	public ExperimentCatalogue(ExperimentDao experimentData, TaggingDao taggingData)
+	{
+		this.experimentData = experimentData;
+		this.taggingData = taggingData;
+	}
+
+	/**
+	 * Starts refreshing in the background, the first refresh straight away. Does nothing if refreshing is disabled,
+	 * and the experiments are then always those last saved to the metadata server.
+	 */
+	public synchronized void start()
+	{
+		if ( ! enabled) {
+			log.info("Experiment catalogue refresh is disabled.");
+			return;
+		}
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "Experiment Catalogue Refresh");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run()
+			{
+				refresh();
+			}
+		}, 0, refreshMinutes, TimeUnit.MINUTES);
+
+		log.info("Experiment catalogue started, refreshing every " + refreshMinutes + " minutes.");
+	}
+
+	public synchronized void shutdown()
+	{
+		if (scheduler != null) {
+			log.info("Shutting down the experiment catalogue.");
+			scheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * Returns the experiments of the last refresh, or those last saved to the metadata server if nothing has been
+	 * refreshed yet.
+	 *
+	 * @return		The experiments, which must not be changed
+	 *
+	 * @throws DataAccessException		Thrown if there hasn't been a refresh yet and the experiments can't be read
+	 */
+	public Set<Experiment> getExperiments() throws DataAccessException
+	{
+		Set<Experiment> current = experiments;
+		if (current != null)
+			return current;
+
+		synchronized (this) {
+			if (experiments == null)
+				experiments = Collections.unmodifiableSet(experimentData.findAll());
+			return experiments;
+		}
+	}
+
+	/**
+	 * Refreshes the catalogue on the background thread, as soon as it's free. Returns straight away.
+	 */
+	public synchronized void requestRefresh()
+	{
+		if (scheduler == null || scheduler.isShutdown()) {
+			log.warn("Experiment catalogue refresh requested, but the catalogue isn't running.");
+			return;
+		}
+
+		scheduler.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				refresh();
+			}
+		});
+	}
+
+	/**
+	 * Recounts every experiment's snapshots and tiles, saves the counts and then swaps them in for readers. Failures
+	 * are logged, and the previous catalogue kept, until the next refresh.
+	 */
+	private void refresh()
+	{
+		try {
+			long start = System.currentTimeMillis();
+			Set<Experiment> refreshed = experimentData.findAll();
+
+			int failed = 0;
+			for (Experiment experiment : refreshed) {
+				try {
+					experimentData.generateExperimentMetadata(Arrays.asList(experiment));
+				}
+				catch (Exception e) {
+					failed++;
+					log.warn("Could not count the snapshots and tiles of " + experiment.name + ", keeping its previous counts.", e);
+				}
+			}
+
+			taggingData.setExperimentMetadata(refreshed);
+
+			experiments = Collections.unmodifiableSet(refreshed);
+			lastRefreshed = Time.now();
+
+			log.info("Refreshed the experiment catalogue of " + refreshed.size() + " experiments in "
+					+ (System.currentTimeMillis() - start) + " ms, " + failed + " could not be counted.");
+		}
+		catch (Exception e) {
+			log.error("Could not refresh the experiment catalogue, keeping the previous one until the next refresh.", e);
+		}
+	}
+
+
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	// Get/Set Methods
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	/**
+	 * @return		When the catalogue was last refreshed, or null if it hasn't been yet
+	 */
+	public Timestamp getLastRefreshed()
+	{
+		return lastRefreshed;
+	}
+
+	/**
+	 * @param refreshMinutes	Minutes between refreshes, from the end of one to the start of the next
+	 */
+	public void setRefreshMinutes(int refreshMinutes)
+	{
+		this.refreshMinutes = Math.max(refreshMinutes, 1);
+	}
+
+	/**
+	 * @param enabled	Whether {@link #start()} starts the background refresh
+	 */
+	public void setEnabled(boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+}
@@ -9,6 +9,7 @@ import javax.sql.DataSource;
 
 import org.springframework.jdbc.CannotGetJdbcConnectionException;
 
+import src.ddpsc.config.DataSourceRegistry;
 import src.ddpsc.database.tagging.TaggingDao;
 import src.ddpsc.exceptions.MalformedConfigException;
 import src.ddpsc.exceptions.ObjectNotFoundException;
@@ -17,6 +18,7 @@ public interface ExperimentDao
 {
 	public void setExperimentSource(DataSource experimentSource);
 	public void setTaggingData(TaggingDao taggingData);
+	public void setDataSources(DataSourceRegistry dataSources);
 	
 	public Set<Experiment> findAll()
 		throws CannotGetJdbcConnectionException;
@@ -16,7 +16,7 @@ import org.joda.time.DateTime;
 import org.springframework.jdbc.CannotGetJdbcConnectionException;
 import org.springframework.jdbc.core.JdbcTemplate;
 
-import src.ddpsc.config.Config;
+import src.ddpsc.config.DataSourceRegistry;
 import src.ddpsc.database.snapshot.SnapshotDaoImpl;
 import src.ddpsc.database.tagging.TaggingDao;
 import src.ddpsc.database.tagging.TaggingDaoImpl;
@@ -58,6 +58,7 @@ public class ExperimentDaoImpl implements ExperimentDao
 	// ////////////////////////////////////////////////
 	// ////////////////////////////////////////////////
 	private DataSource experimentSource;
+	private DataSourceRegistry dataSources;
 	
 	private TaggingDao taggingData;
 	
@@ -150,7 +151,7 @@ public class ExperimentDaoImpl implements ExperimentDao
 	
 	private int getNumberSnapshots(Experiment experiment) throws MalformedConfigException, IOException
 	{
-		DataSource snapshotDataSource = Config.experimentDataSource(experiment.name);
+		DataSource snapshotDataSource = dataSources.experimentDataSource(experiment.name);
 		
 		String getNumberSnapshots = "SELECT reltuples FROM pg_class WHERE relname = '" + SnapshotDaoImpl.SNAPSHOT_TABLE + "'";
 		
@@ -162,7 +163,7 @@ public class ExperimentDaoImpl implements ExperimentDao
 	
 	private int getNumberTiles(Experiment experiment) throws MalformedConfigException, IOException
 	{
-		DataSource tileDataSource = Config.experimentDataSource(experiment.name);
+		DataSource tileDataSource = dataSources.experimentDataSource(experiment.name);
 		
 		String getNumberTiles = "SELECT reltuples FROM pg_class WHERE relname = '" + SnapshotDaoImpl.TILE_TABLE + "'";
 		
@@ -217,4 +218,10 @@ public class ExperimentDaoImpl implements ExperimentDao
 	{
 		this.taggingData = taggingData;
 	}
+	
+	@Override
+	public void setDataSources(DataSourceRegistry dataSources)
+	{
+		this.dataSources = dataSources;
+	}
 }
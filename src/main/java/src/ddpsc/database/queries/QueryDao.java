@@ -22,4 +22,5 @@ public interface QueryDao
 	void setInterrupted(int queryId, boolean wasInterrupted);
 	void setMissedSnapshots(int queryId, List<Integer> missedSnapshots);
 	void setQuerySize(int queryId, long bytes);
+	void setQueryCounts(int queryId, int numberSnapshots, int numberTiles);
 }
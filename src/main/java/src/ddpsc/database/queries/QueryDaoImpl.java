@@ -318,6 +318,22 @@ public class QueryDaoImpl implements QueryDao
 		log.info("Changed the query size on the query ID='" + queryId + "' to: '" + bytesString + "'.");
 	}
 	
+	/**
+	 * Records how many snapshots and tiles a query found, for downloads which only know once they have finished.
+	 */
+	@Override
+	public void setQueryCounts(int queryId, int numberSnapshots, int numberTiles)
+	{
+		log.info("Attempting to change the counts on the query ID='" + queryId + "' to: " + numberSnapshots + " snapshots and " + numberTiles + " tiles.");
+		
+		if (queryId != -1) {
+			setMetadataVariable(queryId, NUM_SNAPSHOTS, Integer.toString(numberSnapshots));
+			setMetadataVariable(queryId, NUM_TILES, Integer.toString(numberTiles));
+		}
+		
+		log.info("Changed the counts on the query ID='" + queryId + "' to: " + numberSnapshots + " snapshots and " + numberTiles + " tiles.");
+	}
+	
 	
 	// ////////////////////////////////////////////////
 	// ////////////////////////////////////////////////
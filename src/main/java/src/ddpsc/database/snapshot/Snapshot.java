@@ -3,11 +3,10 @@ package src.ddpsc.database.snapshot;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import src.ddpsc.database.tile.Tile;
+import src.ddpsc.utility.IntIndex;
 
 /**
  * Model class for mapping the database table snapshot to a Java Object.
@@ -121,14 +120,14 @@ public class Snapshot
 		return snapshotsWithTiles;
 	}
 	
-	public static Map<Integer, Snapshot> getSnapshotIdMap(List<Snapshot> snapshots)
+	public static IntIndex<Snapshot> getSnapshotIdIndex(List<Snapshot> snapshots)
 	{
-		Map<Integer, Snapshot> snapshotMap = new HashMap<Integer, Snapshot>(snapshots.size());
+		IntIndex<Snapshot> snapshotIndex = new IntIndex<Snapshot>(snapshots.size());
 		
 		for (Snapshot snapshot : snapshots)
-			snapshotMap.put(snapshot.id, snapshot);
+			snapshotIndex.put(snapshot.id, snapshot);
 		
-		return snapshotMap;
+		return snapshotIndex;
 	}
 	
 	public static List<Integer> getIds(List<Snapshot> snapshots)
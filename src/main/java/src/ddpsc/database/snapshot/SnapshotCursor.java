@@ -0,0 +1,245 @@
+package src.ddpsc.database.snapshot;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.CannotGetJdbcConnectionException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.SingleColumnRowMapper;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.jdbc.support.JdbcUtils;
+
+import src.ddpsc.database.queries.Query;
+
+/**
+ * Reads the snapshots of a custom query in batches, so a download of any size holds only one batch in memory.
+ *
+ * PostgreSQL only fetches a result set in pieces inside a transaction, so the cursor keeps its own connection with
+ * autocommit off, and fetches one batch of rows per round trip. Each batch is filled in with its tags and tiles
+ * before being returned, in the same way {@link SnapshotDao#executeCustomQuery(Query)} fills in its snapshots. The
+ * tiles are read on the cursor's connection too, so a cursor never needs a second connection from the pool.
+ *
+ * Snapshots are read in order of their ID, so those not yet returned are exactly those after the last one returned,
+ * see {@link #readRemainingIds()}.
+ *
+ * The cursor must be closed, which ends the transaction and returns the connection.
+ *
+ * @see SnapshotDao#openCustomQuery(Query, int)
+ *
+ * @author shill
+ */
+public class SnapshotCursor implements Closeable
+{
+	private static final Logger log = Logger.getLogger(SnapshotCursor.class);
+
+	// Enough snapshots to keep the conversion workers busy, few enough that a batch and its tiles stay small
+	public static final int DEFAULT_BATCH_SIZE = 200;
+
+	private final SnapshotDaoImpl snapshots;
+	private final DataSource dataSource;
+	private final Query querySettings;
+	private final String sqlStatement;
+	private final PreparedStatementSetter statementSetter;
+	private final int parameters;
+	private final int batchSize;
+	private final SnapshotRowMapper rowMapper;
+
+	private Connection connection;
+	private DataSource connectionSource;
+	private boolean autoCommit = true;
+	private PreparedStatement statement;
+	private ResultSet resultSet;
+	private boolean exhausted;
+	private int snapshotsRead;
+	private int tilesRead;
+	private Integer lastIdReturned;
+
+	/**
+	 * @param sqlStatement			Query of the snapshots, without an ORDER BY
+	 * @param statementSetter		Sets the query's parameters
+	 * @param parameters			Number of parameters the query has
+	 */
+	SnapshotCursor(SnapshotDaoImpl snapshots, DataSource dataSource, String experiment, Query querySettings,
+			String sqlStatement, PreparedStatementSetter statementSetter, int parameters, int batchSize)
+					throws CannotGetJdbcConnectionException
+	{
+		this.snapshots = snapshots;
+		this.dataSource = dataSource;
+		this.querySettings = querySettings;
+		this.sqlStatement = sqlStatement;
+		this.statementSetter = statementSetter;
+		this.parameters = parameters;
+		this.batchSize = batchSize;
+		this.rowMapper = new SnapshotRowMapper(experiment);
+
+		this.connection = DataSourceUtils.getConnection(dataSource);
+		this.connectionSource = new SingleConnectionDataSource(connection, true);
+		try {
+			autoCommit = connection.getAutoCommit();
+			connection.setAutoCommit(false);
+
+			String orderedStatement = sqlStatement + " ORDER BY " + SnapshotDaoImpl.SNAPSHOT_ID;
+			statement = connection.prepareStatement(orderedStatement, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			statement.setFetchSize(batchSize);
+			statementSetter.setValues(statement);
+			resultSet = statement.executeQuery();
+		}
+		catch (SQLException e) {
+			close();
+			throw translate("open snapshot cursor", e);
+		}
+	}
+
+	/**
+	 * Reads the next batch of snapshots, with their tags and tiles.
+	 *
+	 * @return		Up to the batch size of snapshots, or an empty list once the query has no more
+	 *
+	 * @throws	DataAccessException		Thrown if reading the snapshots, or their tags or tiles, fails
+	 */
+	public List<Snapshot> nextBatch() throws DataAccessException
+	{
+		List<Snapshot> batch = new ArrayList<Snapshot>(batchSize);
+		if (exhausted)
+			return batch;
+
+		try {
+			while (batch.size() < batchSize && resultSet.next())
+				batch.add(rowMapper.mapRow(resultSet, snapshotsRead + batch.size()));
+		}
+		catch (SQLException e) {
+			throw translate("read snapshot batch", e);
+		}
+
+		if (batch.size() < batchSize)
+			exhausted = true;
+		if (batch.isEmpty())
+			return batch;
+
+		snapshots.loadBatch(connectionSource, batch, querySettings);
+		lastIdReturned = batch.get(batch.size() - 1).id;
+		snapshotsRead += batch.size();
+		tilesRead += Snapshot.getTiles(batch).size();
+		log.info("Read a batch of " + batch.size() + " snapshots, " + snapshotsRead + " so far.");
+		return batch;
+	}
+
+	/**
+	 * Reads the IDs of every snapshot the cursor has not yet returned, without their tags or tiles, so a download
+	 * cut short can record all of the snapshots it missed rather than only those of its last batch.
+	 *
+	 * The rest of the result set is dropped, and the query run again on the cursor's connection for the IDs after the
+	 * last one returned. The transaction is rolled back first, so this also works after a failed read has aborted it.
+	 * The cursor returns no more batches afterwards.
+	 *
+	 * @return		IDs of the snapshots not yet returned, in order
+	 *
+	 * @throws	DataAccessException		Thrown if the IDs cannot be read
+	 */
+	public List<Integer> readRemainingIds() throws DataAccessException
+	{
+		closeResultSet();
+		if (connection == null)
+			throw new IllegalStateException("The snapshot cursor is already closed.");
+
+		try {
+			connection.rollback();
+		}
+		catch (SQLException e) {
+			throw translate("end snapshot cursor", e);
+		}
+
+		String remainingIds = "SELECT " + SnapshotDaoImpl.SNAPSHOT_ID + " FROM (" + sqlStatement + ") AS remaining ";
+		if (lastIdReturned != null)
+			remainingIds += " WHERE " + SnapshotDaoImpl.SNAPSHOT_ID + " > ? ";
+		remainingIds += " ORDER BY " + SnapshotDaoImpl.SNAPSHOT_ID;
+
+		List<Integer> ids = new JdbcTemplate(connectionSource).query(remainingIds, new PreparedStatementSetter() {
+			@Override
+			public void setValues(PreparedStatement ps) throws SQLException
+			{
+				statementSetter.setValues(ps);
+				if (lastIdReturned != null)
+					ps.setInt(parameters + 1, lastIdReturned);
+			}
+		}, new SingleColumnRowMapper<Integer>(Integer.class));
+
+		log.info(ids.size() + " snapshots remained unread by the snapshot cursor.");
+		return ids;
+	}
+
+	/**
+	 * Ends the cursor's transaction, which only ever read, and releases its connection. Safe to call more than once.
+	 */
+	@Override
+	public void close()
+	{
+		closeResultSet();
+
+		if (connection == null)
+			return;
+
+		try {
+			connection.rollback();
+			connection.setAutoCommit(autoCommit);
+		}
+		catch (SQLException e) {
+			log.warn("Could not end the snapshot cursor's transaction.", e);
+		}
+		DataSourceUtils.releaseConnection(connection, dataSource);
+		connection = null;
+		connectionSource = null;
+	}
+
+	private void closeResultSet()
+	{
+		JdbcUtils.closeResultSet(resultSet);
+		JdbcUtils.closeStatement(statement);
+		resultSet = null;
+		statement = null;
+		exhausted = true;
+	}
+
+	private DataAccessException translate(String task, SQLException e)
+	{
+		return new JdbcTemplate(dataSource).getExceptionTranslator().translate(task, sqlStatement, e);
+	}
+
+
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	// Get/Set Methods
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	public int getBatchSize()
+	{
+		return batchSize;
+	}
+
+	/**
+	 * @return		Snapshots returned by {@link #nextBatch()} so far
+	 */
+	public int getSnapshotsRead()
+	{
+		return snapshotsRead;
+	}
+
+	/**
+	 * @return		Tiles of the snapshots returned by {@link #nextBatch()} so far
+	 */
+	public int getTilesRead()
+	{
+		return tilesRead;
+	}
+}
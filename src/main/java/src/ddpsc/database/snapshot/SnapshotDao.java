@@ -1,13 +1,11 @@
 package src.ddpsc.database.snapshot;
 
-import java.io.IOException;
 import java.sql.Timestamp;
 import java.util.List;
 
 import org.springframework.jdbc.CannotGetJdbcConnectionException;
 
 import src.ddpsc.database.queries.Query;
-import src.ddpsc.exceptions.MalformedConfigException;
 import src.ddpsc.exceptions.ObjectNotFoundException;
 
 /**
@@ -20,14 +18,16 @@ import src.ddpsc.exceptions.ObjectNotFoundException;
  */
 public interface SnapshotDao
 {
-	public void setSnapshotExperiment(String experimentName) 	throws MalformedConfigException, IOException;
+	public SnapshotDao forExperiment(String experimentName);
 	
 	public List<String> getAllMeasurementLabels() throws CannotGetJdbcConnectionException;
 	
 	public Snapshot findById(int id) throws CannotGetJdbcConnectionException, ObjectNotFoundException;
 	public List<Snapshot> findById(List<Integer> ids) throws CannotGetJdbcConnectionException, ObjectNotFoundException;
+	public Snapshot findByTileId(int tileId) throws CannotGetJdbcConnectionException, ObjectNotFoundException;
 	public List<Snapshot> findAfterTimestamp(Timestamp timestamp) throws CannotGetJdbcConnectionException;
 	public List<Snapshot> findBetweenTimes(Timestamp startTime, Timestamp endTime) throws CannotGetJdbcConnectionException;
 	
 	public List<Snapshot> executeCustomQuery(Query querySettings) throws CannotGetJdbcConnectionException;
+	public SnapshotCursor openCustomQuery(Query querySettings, int batchSize) throws CannotGetJdbcConnectionException;
 }
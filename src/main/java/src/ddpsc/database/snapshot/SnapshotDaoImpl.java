@@ -1,6 +1,5 @@
 package src.ddpsc.database.snapshot;
 
-import java.io.IOException;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Timestamp;
@@ -15,12 +14,11 @@ import org.springframework.jdbc.CannotGetJdbcConnectionException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
 
-import src.ddpsc.config.Config;
+import src.ddpsc.config.DataSourceRegistry;
 import src.ddpsc.database.queries.Query;
 import src.ddpsc.database.tagging.TaggingDao;
 import src.ddpsc.database.tile.Tile;
 import src.ddpsc.database.tile.TileRowMapper;
-import src.ddpsc.exceptions.MalformedConfigException;
 import src.ddpsc.exceptions.ObjectNotFoundException;
 import src.ddpsc.utility.StringOps;
 import src.ddpsc.utility.StringRowMapper;
@@ -39,6 +37,9 @@ import src.ddpsc.utility.StringRowMapper;
  * There should be an external tool that adds entries to servlet-context.xml and wires up the dataSources. This class should
  * figure out dynamically which dataSource to connect to.
  * 
+ * The bean itself reads no experiment. Each request gets a DAO for its experiment from {@link #forExperiment(String)},
+ * so the bean holds no per-experiment state for concurrent requests to race on.
+ * 
  * @author shill
  * 
  */
@@ -89,10 +90,51 @@ public class SnapshotDaoImpl implements SnapshotDao
 	
 	private static final String SNAPSHOT_QUERY_VARIABLES = "SELECT * FROM " + SNAPSHOT_TABLE + " ";
 	
+	private static final String SNAPSHOT_TABLE_ALIAS	= "s";
+	private static final String TILE_PREFIX				= SnapshotTileExtractor.TILE_PREFIX;
+	
+	private static final String SNAPSHOT_TILE_QUERY_VARIABLES = "SELECT "
+			+ SNAPSHOT_TABLE_ALIAS + ".*, "
+			+ "tiled_image." + CAMERA + " AS " + TILE_PREFIX + CAMERA + ", "
+			+ "tile." + RAW_IMAGE_OID + " AS " + TILE_PREFIX + RAW_IMAGE_OID + ", "
+			+ "tile." + NULL_IMAGE_OID + " AS " + TILE_PREFIX + NULL_IMAGE_OID + ", "
+			+ "tile." + DATA_FORMAT + " AS " + TILE_PREFIX + DATA_FORMAT + ", "
+			+ "tile." + WIDTH + " AS " + TILE_PREFIX + WIDTH + ", "
+			+ "tile." + HEIGHT + " AS " + TILE_PREFIX + HEIGHT + ", "
+			+ "tile." + FLIP_TYPE + " AS " + TILE_PREFIX + FLIP_TYPE + ", "
+			+ "tile." + FRAME + " AS " + TILE_PREFIX + FRAME + ", "
+			+ "tile." + TILE_ID + " AS " + TILE_PREFIX + TILE_ID + " "
+			+ "FROM (";
+	
+	// Tiles of the requested formats, joined to snapshots selected by a subquery. The formats are bound as the text
+	// of an array and cast by the statement, as the pinned 8.3 PostgreSQL driver has no Connection.createArrayOf
+	private static final String SNAPSHOT_TILE_QUERY_JOIN = ""
+			+ ") AS " + SNAPSHOT_TABLE_ALIAS + " "
+			+ "LEFT JOIN (tiled_image JOIN tile "
+				+ "ON tile.tiled_image_id = tiled_image.id AND tile." + DATA_FORMAT + " = ANY (?::int4[])) "
+			+ "ON tiled_image.snapshot_id = " + SNAPSHOT_TABLE_ALIAS + ".id "
+			+ "ORDER BY " + SNAPSHOT_TABLE_ALIAS + ".id, tile." + TILE_ID;
+	
 	private String experiment;
 	private DataSource snapshotDataSource;
+	private DataSourceRegistry dataSources;
 	private TaggingDao taggingData;
 	
+	/**
+	 * Made as a bean, which reads no experiment itself but hands out DAOs for each experiment.
+	 */
+	public SnapshotDaoImpl()
+	{
+	}
+	
+	private SnapshotDaoImpl(String experiment, DataSource snapshotDataSource, DataSourceRegistry dataSources, TaggingDao taggingData)
+	{
+		this.experiment = experiment;
+		this.snapshotDataSource = snapshotDataSource;
+		this.dataSources = dataSources;
+		this.taggingData = taggingData;
+	}
+	
 	// ////////////////////////////////////////////////
 	// ////////////////////////////////////////////////
 	// Snapshot Operations
@@ -160,6 +202,46 @@ public class SnapshotDaoImpl implements SnapshotDao
 		return snapshots;
 	}
 	
+	/**
+	 * Gets the snapshot a tile belongs to, with only that tile loaded and without tags. Used where a single
+	 * image is wanted, such as thumbnails.
+	 * 
+	 * @param	tileId					The ID number of the tile
+	 * @return							The tile's snapshot, holding just the tile
+	 * 
+	 * @throws	CannotGetJdbcConnectionException	Thrown if the database is not accessible
+	 * @throws	ObjectNotFoundException				Thrown if there is no tile with the supplied ID
+	 */
+	@Override
+	public Snapshot findByTileId(int tileId)
+			throws CannotGetJdbcConnectionException, ObjectNotFoundException
+	{
+		log.info("Attempting to find the snapshot of the tile with ID='" + tileId + "'.");
+		
+		String findByTileId = SNAPSHOT_QUERY_VARIABLES
+				+ " WHERE id = ("
+				+ " SELECT tiled_image.snapshot_id FROM tiled_image, tile "
+				+ " WHERE tile." + TILE_ID + " = ? AND tile.tiled_image_id = tiled_image.id )";
+		
+		JdbcTemplate snapshotDatabase = new JdbcTemplate(snapshotDataSource);
+		List<Snapshot> snapshots = snapshotDatabase.query(findByTileId, new Object[] { tileId }, new SnapshotRowMapper(experiment));
+		
+		if (snapshots.size() == 0)
+			throw new ObjectNotFoundException("The tile with the ID=" + tileId + " could not be found.");
+		
+		String getTile = TILE_QUERY_VARIABLES
+				+ " WHERE tile." + TILE_ID + " = ? "
+				+ " AND tile.tiled_image_id = tiled_image.id ";
+		snapshotDatabase.query(getTile, new Object[] { tileId }, new TileRowMapper(snapshots)); // loads the tile into the snapshot
+		
+		Snapshot snapshot = snapshots.get(0);
+		if (snapshot.getTiles().size() == 0)
+			throw new ObjectNotFoundException("The tile with the ID=" + tileId + " could not be found.");
+		
+		log.info("Snapshot with ID='" + snapshot.id + "' found for the tile with ID='" + tileId + "'.");
+		return snapshot;
+	}
+	
 	/**
 	 * Gets a set of snapshots that occurred after the supplied time. 
 	 * 
@@ -243,26 +325,42 @@ public class SnapshotDaoImpl implements SnapshotDao
 	{
 		log.info("Attempting to fulfill a custom snapshot query with the variables: " + querySettings + ".");
 		
-		List<Snapshot> snapshots;
-		Timestamp startTime = querySettings.startTime;
-		Timestamp endTime = querySettings.endTime;
-		
-		if (startTime == null && endTime != null)
-			snapshots = findCustomQueryBeforeTime_HELPER(querySettings);
-			
-		else if (startTime != null && endTime == null)
-			snapshots = findCustomQueryAfterTime_HELPER(querySettings);
-		
-		else if (startTime != null && endTime != null)
-			snapshots = findCustomQueryBetweenTime_HELPER(querySettings);
-
-		else
-			snapshots = findCustomQueryAnyTime_HELPER(querySettings);
+		List<Snapshot> snapshots = snapshotTileQuery(customQuery(querySettings), querySettings);
 		
 		log.info("Custom snapshot query fulfilled. " + snapshots.size() + "-many snapshots found. Variables: " + querySettings + ".");
 		return snapshots;
 	}
 	
+	/**
+	 * Opens a cursor over the same snapshots {@link #executeCustomQuery(Query)} would return, read in batches from
+	 * a server side cursor so only one batch is ever held in memory.
+	 * 
+	 * The cursor keeps the experiment this DAO was set to when it was opened.
+	 * 
+	 * @param	querySettings	Settings defining a customized query
+	 * @param	batchSize		Snapshots fetched from the database, and returned, at a time
+	 * @return					The open cursor, which must be closed
+	 * 
+	 * @throws	CannotGetJdbcConnectionException	Thrown if the database is not accessible
+	 */
+	@Override
+	public SnapshotCursor openCustomQuery(Query querySettings, int batchSize)
+			throws CannotGetJdbcConnectionException
+	{
+		log.info("Opening a snapshot cursor in batches of " + batchSize + " with the variables: " + querySettings + ".");
+		
+		CustomQuery customQuery = customQuery(querySettings);
+		return new SnapshotCursor(
+				this,
+				snapshotDataSource,
+				experiment,
+				querySettings,
+				customQuery.sqlStatement,
+				customQuery.statementSetter,
+				customQuery.parameters,
+				batchSize);
+	}
+	
 	
 	@Override
 	public List<String> getAllMeasurementLabels() throws CannotGetJdbcConnectionException {
@@ -284,10 +382,19 @@ public class SnapshotDaoImpl implements SnapshotDao
 	// Setter / Getter Methods
 	// ////////////////////////////////////////////////
 	// ////////////////////////////////////////////////
-	public void setSnapshotExperiment(String experimentName) throws MalformedConfigException, IOException
+	/**
+	 * Returns a DAO reading the supplied experiment, which shares this DAO's tagging data and pooled connections.
+	 * 
+	 * Made per request and then dropped, so requests on different experiments never share any state and run
+	 * in parallel. Making one costs nothing beyond looking up the experiment's connection pool.
+	 * 
+	 * @param	experimentName		Name of the experiment's database on the LemnaTec server
+	 * @return						DAO for the experiment's snapshots
+	 */
+	@Override
+	public SnapshotDao forExperiment(String experimentName)
 	{
-		this.experiment = experimentName;
-		this.snapshotDataSource = Config.experimentDataSource(experimentName);
+		return new SnapshotDaoImpl(experimentName, dataSources.experimentDataSource(experimentName), dataSources, taggingData);
 	}
 	
 	public void setTaggingData(TaggingDao tagging)
@@ -295,14 +402,56 @@ public class SnapshotDaoImpl implements SnapshotDao
 		this.taggingData = tagging;
 	}
 	
+	/**
+	 * @param dataSources	Pools of connections to the experiment databases, shared with the rest of the server
+	 */
+	public void setDataSources(DataSourceRegistry dataSources)
+	{
+		this.dataSources = dataSources;
+	}
+	
 	
 	// ////////////////////////////////////////////////
 	// ////////////////////////////////////////////////
 	// Helper Methods
 	// ////////////////////////////////////////////////
 	// ////////////////////////////////////////////////
-	private List<Snapshot> findCustomQueryBeforeTime_HELPER(final Query querySettings)
-					throws CannotGetJdbcConnectionException
+	/**
+	 * A custom query's SQL statement, with the setter for its parameters.
+	 */
+	private static class CustomQuery
+	{
+		final String sqlStatement;
+		final PreparedStatementSetter statementSetter;
+		final int parameters;
+		
+		CustomQuery(String sqlStatement, PreparedStatementSetter statementSetter, int parameters)
+		{
+			this.sqlStatement = sqlStatement;
+			this.statementSetter = statementSetter;
+			this.parameters = parameters;
+		}
+	}
+	
+	private CustomQuery customQuery(Query querySettings)
+	{
+		Timestamp startTime = querySettings.startTime;
+		Timestamp endTime = querySettings.endTime;
+		
+		if (startTime == null && endTime != null)
+			return customQueryBeforeTime_HELPER(querySettings);
+			
+		else if (startTime != null && endTime == null)
+			return customQueryAfterTime_HELPER(querySettings);
+		
+		else if (startTime != null && endTime != null)
+			return customQueryBetweenTime_HELPER(querySettings);
+
+		else
+			return customQueryAnyTime_HELPER(querySettings);
+	}
+	
+	private CustomQuery customQueryBeforeTime_HELPER(final Query querySettings)
 	{
 		String sqlStatement = SNAPSHOT_QUERY_VARIABLES
 				+ " WHERE "
@@ -324,11 +473,10 @@ public class SnapshotDaoImpl implements SnapshotDao
 			}
 		};
 		
-		return snapshotQuery(sqlStatement, statementSetter, querySettings);
+		return new CustomQuery(sqlStatement, statementSetter, 3);
 	}
 	
-	private List<Snapshot> findCustomQueryAfterTime_HELPER(final Query querySettings)
-					throws CannotGetJdbcConnectionException
+	private CustomQuery customQueryAfterTime_HELPER(final Query querySettings)
 	{
 		String sqlStatement = SNAPSHOT_QUERY_VARIABLES
 				+ " WHERE "
@@ -350,11 +498,10 @@ public class SnapshotDaoImpl implements SnapshotDao
 			}
 		};
 		
-		return snapshotQuery(sqlStatement, statementSetter, querySettings);
+		return new CustomQuery(sqlStatement, statementSetter, 3);
 	}
 	
-	private List<Snapshot> findCustomQueryAnyTime_HELPER(final Query querySettings)
-					throws CannotGetJdbcConnectionException
+	private CustomQuery customQueryAnyTime_HELPER(final Query querySettings)
 	{
 		String sqlStatement = SNAPSHOT_QUERY_VARIABLES 
 				+ " WHERE "
@@ -374,11 +521,10 @@ public class SnapshotDaoImpl implements SnapshotDao
 			}
 		};
 		
-		return snapshotQuery(sqlStatement, statementSetter, querySettings);
+		return new CustomQuery(sqlStatement, statementSetter, 2);
 	}
 	
-	private List<Snapshot> findCustomQueryBetweenTime_HELPER(final Query querySettings)
-					throws CannotGetJdbcConnectionException
+	private CustomQuery customQueryBetweenTime_HELPER(final Query querySettings)
 	{
 		String sqlStatement = SNAPSHOT_QUERY_VARIABLES
 				+ " WHERE "
@@ -402,32 +548,83 @@ public class SnapshotDaoImpl implements SnapshotDao
 			}
 		};
 		
-		return snapshotQuery(sqlStatement, statementSetter, querySettings);
+		return new CustomQuery(sqlStatement, statementSetter, 4);
 	}
 	
 	/**
-	 * Executes a query against the snapshot database and returns the resulting snapshots.
+	 * Executes a custom query against the snapshot database and returns the resulting snapshots, with their tiles.
 	 * 
-	 * The SQL Query must be compatible with the supplied prepared statement setter.
+	 * The snapshots are joined to their tiles in a single ordered query and grouped into snapshots as the rows are
+	 * read, rather than looking the tiles up by a list of every snapshot ID in a second query. The requested
+	 * data formats are bound as an array, so the statement is the same whichever formats are requested.
 	 * 
-	 * @param	sqlStatement			The SQL query compatible with the supplied prepared statement setter
-	 * @param	preparedStatment		A prepared statement setter to inject values into the sqlQuery
-	 * @param	processingParameters	Processing parameters, this method only uses the relevant post-processing parameters
-	 * @return							The snapshots resulting from the query
+	 * @param	customQuery			The snapshot query, whose parameters come first
+	 * @param	querySettings		Settings of the query, this method only uses which types of tile to include
+	 * @return						The snapshots resulting from the query
 	 * 
 	 * @throws	CannotGetJdbcConnectionException	Thrown if the database is not accessible
 	 */
-	private List<Snapshot> snapshotQuery(String sqlStatement, PreparedStatementSetter statementSetter, Query querySettings)
+	private List<Snapshot> snapshotTileQuery(final CustomQuery customQuery, Query querySettings)
 			throws CannotGetJdbcConnectionException
 	{
+		String sqlStatement = SNAPSHOT_TILE_QUERY_VARIABLES + customQuery.sqlStatement + SNAPSHOT_TILE_QUERY_JOIN;
+		
 		JdbcTemplate snapshotDatabase = new JdbcTemplate(snapshotDataSource);
-		List<Snapshot> snapshots = snapshotDatabase.query(sqlStatement, statementSetter, new SnapshotRowMapper(experiment));
+		List<Snapshot> snapshots = snapshotDatabase.query(sqlStatement, snapshotTileStatementSetter(customQuery, querySettings),
+				new SnapshotTileExtractor(experiment));
 		
-		doPost(snapshots, querySettings.includeVisible, querySettings.includeFluorescent, querySettings.includeInfrared);
+		loadTags(snapshots);
+		List<Tile> tiles = Snapshot.getTiles(snapshots);
+		if (tiles.size() > 0)
+			taggingData.loadTilesWithTags(tiles, experiment);
 		
 		return snapshots;
 	}
 	
+	/**
+	 * Sets the parameters of a custom query's joined snapshot and tile statement: the query's own, then the data
+	 * formats of the tiles to include.
+	 * 
+	 * @param	querySettings		Settings defining a customized query
+	 * @return						Setter of the statement's parameters
+	 */
+	public PreparedStatementSetter snapshotTileStatementSetter(Query querySettings)
+	{
+		return snapshotTileStatementSetter(customQuery(querySettings), querySettings);
+	}
+	
+	private static PreparedStatementSetter snapshotTileStatementSetter(final CustomQuery customQuery, Query querySettings)
+	{
+		final String dataFormats = dataFormats(
+				querySettings.includeVisible,
+				querySettings.includeFluorescent,
+				querySettings.includeInfrared);
+		
+		return new PreparedStatementSetter() {
+			@Override
+			public void setValues(PreparedStatement ps) throws SQLException
+			{
+				customQuery.statementSetter.setValues(ps);
+				ps.setString(customQuery.parameters + 1, dataFormats);
+			}
+		};
+	}
+	
+	/**
+	 * @return		The data formats of the included tiles as a PostgreSQL array literal, such as {1,6}
+	 */
+	private static String dataFormats(boolean includeVisible, boolean includeFluorescent, boolean includeInfrared)
+	{
+		List<String> dataFormats = new ArrayList<String>();
+		if (includeVisible)
+			dataFormats.add(VISIBLE_DATA_TYPE);
+		if (includeFluorescent)
+			dataFormats.add(FLUORESCENT_DATA_TYPE);
+		if (includeInfrared)
+			dataFormats.add(INFRARED_DATA_TYPE);
+		return "{" + StringOps.stringsAsCSV(dataFormats) + "}";
+	}
+	
 	/**
 	 * Executes a query against the snapshot database and returns the resulting snapshots.
 	 * 
@@ -456,7 +653,7 @@ public class SnapshotDaoImpl implements SnapshotDao
 	 * 
 	 * @throws	CannotGetJdbcConnectionException	Thrown if the database is not accessible
 	 */
-	private List<Tile> loadTiles(List<Snapshot> snapshots, boolean includeVisible, boolean includeFluorescent, boolean includeInfrared)
+	private List<Tile> loadTiles(DataSource dataSource, List<Snapshot> snapshots, boolean includeVisible, boolean includeFluorescent, boolean includeInfrared)
 			throws CannotGetJdbcConnectionException
 	{
 		if (snapshots == null || snapshots.size() == 0)
@@ -494,7 +691,7 @@ public class SnapshotDaoImpl implements SnapshotDao
 				}
 		getTiles += " ) ";
 		
-		JdbcTemplate tileDatabase = new JdbcTemplate(snapshotDataSource);
+		JdbcTemplate tileDatabase = new JdbcTemplate(dataSource);
 		List<Tile> tiles = tileDatabase.query(getTiles, new TileRowMapper(snapshots)); // loads tiles into snapshots
 		
 		taggingData.loadTilesWithTags(tiles, experiment);
@@ -520,7 +717,17 @@ public class SnapshotDaoImpl implements SnapshotDao
 	private void doPost(List<Snapshot> snapshots, boolean includeVisible, boolean includeFluorescent, boolean includeInfrared)
 	{
 		loadTags(snapshots);
-		loadTiles(snapshots, includeVisible, includeFluorescent, includeInfrared);
+		loadTiles(snapshotDataSource, snapshots, includeVisible, includeFluorescent, includeInfrared);
+	}
+	
+	/**
+	 * Fills in a batch read by a {@link SnapshotCursor}. The tiles are read through the supplied data source, which
+	 * is the cursor's own connection rather than the experiment's pool.
+	 */
+	void loadBatch(DataSource dataSource, List<Snapshot> snapshots, Query querySettings)
+	{
+		loadTags(snapshots);
+		loadTiles(dataSource, snapshots, querySettings.includeVisible, querySettings.includeFluorescent, querySettings.includeInfrared);
 	}
 	
 	private void loadTags(List<Snapshot> snapshots)
@@ -0,0 +1,58 @@
+package src.ddpsc.database.snapshot;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.jdbc.core.ResultSetExtractor;
+
+import src.ddpsc.database.tile.TileRowMapper;
+
+/**
+ * Groups the rows of a snapshot query joined to its tiles into snapshots, as the rows are read.
+ *
+ * The rows must be ordered by snapshot, so each snapshot's rows are together. A snapshot has one row per tile, or a
+ * single row with null tile columns if it has no tiles. Tile columns are prefixed with {@link #TILE_PREFIX} so they
+ * don't clash with the snapshot's own columns.
+ *
+ * @see SnapshotDaoImpl
+ *
+ * @author shill
+ */
+public class SnapshotTileExtractor implements ResultSetExtractor<List<Snapshot>>
+{
+	public static final String TILE_PREFIX = "tile_";
+
+	private final SnapshotRowMapper snapshotMapper;
+
+	public SnapshotTileExtractor(String experiment)
+	{
+		this.snapshotMapper = new SnapshotRowMapper(experiment);
+	}
+
+	@Override
+	public List<Snapshot> extractData(ResultSet resultSet) throws SQLException
+	{
+		List<Snapshot> snapshots = new ArrayList<Snapshot>();
+		Snapshot snapshot = null;
+
+		int line = 0;
+		while (resultSet.next()) {
+			int snapshotId = resultSet.getInt(SnapshotDaoImpl.SNAPSHOT_ID);
+			if (snapshot == null || snapshot.id != snapshotId) {
+				snapshot = snapshotMapper.mapRow(resultSet, line);
+				snapshots.add(snapshot);
+			}
+
+			// Snapshots without any tiles of the requested formats still get a row
+			resultSet.getInt(TILE_PREFIX + SnapshotDaoImpl.TILE_ID);
+			if ( ! resultSet.wasNull())
+				snapshot.addTile(TileRowMapper.mapTile(resultSet, snapshotId, TILE_PREFIX));
+
+			line++;
+		}
+
+		return snapshots;
+	}
+}
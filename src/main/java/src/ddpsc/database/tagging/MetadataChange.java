@@ -0,0 +1,45 @@
+package src.ddpsc.database.tagging;
+
+/**
+ * One line of a metadata change file: the new comment on a query, or the new tag on a snapshot or tile.
+ *
+ * Empty metadata removes the comment or tag. Once the change has been applied, or skipped, its result says what
+ * happened to it, and whether it changed anything.
+ *
+ * @see MetadataFileReader
+ *
+ * @author shill
+ */
+public class MetadataChange
+{
+	public static final String QUERY = "query";
+	public static final String SNAPSHOT = "snapshot";
+	public static final String TILE = "tile";
+
+	public final int line;
+	public final String type;
+	public final int id;
+	public final String metadata;
+
+	public String result;
+	public boolean applied;
+
+	/**
+	 * @param line			Line of the file the change is on, from 1
+	 * @param type			One of {@link #QUERY}, {@link #SNAPSHOT} or {@link #TILE}
+	 * @param id			ID of the query, snapshot or tile
+	 * @param metadata		The new comment or tag, empty to remove it
+	 */
+	public MetadataChange(int line, String type, int id, String metadata)
+	{
+		this.line = line;
+		this.type = type;
+		this.id = id;
+		this.metadata = metadata;
+	}
+
+	public boolean isRemoval()
+	{
+		return metadata == null || metadata.length() == 0;
+	}
+}
@@ -1,15 +1,14 @@
 package src.ddpsc.database.tagging;
 
 import java.io.BufferedReader;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.regex.MatchResult;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import src.ddpsc.config.ConfigReader;
 import src.ddpsc.exceptions.MalformedConfigException;
-import src.ddpsc.utility.Tuple;
 
 
 /**
@@ -34,7 +33,7 @@ import src.ddpsc.utility.Tuple;
  * 			EXPERIMENT_NAME		actualExperimentName
  * Where "EXPERIMENT_NAME" is a constant that shouldn't be changed and "actualExperimentName" is the user typed experiment name
  * corresponding to the snapshots that are to be changed. Any changes to snapshots in multiple experiments, therefore, requires
- * multiple files.
+ * multiple files. The experiment must be defined before any snapshot or tile is changed.
  * 
  * 
  * The format of the file is:
@@ -45,113 +44,156 @@ import src.ddpsc.utility.Tuple;
  * 		- Empty lines are ignored
  * 		- Lines beginning with '#' are ignored
  * 	ERROR:
- * 		- Lines with more than 2 whitespace separated strings throw errors
- * 		- Lines where the first (or only) string isn't of the form: (snapshot|query|tile)#(\\d+) throws an error
+ * 		- Lines where the first (or only) string isn't of the form: (snapshot|query|tile)#(\\d+)
+ * 		- A second EXPERIMENT_NAME line
+ * 		- Snapshot or tile lines before the EXPERIMENT_NAME line
+ * 
+ * The file is read a batch of changes at a time, so only one batch is held in memory however large the file is.
+ * Lines in error are recorded with their line number, up to {@link #MAX_ERRORS} of them, and reading carries on
+ * so every error in the file can be reported at once.
  * 
  * @author cjmcentee
  */
-public class MetadataFileReader extends ConfigReader
+public class MetadataFileReader
 {
 	private static final Pattern idComposition = Pattern.compile("^(snapshot|query|tile)#(\\d+)$");
+	private static final Pattern whitespace = Pattern.compile("\\s+");
+	
+	public static final String EXPERIMENT_NAME = "EXPERIMENT_NAME";
+	public static final int DEFAULT_BATCH_SIZE = 5000;
+	public static final int MAX_ERRORS = 100;
 	
-	public String experiment;
+	private final BufferedReader file;
+	private final int batchSize;
 	
-	public Map<Integer, String> queryCommentChanges;
-	public Map<Integer, String> snapshotTagChanges;
-	public Map<Integer, String> tileTagChanges;
+	private String experiment;
+	private int lineNumber = 0;
+	private int changesRead = 0;
+	
+	private final List<String> errors = new ArrayList<String>();
+	private int errorCount = 0;
 	
 	/**
-	 * Creates a new TaggingFileReader object that contains all the values defined
-	 * in the user's uploaded tagging file.
-	 * 
-	 * @throws MalformedConfigException			Thrown when the config file is incomplete
+	 * @param	file			The uploaded file, read as the batches are asked for
+	 * @param	batchSize		Most changes returned by each call to {@link #nextBatch()}
 	 */
-	public MetadataFileReader(BufferedReader file) throws MalformedConfigException
+	public MetadataFileReader(BufferedReader file, int batchSize)
 	{
-		super(file);
-		
-		queryCommentChanges = new HashMap<Integer, String>();
-		snapshotTagChanges = new HashMap<Integer, String>();
-		tileTagChanges = new HashMap<Integer, String>();
-		
-		processFile();
-		
-		if (snapshotTagChanges.size() > 0 || tileTagChanges.size() > 0)
-			if (experiment == null || experiment.equals(""))
-				throw new MalformedConfigException("Metadata change file that modifies snapshots or tiles must define an experiment.");
+		this.file = file;
+		this.batchSize = Math.max(batchSize, 1);
 	}
 	
-	protected void processColumn(String singleColumn) throws MalformedConfigException
+	/**
+	 * Reads the changes on the next lines of the file, until the batch is full or the file ends.
+	 * 
+	 * @return						The changes in the order of the file, empty once the whole file has been read
+	 * @throws IOException			Thrown if the file cannot be read
+	 */
+	public List<MetadataChange> nextBatch() throws IOException
 	{
-		processColumns(singleColumn, ""); // Empty metadata entry will be interpreted as a delete command
+		List<MetadataChange> batch = new ArrayList<MetadataChange>();
+		
+		String line;
+		while (batch.size() < batchSize && (line = file.readLine()) != null) {
+			lineNumber++;
+			line = line.trim();
+			
+			// Exclude commented lines and empty lines
+			if (line.startsWith(ConfigReader.COMMENT_CHARACTER) || line.length() == 0)
+				continue;
+			
+			try {
+				MetadataChange change = processLine(line);
+				if (change != null)
+					batch.add(change);
+			}
+			catch (MalformedConfigException e) {
+				errorCount++;
+				if (errors.size() < MAX_ERRORS)
+					errors.add("Line " + lineNumber + ": " + e.getMessage());
+			}
+		}
+		
+		changesRead += batch.size();
+		return batch;
 	}
 	
-	protected void processColumns(String name, String value) throws MalformedConfigException 
+	/**
+	 * @return		The change on the line, or null if the line sets the experiment
+	 */
+	private MetadataChange processLine(String line) throws MalformedConfigException
 	{
+		// The first column names the metadata, anything after it is the new metadata
+		String[] tokens = whitespace.split(line, 2);
+		String name = tokens[0];
+		String metadata = tokens.length > 1 ? tokens[1].trim() : ""; // Empty metadata entry will be interpreted as a delete command
+		
 		// EXPERIMENT_NAME line
-		if (name.equals("EXPERIMENT_NAME")) {
-			if (experiment == null || experiment.equals(""))
-				this.experiment = value;
-			else // experiment already set, the file should be thrown back to ensure the user knows what they're doing
-				throw new MalformedConfigException("The experiment cannot be set twice in the config. First value: " + experiment + " and second value: " + value);
-			return;
-		}
+		if (name.equals(EXPERIMENT_NAME)) {
+			if (experiment != null) // experiment already set, the file should be thrown back to ensure the user knows what they're doing
+				throw new MalformedConfigException("The experiment cannot be set twice in the config. First value: " + experiment + " and second value: " + metadata);
+			if (metadata.length() == 0)
+				throw new MalformedConfigException("The experiment name is missing.");
 			
-		// Metadata modification line
-		Tuple<String, Integer> metadataIdentifier = parseMetadataIdentifier(name.toLowerCase());
-		
-		String metadataType = metadataIdentifier.fst;
-		int id = metadataIdentifier.snd;
-		String metadata = value;
+			experiment = metadata;
+			return null;
+		}
 		
-		if (metadataType.equals("query"))
-			queryCommentChanges.put(id, metadata);
+		// Metadata modification line
+		Matcher nameMatch = idComposition.matcher(name.toLowerCase());
+		if (nameMatch.matches() == false)
+			throw new MalformedConfigException("Variable identifier '" + name
+					+ "' invalid. Must be of form: (snapshot|query|tile)#(\\d+)");
 		
-		else if (metadataType.equals("snapshot"))
-			snapshotTagChanges.put(id, metadata);
+		String metadataType = nameMatch.group(1);
+		int id;
+		try {
+			id = Integer.parseInt(nameMatch.group(2));
+		}
+		catch (NumberFormatException e) {
+			throw new MalformedConfigException("The ID of '" + name + "' is too large.");
+		}
 		
-		else if (metadataType.equals("tile"))
-			tileTagChanges.put(id, metadata);
+		if ( ! metadataType.equals(MetadataChange.QUERY) && experiment == null)
+			throw new MalformedConfigException("Metadata change file that modifies snapshots or tiles must define an experiment before them.");
 		
-		else
-			throw new MalformedConfigException("Metadata type '" + metadataType + "' not one of 'query', 'snapshot', or 'tag'");
+		return new MetadataChange(lineNumber, metadataType, id, metadata);
 	}
 	
-	protected void processLine(String line) throws MalformedConfigException
+	
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	// Get/Set Methods
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	/**
+	 * @return		The experiment of the snapshots and tiles changed, or null if it hasn't been read yet
+	 */
+	public String getExperiment()
 	{
-		System.out.println("LINE " + line);
-		
-		// CASE: Line has no whitespaces making it a single column
-		if ( ! Pattern.matches(".*\\s+.*", line)) {
-			processColumn(line);
-			return;
-		}
-		
-		// CASE: Line has more than one column, treat the first one as the name of the metadata
-		// And the remaining columns are the new metadata
-		// I tried using Regex but java's regex system is FUBAR. More hacking!
-		String[] tokens = line.split("\\s+");
-		String metadataIdentifier = tokens[0];
-		
-		// Remove the metadata identifier from the line and what remains is the metadata itself
-		String metadata = line.substring(metadataIdentifier.length()).trim();
-		
-		processColumns(metadataIdentifier, metadata);
+		return experiment;
 	}
 	
-	private Tuple<String, Integer> parseMetadataIdentifier(String identifyingString) throws MalformedConfigException
+	/**
+	 * @return		The first {@link #MAX_ERRORS} errors read, each prefixed by its line
+	 */
+	public List<String> getErrors()
 	{
-		Matcher nameMatch = idComposition.matcher(identifyingString);
-		
-		if (nameMatch.matches() == false)
-			throw new MalformedConfigException("Variable identifier '" + identifyingString
-					+ "' invalid. Must be of form: (snapshot|query|tile)#(\\d+)");
-		
-		MatchResult tokenize = nameMatch.toMatchResult();
-		
-		String metadataType = tokenize.group(1);
-		int id = Integer.parseInt(tokenize.group(2));
-		
-		return new Tuple<String, Integer>(metadataType, id);
+		return errors;
+	}
+	
+	public int getErrorCount()
+	{
+		return errorCount;
+	}
+	
+	public int getLinesRead()
+	{
+		return lineNumber;
+	}
+	
+	public int getChangesRead()
+	{
+		return changesRead;
 	}
 }
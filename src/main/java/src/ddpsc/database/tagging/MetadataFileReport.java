@@ -0,0 +1,37 @@
+package src.ddpsc.database.tagging;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What became of an uploaded metadata file, returned to the user who uploaded it.
+ *
+ * Either every change in the file was committed, or none were. Only the changes that weren't applied are listed,
+ * and only the first {@link #MAX_REPORTED_CHANGES} of those, so the report stays small however large the file.
+ *
+ * @see TaggingDao#applyMetadataFile(MetadataFileReader)
+ *
+ * @author shill
+ */
+public class MetadataFileReport
+{
+	public static final int MAX_REPORTED_CHANGES = 1000;
+
+	public boolean committed;
+
+	public int lines;
+	public int changes;
+	public int applied;
+
+	public int errorCount;
+	public List<String> errors = new ArrayList<String>();
+
+	public List<MetadataChange> unapplied = new ArrayList<MetadataChange>();
+
+	void reportUnapplied(List<MetadataChange> batch)
+	{
+		for (MetadataChange change : batch)
+			if ( ! change.applied && unapplied.size() < MAX_REPORTED_CHANGES)
+				unapplied.add(change);
+	}
+}
@@ -4,19 +4,19 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.ResultSetExtractor;
 
 import src.ddpsc.database.snapshot.Snapshot;
+import src.ddpsc.utility.IntIndex;
 
 class SnapshotsTagLoader implements ResultSetExtractor<Boolean>
 {
-	Map<Integer, Snapshot> snapshots;
+	IntIndex<Snapshot> snapshots;
 	public SnapshotsTagLoader(List<Snapshot> snapshots)
 	{
-		this.snapshots = Snapshot.getSnapshotIdMap(snapshots);
+		this.snapshots = Snapshot.getSnapshotIdIndex(snapshots);
 	}
 	
 	public Boolean extractData(ResultSet resultSet) throws SQLException, DataAccessException
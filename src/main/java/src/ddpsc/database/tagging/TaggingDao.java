@@ -1,5 +1,6 @@
 package src.ddpsc.database.tagging;
 
+import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
 
@@ -41,4 +42,8 @@ public interface TaggingDao
 	// Experiments
 	void loadExperimentsWithTags(Collection<Experiment> experiments);
 	int setExperimentMetadata(Collection<Experiment> experiments);
+	
+	// Metadata files
+	int applyMetadataChanges(String experiment, List<MetadataChange> changes);
+	MetadataFileReport applyMetadataFile(MetadataFileReader file) throws IOException;
 }
@@ -1,19 +1,59 @@
 package src.ddpsc.database.tagging;
 
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sql.DataSource;
 
 import org.apache.log4j.Logger;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.jdbc.BadSqlGrammarException;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import src.ddpsc.database.experiment.Experiment;
 import src.ddpsc.database.experiment.ExperimentRowMapper;
+import src.ddpsc.database.queries.QueryDaoImpl;
 import src.ddpsc.database.snapshot.Snapshot;
 import src.ddpsc.database.tile.Tile;
+import src.ddpsc.utility.IntIndex;
 import src.ddpsc.utility.StringOps;
 
 /**
@@ -50,15 +90,37 @@ import src.ddpsc.utility.StringOps;
  * 			`number_tiles`			INT UNSIGNED NOT NULL,		number of tiles since the last check
  * 			`last_synchronized`		DATETIME,					last time the service checked the lemnatec database
  * 
+ * Tags are loaded in chunks of {@link #MAX_TAGS_PER_QUERY} IDs, bound as parameters, with the chunks run at once over
+ * the metadata connection pool. ID sets of at least the temporary table threshold are instead written to a temporary
+ * table and joined against, in one query on one connection, which needs the CREATE TEMPORARY TABLES privilege.
+ * 
+ * Tag IDs by name, and the relation tables known to exist, are cached for the life of the server, so reading or
+ * writing tags is one statement once the tag and table have been seen. New tags are written through the cache. A
+ * write that fails because a cached tag or table was since deleted from the database forgets it and is retried once,
+ * and a failed read forgets its table so the next read makes it again.
+ * 
  * @author cjmcentee
  */
 public class TaggingDaoImpl implements TaggingDao
 {
 	private static final Logger log = Logger.getLogger(TaggingDaoImpl.class);
 	
-	public static final int MAX_TAGS_PER_QUERY = 10000;
+	public static final int MAX_TAGS_PER_QUERY = 1000;			// IDs bound in each chunk's query
+	public static final int DEFAULT_TAG_LOAD_THREADS = 4;
+	public static final int DEFAULT_TEMP_TABLE_THRESHOLD = 50000;
+	public static final int MAX_CHANGES_PER_BATCH = 1000;		// Statements sent to the database at once
 	
 	private DataSource metadataDataSource;
+	private DataSourceTransactionManager metadataTransactionManager;
+	private TransactionTemplate metadataTransactions;		// Joins the transaction underway, if there is one
+	private TransactionTemplate separateTransactions;		// Suspends the transaction underway, if there is one
+	
+	private int tagLoadThreads = DEFAULT_TAG_LOAD_THREADS;
+	private int tempTableThreshold = DEFAULT_TEMP_TABLE_THRESHOLD;
+	private ThreadPoolExecutor chunkExecutor;
+	
+	private final ConcurrentMap<String, Integer> tagIds = new ConcurrentHashMap<String, Integer>();
+	private final Set<String> knownTables = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 	
 	// ////////////////////////////////////////////////
 	// ////////////////////////////////////////////////
@@ -90,6 +152,10 @@ public class TaggingDaoImpl implements TaggingDao
 	public final static String NUMBER_TILES = "number_tiles";
 	public final static String LAST_UPDATED = "last_synchronized";
 	
+	// The IDs to load tags for, in temporary table mode. Only seen by the connection that made it
+	public final static String LOAD_ID_TABLE = "tag_load_ids";
+	public final static String LOAD_ID = "id";
+	
 	
 	// ////////////////////////////////////////////////
 	// ////////////////////////////////////////////////
@@ -98,36 +164,32 @@ public class TaggingDaoImpl implements TaggingDao
 	// ////////////////////////////////////////////////
 	private String addSnapshotTable(String experiment)
 	{
-		String snapshotTable = snapshotTable(experiment);
-		
-		String makeTable = "CREATE TABLE IF NOT EXISTS `" + snapshotTable + "` ("
-				+ " `" + SNAPSHOT_ID + "` INT(10) UNSIGNED NOT NULL, "
-				+ " `" + TAG_ID + "` INT(10) UNSIGNED NOT NULL, "
-				+ " PRIMARY KEY (`" + SNAPSHOT_ID + "`), "
-				+ " FOREIGN KEY (`" + TAG_ID + "`) REFERENCES `" + TAG_TABLE + "` (`" + TAG_ID + "`) ON DELETE CASCADE "
-				+ " ) ENGINE=InnoDB  DEFAULT CHARSET=utf8";
-		
-		JdbcTemplate taggingDatabase = new JdbcTemplate(metadataDataSource);
-		taggingDatabase.update(makeTable);
-		
-		return snapshotTable;
+		return addRelationTable(snapshotTable(experiment), SNAPSHOT_ID);
 	}
 	
 	private String addTileTable(String experiment)
 	{
-		String tileTable = tileTable(experiment);
+		return addRelationTable(tileTable(experiment), TILE_ID);
+	}
+	
+	// Makes the table relating IDs to their tags, unless it's already known to exist
+	private String addRelationTable(String table, String idColumn)
+	{
+		if (knownTables.contains(table))
+			return table;
 		
-		String makeTable = "CREATE TABLE IF NOT EXISTS `" + tileTable + "` ("
-				+ " `" + TILE_ID	+ "` INT(10) unsigned NOT NULL,"
+		String makeTable = "CREATE TABLE IF NOT EXISTS `" + table + "` ("
+				+ " `" + idColumn + "` INT(10) UNSIGNED NOT NULL, "
 				+ " `" + TAG_ID + "` INT(10) UNSIGNED NOT NULL, "
-				+ " PRIMARY KEY (`" + TILE_ID + "`), "
+				+ " PRIMARY KEY (`" + idColumn + "`), "
 				+ " FOREIGN KEY (`" + TAG_ID + "`) REFERENCES `" + TAG_TABLE + "` (`" + TAG_ID + "`) ON DELETE CASCADE "
 				+ " ) ENGINE=InnoDB  DEFAULT CHARSET=utf8";
 		
 		JdbcTemplate taggingDatabase = new JdbcTemplate(metadataDataSource);
 		taggingDatabase.update(makeTable);
 		
-		return tileTable;
+		knownTables.add(table);
+		return table;
 	}
 	
 	// ////////////////////////////////////////////////
@@ -149,16 +211,25 @@ public class TaggingDaoImpl implements TaggingDao
 	{
 		log.info("Attempting to retrieve snapshots from " + experiment + " with tags being one of " + tags + ".");
 		
+		if (tags.size() == 0)
+			return new ArrayList<Integer>();
+		
 		String snapshotTable = addSnapshotTable(experiment);
-		List<Integer> tagIds = addTags(tags);
 		
 		String getSnapshotsQuery = "SELECT s."+SNAPSHOT_ID + " "
 				+ " FROM " + snapshotTable + " AS s "
 				+ " NATURAL JOIN " + TAG_TABLE + " AS t "
-				+ " WHERE t."+TAG_NAME + " IN (" + StringOps.idsAsCSV(tagIds) + ")";
+				+ " WHERE t."+TAG_NAME + " IN (" + StringOps.placeholders(tags.size()) + ")";
 		
 		JdbcTemplate taggingDatabase = new JdbcTemplate(metadataDataSource);
-		List<Integer> snapshotIds = taggingDatabase.query(getSnapshotsQuery, new SnapshotIdRowMapper());
+		List<Integer> snapshotIds;
+		try {
+			snapshotIds = taggingDatabase.query(getSnapshotsQuery, tags.toArray(), new SnapshotIdRowMapper());
+		}
+		catch (BadSqlGrammarException e) {
+			knownTables.remove(snapshotTable);
+			throw e;
+		}
 		
 		log.info(snapshotIds.size() + " many snapshots found to have tags being one of " + tags + "'.");
 		
@@ -173,38 +244,18 @@ public class TaggingDaoImpl implements TaggingDao
 	
 	@Override
 	public void loadSnapshotsWithTags(List<Snapshot> snapshots)
-	{
-		log.info("Attempting to load " + snapshots.size() + "-many snapshots with tags.");
-		
-		log.info("i ranging up to " + snapshots.size() / MAX_TAGS_PER_QUERY);
-		for (int i = 0; i < snapshots.size() / MAX_TAGS_PER_QUERY; i++) {
-			log.info("i from " + i*MAX_TAGS_PER_QUERY + " to " + Math.min((i + 1)*MAX_TAGS_PER_QUERY, snapshots.size()));
-			List<Snapshot> snapshotsSubList = snapshots.subList(
-					i*MAX_TAGS_PER_QUERY,
-					Math.min((i + 1)*MAX_TAGS_PER_QUERY, snapshots.size()));
-			loadSnapshotsWithTags_HELPER(snapshotsSubList);
-		}
-		
-		log.info(snapshots.size() + "-many snapshots have been loaded with tags.");
-	}
-	
-	private void loadSnapshotsWithTags_HELPER(List<Snapshot> snapshots)
 	{
 		if (snapshots.size() == 0)
 			return;
 		
+		log.info("Attempting to load " + snapshots.size() + "-many snapshots with tags.");
+		
 		String experiment = snapshots.get(0).experiment;
 		String snapshotTable = addSnapshotTable(experiment);
 		
-		List<Integer> snapshotIds = Snapshot.getIds(snapshots);
-		
-		String tagQuery = "SELECT tag."+TAG_NAME + ", snapshot."+SNAPSHOT_ID + " "
-				+ " FROM " + TAG_TABLE + " AS tag "
-				+ " NATURAL JOIN " + snapshotTable + " AS snapshot "
-				+ " WHERE snapshot."+SNAPSHOT_ID + " IN (" + StringOps.idsAsCSV(snapshotIds) + ")";
+		loadTags(snapshotTable, SNAPSHOT_ID, Snapshot.getIds(snapshots), new SnapshotsTagLoader(snapshots));
 		
-		JdbcTemplate taggingDatabase = new JdbcTemplate(metadataDataSource);
-		taggingDatabase.query(tagQuery, new SnapshotsTagLoader(snapshots));
+		log.info(snapshots.size() + "-many snapshots have been loaded with tags.");
 	}
 	
 	@Override
@@ -223,19 +274,7 @@ public class TaggingDaoImpl implements TaggingDao
 		
 		log.info("Attempting to set new tag, '" + newTag + "', on the " + snapshotIds.size() + "-many snapshots.");
 		
-		String snapshotTable = addSnapshotTable(experiment);
-		int tagId = addTag(newTag);
-		
-		String addTagRelation = "REPLACE INTO " + snapshotTable + " (" + TAG_ID + ", " + SNAPSHOT_ID + ") VALUES ";
-		for (int i = 0; i < snapshotIds.size(); i++) {
-			int id = snapshotIds.get(i);
-			if (i != 0)
-				addTagRelation += ", ";
-			addTagRelation += "('" + tagId + "', '" + id + "')";
-		}
-		
-		JdbcTemplate taggingDatabase = new JdbcTemplate(metadataDataSource);
-		taggingDatabase.update(addTagRelation);
+		changeTags(addSnapshotTable(experiment), SNAPSHOT_ID, snapshotIds, newTag);
 		
 		log.info("Successfully set the new tag, '" + newTag + "', on the " + snapshotIds.size() + "-many snapshots.");
 	}
@@ -275,32 +314,11 @@ public class TaggingDaoImpl implements TaggingDao
 		
 		log.info("Attempting to load " + tiles.size() + "-many tiles with tags.");
 		
-		log.info("tile tags index ranging up to " + tiles.size() / MAX_TAGS_PER_QUERY);
-		for (int i = 0; i < tiles.size() / MAX_TAGS_PER_QUERY; i++) {
-			
-			log.info("tile tags index from " + i*MAX_TAGS_PER_QUERY + " to " + Math.min((i + 1)*MAX_TAGS_PER_QUERY, tiles.size()));
-			
-			List<Tile> tilesSubList = tiles.subList(
-					i*MAX_TAGS_PER_QUERY,
-					Math.min((i + 1)*MAX_TAGS_PER_QUERY, tiles.size()));
-			loadTilessWithTags_HELPER(tilesSubList, experiment);
-		}
-		
-		log.info(tiles.size() + "-many tiles have been loaded with tags.");
-	}
-	
-	private void loadTilessWithTags_HELPER(List<Tile> tiles, String experiment)
-	{
 		String tileTable = addTileTable(experiment);
-		List<Integer> tileIds = Tile.getIds(tiles);
 		
-		String tagQuery = "SELECT tag."+TAG_NAME + ", tile."+TILE_ID + " "
-				+ " FROM " + TAG_TABLE + " AS tag "
-				+ " NATURAL JOIN " + tileTable + " AS tile "
-				+ " WHERE tile."+TILE_ID + " IN (" + StringOps.idsAsCSV(tileIds) + ") ";
+		loadTags(tileTable, TILE_ID, Tile.getIds(tiles), new TilesTagLoader(tiles));
 		
-		JdbcTemplate taggingDatabase = new JdbcTemplate(metadataDataSource);
-		taggingDatabase.query(tagQuery, new TilesTagLoader(tiles));
+		log.info(tiles.size() + "-many tiles have been loaded with tags.");
 	}
 	
 	@Override
@@ -319,19 +337,7 @@ public class TaggingDaoImpl implements TaggingDao
 		
 		log.info("Attempting to set new tag, '" + newTag + "', on " + tileIds.size() + "-many tiles.");
 		
-		String tileTable = addTileTable(experiment);
-		int tagId = addTag(newTag);
-		
-		String addTagRelation = "REPLACE INTO " + tileTable + " (" + TAG_ID + ", " + TILE_ID + ") VALUES ";
-		for (int i = 0; i < tileIds.size(); i++) {
-			int id = tileIds.get(i);
-			if (i != 0)
-				addTagRelation += ", ";
-			addTagRelation += "('" + tagId + "', '" + id + "')";
-		}
-		
-		JdbcTemplate taggingDatabase = new JdbcTemplate(metadataDataSource);
-		taggingDatabase.update(addTagRelation);
+		changeTags(addTileTable(experiment), TILE_ID, tileIds, newTag);
 		
 		log.info("Successfully set the new tag, '" + newTag + "', on " + tileIds.size() + "-many tiles.");
 	}
@@ -359,6 +365,253 @@ public class TaggingDaoImpl implements TaggingDao
 	}
 	
 	
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	// Tag Writing
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	/**
+	 * Sets the tag on the supplied IDs in a relation table, adding the tag if it's new.
+	 * 
+	 * Usually a single statement, as the tag's ID and the table are cached. If either was deleted from the database
+	 * since it was cached the write fails, so both are forgotten, looked up or made again, and the write retried once.
+	 */
+	private void changeTags(String table, String idColumn, List<Integer> ids, String newTag)
+	{
+		try {
+			replaceTagRelations(table, idColumn, ids, addTag(newTag));
+		}
+		catch (DataAccessException e) {
+			// A deleted tag breaks the foreign key, a deleted table reads as bad SQL
+			if ( ! (e instanceof DataIntegrityViolationException || e instanceof BadSqlGrammarException))
+				throw e;
+			
+			log.warn("Could not set the tag '" + newTag + "' in " + table + ", retrying without the cached tag and table.", e);
+			forgetTagAndTable(newTag, table);
+			replaceTagRelations(addRelationTable(table, idColumn), idColumn, ids, addTag(newTag));
+		}
+	}
+	
+	private void replaceTagRelations(String table, String idColumn, List<Integer> ids, int tagId)
+	{
+		JdbcTemplate taggingDatabase = new JdbcTemplate(metadataDataSource);
+		
+		for (List<Integer> chunk : chunk(ids, MAX_TAGS_PER_QUERY)) {
+			StringBuilder addTagRelation = new StringBuilder("REPLACE INTO " + table + " (" + TAG_ID + ", " + idColumn + ") VALUES ");
+			Object[] relations = new Object[chunk.size() * 2];
+			for (int i = 0; i < chunk.size(); i++) {
+				addTagRelation.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+				relations[2*i] = tagId;
+				relations[2*i + 1] = chunk.get(i);
+			}
+			
+			taggingDatabase.update(addTagRelation.toString(), relations);
+		}
+	}
+	
+	private void forgetTagAndTable(String tag, String table)
+	{
+		tagIds.remove(tag);
+		knownTables.remove(table);
+	}
+	
+	
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	// Tag Loading
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	/**
+	 * Reads the tags of the supplied IDs from a relation table into the tag loader.
+	 * 
+	 * The loader is shared by every chunk, so must only read its own state while loading. Each ID's tag is written
+	 * by one chunk, as each ID is in one chunk.
+	 * 
+	 * @param	table			The relation table of IDs and their tags
+	 * @param	idColumn		The ID column of the relation table
+	 * @param	ids				The IDs to load tags for
+	 * @param	tagLoader		Sets the tags read onto their snapshots or tiles
+	 */
+	private void loadTags(String table, String idColumn, List<Integer> ids, ResultSetExtractor<Boolean> tagLoader)
+	{
+		try {
+			loadTags_HELPER(table, idColumn, ids, tagLoader);
+		}
+		catch (BadSqlGrammarException e) {
+			knownTables.remove(table);
+			throw e;
+		}
+	}
+	
+	private void loadTags_HELPER(String table, String idColumn, List<Integer> ids, ResultSetExtractor<Boolean> tagLoader)
+	{
+		if (tempTableThreshold > 0 && ids.size() >= tempTableThreshold) {
+			loadTagsByTempTable(table, idColumn, ids, tagLoader);
+			return;
+		}
+		
+		List<List<Integer>> chunks = chunk(ids, MAX_TAGS_PER_QUERY);
+		log.info("Loading tags from " + table + " in " + chunks.size() + " chunks.");
+		
+		// A lone chunk isn't worth the hand off
+		if (chunks.size() == 1) {
+			loadTagChunk(table, idColumn, chunks.get(0), tagLoader);
+			return;
+		}
+		
+		List<Callable<Boolean>> chunkLoads = new ArrayList<Callable<Boolean>>(chunks.size());
+		for (List<Integer> chunk : chunks)
+			chunkLoads.add(new TagChunkLoad(table, idColumn, chunk, tagLoader));
+		
+		List<Future<Boolean>> loaded;
+		try {
+			loaded = chunkExecutor().invokeAll(chunkLoads);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DataRetrievalFailureException("Interrupted while loading tags from " + table + ".", e);
+		}
+		
+		for (Future<Boolean> chunkLoad : loaded) {
+			try {
+				chunkLoad.get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new DataRetrievalFailureException("Interrupted while loading tags from " + table + ".", e);
+			}
+			catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				throw new DataRetrievalFailureException("Could not load tags from " + table + ".", e.getCause());
+			}
+		}
+	}
+	
+	private Boolean loadTagChunk(String table, String idColumn, List<Integer> ids, ResultSetExtractor<Boolean> tagLoader)
+	{
+		String tagQuery = "SELECT tag."+TAG_NAME + ", relation."+idColumn + " "
+				+ " FROM " + TAG_TABLE + " AS tag "
+				+ " NATURAL JOIN " + table + " AS relation "
+				+ " WHERE relation."+idColumn + " IN (" + StringOps.placeholders(ids.size()) + ")";
+		
+		JdbcTemplate taggingDatabase = new JdbcTemplate(metadataDataSource);
+		return taggingDatabase.query(tagQuery, ids.toArray(), tagLoader);
+	}
+	
+	/**
+	 * Writes the IDs into a temporary table, then reads their tags by joining against it. The temporary table only
+	 * exists on the connection that made it, so everything is done on one connection, and the table is dropped
+	 * before the connection goes back to the pool.
+	 */
+	private void loadTagsByTempTable(final String table, final String idColumn, final List<Integer> ids,
+			final ResultSetExtractor<Boolean> tagLoader)
+	{
+		log.info("Loading tags from " + table + " for " + ids.size() + " IDs through a temporary table.");
+		
+		JdbcTemplate taggingDatabase = new JdbcTemplate(metadataDataSource);
+		taggingDatabase.execute(new ConnectionCallback<Boolean>() {
+			@Override
+			public Boolean doInConnection(Connection connection) throws SQLException
+			{
+				JdbcTemplate session = new JdbcTemplate(new SingleConnectionDataSource(connection, true));
+				
+				session.update("DROP TEMPORARY TABLE IF EXISTS " + LOAD_ID_TABLE);
+				session.update("CREATE TEMPORARY TABLE " + LOAD_ID_TABLE + " ("
+						+ " `" + LOAD_ID + "` INT(10) UNSIGNED NOT NULL, "
+						+ " PRIMARY KEY (`" + LOAD_ID + "`) "
+						+ " )");
+				try {
+					// Many rows per insert, as a batch of single row inserts is a round trip each
+					for (List<Integer> chunk : chunk(ids, MAX_TAGS_PER_QUERY)) {
+						StringBuilder insertIds = new StringBuilder("INSERT IGNORE INTO " + LOAD_ID_TABLE + " (" + LOAD_ID + ") VALUES ");
+						for (int i = 0; i < chunk.size(); i++)
+							insertIds.append(i == 0 ? "(?)" : ", (?)");
+						session.update(insertIds.toString(), chunk.toArray());
+					}
+					
+					String tagQuery = "SELECT tag."+TAG_NAME + ", relation."+idColumn + " "
+							+ " FROM " + TAG_TABLE + " AS tag "
+							+ " NATURAL JOIN " + table + " AS relation "
+							+ " JOIN " + LOAD_ID_TABLE + " AS ids ON ids."+LOAD_ID + " = relation."+idColumn;
+					return session.query(tagQuery, tagLoader);
+				}
+				finally {
+					session.update("DROP TEMPORARY TABLE IF EXISTS " + LOAD_ID_TABLE);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Splits the list into consecutive views of at most the chunk size, the last holding whatever remains.
+	 */
+	public static <T> List<List<T>> chunk(List<T> list, int chunkSize)
+	{
+		List<List<T>> chunks = new ArrayList<List<T>>((list.size() + chunkSize - 1) / chunkSize);
+		for (int from = 0; from < list.size(); from += chunkSize)
+			chunks.add(list.subList(from, Math.min(from + chunkSize, list.size())));
+		
+		return chunks;
+	}
+	
+	/**
+	 * Runs the chunk loads, and the calling request runs them itself once every loading thread is busy, so the
+	 * loads never take more connections than there are threads and requests loading tags.
+	 */
+	private synchronized ThreadPoolExecutor chunkExecutor()
+	{
+		if (chunkExecutor == null) {
+			chunkExecutor = new ThreadPoolExecutor(
+					0,
+					Math.max(tagLoadThreads, 1),
+					60L, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(),
+					new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+						
+						@Override
+						public Thread newThread(Runnable runnable)
+						{
+							Thread thread = new Thread(runnable, "Tag Loader " + count.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					},
+					new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+		return chunkExecutor;
+	}
+	
+	public synchronized void shutdown()
+	{
+		if (chunkExecutor != null)
+			chunkExecutor.shutdownNow();
+	}
+	
+	private class TagChunkLoad implements Callable<Boolean>
+	{
+		private final String table;
+		private final String idColumn;
+		private final List<Integer> ids;
+		private final ResultSetExtractor<Boolean> tagLoader;
+		
+		TagChunkLoad(String table, String idColumn, List<Integer> ids, ResultSetExtractor<Boolean> tagLoader)
+		{
+			this.table = table;
+			this.idColumn = idColumn;
+			this.ids = ids;
+			this.tagLoader = tagLoader;
+		}
+		
+		@Override
+		public Boolean call()
+		{
+			return loadTagChunk(table, idColumn, ids, tagLoader);
+		}
+	}
+	
+	
 	// ////////////////////////////////////////////////
 	// ////////////////////////////////////////////////
 	// Experiment Operations
@@ -430,6 +683,324 @@ public class TaggingDaoImpl implements TaggingDao
 		return sqlValues.toString();
 	}
 	
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	// Metadata File Operations
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	/**
+	 * Applies an uploaded metadata file a batch at a time as it is read, all in one transaction, so either every
+	 * change is made or none are.
+	 * 
+	 * Once any line of the file is found to be in error no more batches are applied, but the rest of the file is
+	 * still read so all its errors are reported, and the transaction is then rolled back.
+	 * 
+	 * @param	file				The file, read as it is applied
+	 * @return						Whether the file was committed, how many changes it held and applied, and why
+	 * 								changes weren't applied
+	 * @throws	IOException			Thrown if the file cannot be read, nothing is changed
+	 */
+	@Override
+	public MetadataFileReport applyMetadataFile(MetadataFileReader file) throws IOException
+	{
+		log.info("Attempting to apply a metadata file.");
+		
+		MetadataFileReport report = new MetadataFileReport();
+		TransactionStatus transaction = metadataTransactionManager.getTransaction(new DefaultTransactionDefinition());
+		try {
+			List<MetadataChange> batch;
+			while ((batch = file.nextBatch()).size() > 0) {
+				if (file.getErrorCount() > 0)
+					continue;
+				
+				report.applied += applyMetadataChanges(file.getExperiment(), batch);
+				report.reportUnapplied(batch);
+			}
+			
+			report.lines = file.getLinesRead();
+			report.changes = file.getChangesRead();
+			report.errorCount = file.getErrorCount();
+			report.errors = file.getErrors();
+			
+			if (file.getErrorCount() > 0) {
+				metadataTransactionManager.rollback(transaction);
+				report.applied = 0;
+				report.unapplied.clear();
+				
+				log.info("Rejected a metadata file with " + file.getErrorCount() + " errors, no changes were made.");
+				return report;
+			}
+			
+			metadataTransactionManager.commit(transaction);
+			report.committed = true;
+		}
+		finally {
+			if ( ! transaction.isCompleted())
+				metadataTransactionManager.rollback(transaction);
+		}
+		
+		log.info("Successfully applied " + report.applied + " of the " + report.changes + "-many changes of a metadata file.");
+		
+		return report;
+	}
+	
+	/**
+	 * Applies a batch of metadata changes in one transaction, or as part of the transaction already underway.
+	 * 
+	 * Only the last change in the batch to each query, snapshot or tile is applied, the earlier ones are marked as
+	 * replaced. The rest are sent as batches of prepared statements, tag changes grouped by tag, and each change's
+	 * result is read from its statement's update count.
+	 * 
+	 * Tags and relation tables are added in a separate transaction, first. MySQL commits any transaction underway
+	 * when a table is made, and a rolled back tag would otherwise stay cached. So a rolled back file can leave unused
+	 * tags behind, but never cached tags that don't exist. The batch binds the tag IDs read then, not the shared
+	 * cache, which other requests may change meanwhile. If a tag or table was deleted behind the cache, its changes
+	 * fail, and are retried once with the tags and table looked up or made again, like {@link #changeTags}.
+	 * 
+	 * @param	experiment		The experiment of the snapshots and tiles changed, may be null if there are none
+	 * @param	changes			The changes, in the order of the file
+	 * @return					Number of changes applied
+	 */
+	@Override
+	public int applyMetadataChanges(final String experiment, List<MetadataChange> changes)
+	{
+		log.info("Attempting to apply " + changes.size() + "-many metadata changes.");
+		
+		// The latest change to each query, snapshot and tile
+		IntIndex<MetadataChange> latestComments = new IntIndex<MetadataChange>(changes.size());
+		IntIndex<MetadataChange> latestSnapshotTags = new IntIndex<MetadataChange>(changes.size());
+		IntIndex<MetadataChange> latestTileTags = new IntIndex<MetadataChange>(changes.size());
+		for (MetadataChange change : changes) {
+			IntIndex<MetadataChange> latest = change.type.equals(MetadataChange.QUERY) ? latestComments
+					: change.type.equals(MetadataChange.SNAPSHOT) ? latestSnapshotTags : latestTileTags;
+			
+			MetadataChange replaced = latest.get(change.id);
+			if (replaced != null)
+				replaced.result = "Replaced by line " + change.line;
+			latest.put(change.id, change);
+		}
+		
+		final List<MetadataChange> comments = new ArrayList<MetadataChange>();
+		final List<MetadataChange> snapshotTags = new ArrayList<MetadataChange>();
+		final List<MetadataChange> snapshotRemovals = new ArrayList<MetadataChange>();
+		final List<MetadataChange> tileTags = new ArrayList<MetadataChange>();
+		final List<MetadataChange> tileRemovals = new ArrayList<MetadataChange>();
+		final Set<String> tags = new LinkedHashSet<String>();
+		
+		for (MetadataChange change : changes) {
+			if (change.type.equals(MetadataChange.QUERY)) {
+				if (latestComments.get(change.id) == change)
+					comments.add(change);
+				continue;
+			}
+			
+			if (change.type.equals(MetadataChange.SNAPSHOT) && latestSnapshotTags.get(change.id) == change)
+				(change.isRemoval() ? snapshotRemovals : snapshotTags).add(change);
+			else if (change.type.equals(MetadataChange.TILE) && latestTileTags.get(change.id) == change)
+				(change.isRemoval() ? tileRemovals : tileTags).add(change);
+			else
+				continue;
+			
+			if ( ! change.isRemoval())
+				tags.add(change.metadata);
+		}
+		
+		Collections.sort(snapshotTags, BY_TAG);
+		Collections.sort(tileTags, BY_TAG);
+		
+		final String snapshotTable = snapshotTags.size() + snapshotRemovals.size() > 0 ? snapshotTable(experiment) : null;
+		final String tileTable = tileTags.size() + tileRemovals.size() > 0 ? tileTable(experiment) : null;
+		
+		Map<String, String> tables = new LinkedHashMap<String, String>();
+		if (snapshotTable != null)
+			tables.put(snapshotTable, SNAPSHOT_ID);
+		if (tileTable != null)
+			tables.put(tileTable, TILE_ID);
+		final Map<String, Integer> batchTagIds = prepareMetadataChanges(tables, tags);
+		
+		int applied = metadataTransactions.execute(new TransactionCallback<Integer>() {
+			@Override
+			public Integer doInTransaction(TransactionStatus status)
+			{
+				int applied = 0;
+				
+				String setComment = "UPDATE " + QueryDaoImpl.METADATA_TABLE
+						+ " SET " + QueryDaoImpl.COMMENT + " = ? "
+						+ " WHERE " + QueryDaoImpl.QUERY_ID + " = ?";
+				applied += batchChanges(setComment, comments, COMMENT_SETTER, "Comment changed", "No query with this ID");
+				
+				if (snapshotTable != null) {
+					applied += batchTagChanges(snapshotTable, SNAPSHOT_ID, snapshotTags, batchTagIds);
+					applied += batchTagChanges(snapshotTable, SNAPSHOT_ID, snapshotRemovals, batchTagIds);
+				}
+				
+				if (tileTable != null) {
+					applied += batchTagChanges(tileTable, TILE_ID, tileTags, batchTagIds);
+					applied += batchTagChanges(tileTable, TILE_ID, tileRemovals, batchTagIds);
+				}
+				
+				return applied;
+			}
+		});
+		
+		log.info("Successfully applied " + applied + " of " + changes.size() + "-many metadata changes.");
+		
+		return applied;
+	}
+	
+	/**
+	 * Makes the relation tables and adds the tags of a batch of changes, in a separate transaction.
+	 * 
+	 * @param	tables		Relation tables changed, with their ID columns
+	 * @param	tags		Tags set
+	 * @return				IDs of the tags, by name
+	 */
+	private Map<String, Integer> prepareMetadataChanges(final Map<String, String> tables, final Collection<String> tags)
+	{
+		return separateTransactions.execute(new TransactionCallback<Map<String, Integer>>() {
+			@Override
+			public Map<String, Integer> doInTransaction(TransactionStatus status)
+			{
+				for (Map.Entry<String, String> table : tables.entrySet())
+					addRelationTable(table.getKey(), table.getValue());
+				
+				List<String> names = new ArrayList<String>(tags);
+				List<Integer> ids = addTags(names);
+				
+				Map<String, Integer> batchTagIds = new HashMap<String, Integer>();
+				for (int i = 0; i < names.size(); i++)
+					batchTagIds.put(names.get(i), ids.get(i));
+				return batchTagIds;
+			}
+		});
+	}
+	
+	/**
+	 * Sends the tag changes, or the tag removals, of one relation table.
+	 * 
+	 * If a tag or the table was deleted since it was cached the batch fails, so they are forgotten, looked up or
+	 * made again, and the batch retried once. The statements are idempotent, so the changes already made by the
+	 * failed batch are simply made again.
+	 * 
+	 * @param	changes			Changes that all set a tag, or all remove one
+	 * @param	batchTagIds		IDs of the tags set, by name
+	 * @return					Number of changes applied
+	 */
+	private int batchTagChanges(String table, String idColumn, List<MetadataChange> changes, Map<String, Integer> batchTagIds)
+	{
+		if (changes.size() == 0)
+			return 0;
+		
+		try {
+			return batchTagRelations(table, idColumn, changes, batchTagIds);
+		}
+		catch (DataAccessException e) {
+			// A deleted tag breaks the foreign key, a deleted table reads as bad SQL
+			if ( ! (e instanceof DataIntegrityViolationException || e instanceof BadSqlGrammarException))
+				throw e;
+			
+			log.warn("Could not apply " + changes.size() + " tag changes to " + table + ", retrying without the cached tags and table.", e);
+			Set<String> tags = new LinkedHashSet<String>();
+			for (MetadataChange change : changes)
+				if ( ! change.isRemoval())
+					tags.add(change.metadata);
+			for (String tag : tags)
+				tagIds.remove(tag);
+			knownTables.remove(table);
+			
+			Map<String, String> tables = new HashMap<String, String>();
+			tables.put(table, idColumn);
+			return batchTagRelations(table, idColumn, changes, prepareMetadataChanges(tables, tags));
+		}
+	}
+	
+	private int batchTagRelations(String table, String idColumn, List<MetadataChange> changes, Map<String, Integer> batchTagIds)
+	{
+		if (changes.get(0).isRemoval())
+			return batchChanges(removeTagRelation(table, idColumn), changes, ID_SETTER, "Tag removed", "Had no tag");
+		else
+			return batchChanges(replaceTagRelation(table, idColumn), changes, tagSetter(batchTagIds), "Tag set", "Tag not set");
+	}
+	
+	/**
+	 * Sends the changes' statements in batches, and marks each change with its result.
+	 * 
+	 * @return		Number of changes whose statement changed a row, or may have where the driver can't tell
+	 */
+	private int batchChanges(String sql, List<MetadataChange> changes, ParameterizedPreparedStatementSetter<MetadataChange> setter,
+			String appliedResult, String unchangedResult)
+	{
+		if (changes.size() == 0)
+			return 0;
+		
+		JdbcTemplate metadataDatabase = new JdbcTemplate(metadataDataSource);
+		int[][] batchCounts = metadataDatabase.batchUpdate(sql, changes, MAX_CHANGES_PER_BATCH, setter);
+		
+		int applied = 0;
+		int change = 0;
+		for (int[] counts : batchCounts) {
+			for (int count : counts) {
+				// Rewritten batches report success without a count
+				boolean changedRow = count > 0 || count == Statement.SUCCESS_NO_INFO;
+				changes.get(change).result = changedRow ? appliedResult : unchangedResult;
+				changes.get(change).applied = changedRow;
+				if (changedRow)
+					applied++;
+				change++;
+			}
+		}
+		
+		return applied;
+	}
+	
+	private static String replaceTagRelation(String table, String idColumn)
+	{
+		return "REPLACE INTO " + table + " (" + TAG_ID + ", " + idColumn + ") VALUES (?, ?)";
+	}
+	
+	private static String removeTagRelation(String table, String idColumn)
+	{
+		return "DELETE FROM " + table + " WHERE " + idColumn + " = ?";
+	}
+	
+	private static final Comparator<MetadataChange> BY_TAG = new Comparator<MetadataChange>() {
+		@Override
+		public int compare(MetadataChange first, MetadataChange second)
+		{
+			return first.metadata.compareTo(second.metadata);
+		}
+	};
+	
+	private static final ParameterizedPreparedStatementSetter<MetadataChange> COMMENT_SETTER = new ParameterizedPreparedStatementSetter<MetadataChange>() {
+		@Override
+		public void setValues(PreparedStatement statement, MetadataChange change) throws SQLException
+		{
+			statement.setString(1, change.isRemoval() ? "" : change.metadata);
+			statement.setInt(2, change.id);
+		}
+	};
+	
+	private static ParameterizedPreparedStatementSetter<MetadataChange> tagSetter(final Map<String, Integer> batchTagIds)
+	{
+		return new ParameterizedPreparedStatementSetter<MetadataChange>() {
+			@Override
+			public void setValues(PreparedStatement statement, MetadataChange change) throws SQLException
+			{
+				statement.setInt(1, batchTagIds.get(change.metadata));
+				statement.setInt(2, change.id);
+			}
+		};
+	}
+	
+	private static final ParameterizedPreparedStatementSetter<MetadataChange> ID_SETTER = new ParameterizedPreparedStatementSetter<MetadataChange>() {
+		@Override
+		public void setValues(PreparedStatement statement, MetadataChange change) throws SQLException
+		{
+			statement.setInt(1, change.id);
+		}
+	};
+	
+	
 	// ////////////////////////////////////////////////
 	// ////////////////////////////////////////////////
 	// Setter / Getter Methods
@@ -439,6 +1010,28 @@ public class TaggingDaoImpl implements TaggingDao
 	public void setMetadataDataSource(DataSource database)
 	{
 		metadataDataSource = database;
+		metadataTransactionManager = new DataSourceTransactionManager(database);
+		metadataTransactions = new TransactionTemplate(metadataTransactionManager);
+		separateTransactions = new TransactionTemplate(metadataTransactionManager);
+		separateTransactions.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+	}
+	
+	/**
+	 * @param	tagLoadThreads			Most chunks of tags loaded at once, besides those run by the requests themselves
+	 */
+	public synchronized void setTagLoadThreads(int tagLoadThreads)
+	{
+		this.tagLoadThreads = tagLoadThreads;
+		if (chunkExecutor != null)
+			chunkExecutor.setMaximumPoolSize(Math.max(tagLoadThreads, 1));
+	}
+	
+	/**
+	 * @param	tempTableThreshold		Number of IDs from which tags are loaded through a temporary table, zero or less never does
+	 */
+	public void setTempTableThreshold(int tempTableThreshold)
+	{
+		this.tempTableThreshold = tempTableThreshold;
 	}
 	
 	
@@ -447,34 +1040,86 @@ public class TaggingDaoImpl implements TaggingDao
 	// Helper Methods
 	// ////////////////////////////////////////////////
 	// ////////////////////////////////////////////////
+	/**
+	 * Returns the IDs of the supplied tags, in the same order, adding any tags that don't exist yet.
+	 * 
+	 * Tags already cached cost nothing. The rest are looked up, and those still missing added and looked up again.
+	 */
 	private List<Integer> addTags(List<String> tags)
 	{
-		// Add the tags with ignore statement that does nothing if they already exist
-		String addTagsQuery = "INSERT IGNORE INTO " + TAG_TABLE + " (" + TAG_NAME + ") VALUES ";
+		Set<String> uncached = new LinkedHashSet<String>();
+		for (String tag : tags)
+			if ( ! tagIds.containsKey(tag))
+				uncached.add(tag);
 		
-		for (int i = 0; i < tags.size(); i++) {
-			String tag = tags.get(i);
-			if (i != 0)
-				addTagsQuery += ", ";
-			addTagsQuery += "('" + tag + "')";
-		}
+		if (uncached.size() > 0)
+			cacheTags(uncached);
+		
+		List<Integer> ids = new ArrayList<Integer>(tags.size());
+		for (String tag : tags)
+			ids.add(tagIds.get(tag));
+		
+		return ids;
+	}
+	
+	// Serialized so two requests adding the same new tag don't both insert it, as tag names aren't unique in the table
+	private synchronized void cacheTags(Set<String> tags)
+	{
+		List<String> missing = new ArrayList<String>();
+		for (String tag : tags)
+			if ( ! tagIds.containsKey(tag))
+				missing.add(tag);
+		
+		if (missing.size() == 0)
+			return;
+		
+		readTagIds(missing);
+		
+		List<String> added = new ArrayList<String>();
+		for (String tag : missing)
+			if ( ! tagIds.containsKey(tag))
+				added.add(tag);
+		
+		if (added.size() == 0)
+			return;
+		
+		StringBuilder addTagsQuery = new StringBuilder("INSERT INTO " + TAG_TABLE + " (" + TAG_NAME + ") VALUES ");
+		for (int i = 0; i < added.size(); i++)
+			addTagsQuery.append(i == 0 ? "(?)" : ", (?)");
 		
 		JdbcTemplate taggingDatabase = new JdbcTemplate(metadataDataSource);
-		taggingDatabase.update(addTagsQuery);
+		taggingDatabase.update(addTagsQuery.toString(), added.toArray());
 		
-		// Query the added tags for their IDs
-		String getTagsQuery = "SELECT " + TAG_ID + " FROM " + TAG_TABLE + " "
-				+ " WHERE " + TAG_NAME + " IN (";
+		readTagIds(added);
 		
-		for (int i = 0; i < tags.size(); i++) {
-			String tag = tags.get(i);
-			if (i != 0)
-				getTagsQuery += ", ";
-			getTagsQuery += "'" + tag + "'";
+		// The table may match names case insensitively, so a tag read back under another spelling is looked up alone
+		for (String tag : added) {
+			if ( ! tagIds.containsKey(tag)) {
+				String getTagQuery = "SELECT " + TAG_ID + " FROM " + TAG_TABLE + " "
+						+ " WHERE " + TAG_NAME + " = ? "
+						+ " ORDER BY " + TAG_ID + " LIMIT 1";
+				tagIds.putIfAbsent(tag, taggingDatabase.queryForObject(getTagQuery, Integer.class, tag));
+			}
 		}
-		getTagsQuery += ")"; 
 		
-		return taggingDatabase.query(getTagsQuery, new TagIdRowMapper());
+		log.info("Added the tags " + added + ".");
+	}
+	
+	// Caches the IDs of those tags in the table, the oldest ID of any tag that's in the table more than once
+	private void readTagIds(List<String> tags)
+	{
+		String getTagsQuery = "SELECT " + TAG_ID + ", " + TAG_NAME + " FROM " + TAG_TABLE + " "
+				+ " WHERE " + TAG_NAME + " IN (" + StringOps.placeholders(tags.size()) + ") "
+				+ " ORDER BY " + TAG_ID;
+		
+		JdbcTemplate taggingDatabase = new JdbcTemplate(metadataDataSource);
+		taggingDatabase.query(getTagsQuery, tags.toArray(), new RowCallbackHandler() {
+			@Override
+			public void processRow(ResultSet resultSet) throws SQLException
+			{
+				tagIds.putIfAbsent(resultSet.getString(TAG_NAME), resultSet.getInt(TAG_ID));
+			}
+		});
 	}
 	
 	private int addTag(String tag)
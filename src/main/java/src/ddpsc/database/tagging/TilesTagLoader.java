@@ -4,19 +4,19 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.ResultSetExtractor;
 
 import src.ddpsc.database.tile.Tile;
+import src.ddpsc.utility.IntIndex;
 
 class TilesTagLoader implements ResultSetExtractor<Boolean>
 {
-	Map<Integer, Tile> tiles;
+	IntIndex<Tile> tiles;
 	public TilesTagLoader(List<Tile> tiles)
 	{
-		this.tiles = Tile.getTileIdMap(tiles);
+		this.tiles = Tile.getTileIdIndex(tiles);
 	}
 	
 	public Boolean extractData(ResultSet resultSet) throws SQLException, DataAccessException
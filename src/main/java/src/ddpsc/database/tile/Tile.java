@@ -1,9 +1,9 @@
 package src.ddpsc.database.tile;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+
+import src.ddpsc.utility.IntIndex;
 
 public class Tile
 {
@@ -81,13 +81,13 @@ public class Tile
 	// Static List Methods
 	// ////////////////////////////////////////////////
 	// ////////////////////////////////////////////////
-	public static Map<Integer, Tile> getTileIdMap(List<Tile> tiles)
+	public static IntIndex<Tile> getTileIdIndex(List<Tile> tiles)
 	{
-		Map<Integer, Tile> map = new HashMap<Integer, Tile>(tiles.size());
+		IntIndex<Tile> index = new IntIndex<Tile>(tiles.size());
 		for (Tile tile : tiles)
-			map.put(tile.id, tile);
+			index.put(tile.id, tile);
 		
-		return map;
+		return index;
 	}
 	
 	public static List<Integer> getIds(List<Tile> tiles)
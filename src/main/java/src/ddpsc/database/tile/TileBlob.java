@@ -0,0 +1,303 @@
+package src.ddpsc.database.tile;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * The raw image in a LemnaTec blob. Image blobs are zip files whose "data" entry holds the camera's raw frame,
+ * either stored or deflated.
+ *
+ * The entry is found through the zip's own central directory rather than a zip library, so its compressed bytes
+ * can be copied as they are into another archive (see {@link #transferCompressedTo(WritableByteChannel)})
+ * without being inflated or read into the heap.
+ *
+ * For conversion the frame is read with {@link #readData()}. The blob is memory mapped, so a stored frame is
+ * handed out as the mapped file itself, and a deflated frame is inflated straight from the mapping into a buffer
+ * owned by the calling thread.
+ *
+ * @see TileFileLTSystemUtil
+ *
+ * @author shill
+ */
+public class TileBlob implements Closeable
+{
+	public static final String DATA_ENTRY = "data";
+
+	public static final int STORED = 0;
+	public static final int DEFLATED = 8;
+
+	private static final int LOCAL_HEADER = 0x04034b50;
+	private static final int CENTRAL_HEADER = 0x02014b50;
+	private static final int END = 0x06054b50;
+
+	private static final int LOCAL_HEADER_SIZE = 30;
+	private static final int CENTRAL_HEADER_SIZE = 46;
+	private static final int END_SIZE = 22;
+	private static final int MAX_COMMENT = 0xFFFF;
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private static final int INFLATE_CHUNK = 64 * 1024;
+
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue()
+		{
+			return new Inflater(true);
+		}
+	};
+	private static final ThreadLocal<byte[]> inflateChunks = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue()
+		{
+			return new byte[INFLATE_CHUNK];
+		}
+	};
+	private static final ThreadLocal<byte[]> frameBuffers = new ThreadLocal<byte[]>();
+
+	private final String filename;
+	private final FileInputStream file;
+	private final FileChannel channel;
+
+	private int method;
+	private long crc;
+	private long compressedSize;
+	private long size;
+	private long dataOffset;
+
+	/**
+	 * Opens the blob and locates its data entry.
+	 *
+	 * @param filename		Blob to open, as given by {@link TileFileLTSystemUtil}
+	 * @throws IOException	Thrown if the blob cannot be read, or is not a zip with a data entry (ZipException)
+	 */
+	public TileBlob(String filename) throws IOException
+	{
+		this.filename = filename;
+		this.file = new FileInputStream(new File(filename));
+		this.channel = file.getChannel();
+
+		boolean located = false;
+		try {
+			locateDataEntry();
+			located = true;
+		}
+		finally {
+			if ( ! located)
+				close();
+		}
+	}
+
+	/**
+	 * The uncompressed raw frame, in little endian order.
+	 *
+	 * A stored frame is a read-only mapping of the blob, which stays valid after the blob is closed. A deflated
+	 * frame is inflated into a heap buffer owned by the calling thread, which is only valid until the thread reads
+	 * its next frame. The CRC is not checked, corrupt deflated data is still caught by the inflater.
+	 *
+	 * @throws IOException		Thrown if the frame cannot be read or inflated (ZipException)
+	 */
+	public ByteBuffer readData() throws IOException
+	{
+		MappedByteBuffer compressed = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset, compressedSize);
+		if (method == STORED)
+			return compressed.order(ByteOrder.LITTLE_ENDIAN);
+
+		if (size > Integer.MAX_VALUE)
+			throw new ZipException(filename + " has a frame too large to inflate.");
+
+		int length = (int) size;
+		byte[] frame = frameBuffers.get();
+		if (frame == null || frame.length < length) {
+			frame = new byte[length];
+			frameBuffers.set(frame);
+		}
+
+		Inflater inflater = inflaters.get();
+		byte[] chunk = inflateChunks.get();
+		inflater.reset();
+		try {
+			int inflated = 0;
+			while (inflated < length) {
+				if (inflater.needsInput()) {
+					if ( ! compressed.hasRemaining())
+						throw new EOFException(filename + " ended after " + inflated + " of " + length + " bytes.");
+
+					int read = Math.min(chunk.length, compressed.remaining());
+					compressed.get(chunk, 0, read);
+					inflater.setInput(chunk, 0, read);
+				}
+
+				int count = inflater.inflate(frame, inflated, length - inflated);
+				if (count == 0 && (inflater.finished() || inflater.needsDictionary()))
+					throw new ZipException(filename + " inflated to " + inflated + " of " + length + " bytes.");
+				inflated += count;
+			}
+		}
+		catch (DataFormatException e) {
+			throw new ZipException(filename + " has corrupt deflated data: " + e.getMessage());
+		}
+
+		return ByteBuffer.wrap(frame, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Copies the data entry's bytes, still compressed if the entry is deflated, to the target channel.
+	 */
+	public void transferCompressedTo(WritableByteChannel target) throws IOException
+	{
+		long position = dataOffset;
+		long end = dataOffset + compressedSize;
+		while (position < end) {
+			long transferred = channel.transferTo(position, end - position, target);
+			if (transferred <= 0)
+				throw new EOFException(filename + " ended inside its data entry.");
+			position += transferred;
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		file.close();
+	}
+
+
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	// Zip Records
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	/**
+	 * Reads the end of central directory record, then the central directory for the data entry, then the entry's
+	 * local header for where its data starts. The central directory is used because a local header written with a
+	 * data descriptor does not have the sizes.
+	 */
+	private void locateDataEntry() throws IOException
+	{
+		long fileSize = channel.size();
+		if (fileSize < END_SIZE)
+			throw new ZipException(filename + " is not a zip file.");
+
+		// The end record is followed only by the archive comment
+		int tailSize = (int) Math.min(fileSize, END_SIZE + MAX_COMMENT);
+		ByteBuffer tail = read(fileSize - tailSize, tailSize);
+		int end = -1;
+		for (int i = tailSize - END_SIZE; i >= 0; i--) {
+			if (tail.getInt(i) == END) {
+				end = i;
+				break;
+			}
+		}
+		if (end < 0)
+			throw new ZipException(filename + " is not a zip file.");
+
+		int entries = tail.getShort(end + 10) & 0xFFFF;
+		long centralSize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+		long centralOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+		if (centralOffset + centralSize > fileSize)
+			throw new ZipException(filename + " has a truncated central directory.");
+
+		ByteBuffer central = read(centralOffset, (int) centralSize);
+		int position = 0;
+		for (int i = 0; i < entries; i++) {
+			if (position + CENTRAL_HEADER_SIZE > central.limit() || central.getInt(position) != CENTRAL_HEADER)
+				throw new ZipException(filename + " has a corrupt central directory.");
+
+			int nameLength = central.getShort(position + 28) & 0xFFFF;
+			int extraLength = central.getShort(position + 30) & 0xFFFF;
+			int commentLength = central.getShort(position + 32) & 0xFFFF;
+
+			if (DATA_ENTRY.equals(name(central, position + CENTRAL_HEADER_SIZE, nameLength))) {
+				method = central.getShort(position + 10) & 0xFFFF;
+				crc = central.getInt(position + 16) & 0xFFFFFFFFL;
+				compressedSize = central.getInt(position + 20) & 0xFFFFFFFFL;
+				size = central.getInt(position + 24) & 0xFFFFFFFFL;
+
+				long localOffset = central.getInt(position + 42) & 0xFFFFFFFFL;
+				if (method != STORED && method != DEFLATED)
+					throw new ZipException(filename + " uses unsupported compression method " + method + ".");
+
+				ByteBuffer local = read(localOffset, LOCAL_HEADER_SIZE);
+				if (local.getInt(0) != LOCAL_HEADER)
+					throw new ZipException(filename + " has a corrupt local header.");
+
+				dataOffset = localOffset + LOCAL_HEADER_SIZE
+						+ (local.getShort(26) & 0xFFFF)
+						+ (local.getShort(28) & 0xFFFF);
+				if (dataOffset + compressedSize > fileSize)
+					throw new ZipException(filename + " ends inside its data entry.");
+				return;
+			}
+			position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+		}
+
+		throw new ZipException(filename + " has no " + DATA_ENTRY + " entry.");
+	}
+
+	private ByteBuffer read(long offset, int length) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0)
+				throw new EOFException(filename + " is truncated.");
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static String name(ByteBuffer buffer, int offset, int length)
+	{
+		byte[] name = new byte[length];
+		for (int i = 0; i < length; i++)
+			name[i] = buffer.get(offset + i);
+		return new String(name, ASCII);
+	}
+
+
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	// Get/Set Methods
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	/**
+	 * @return		{@link #STORED} or {@link #DEFLATED}
+	 */
+	public int getMethod()
+	{
+		return method;
+	}
+
+	/**
+	 * @return		CRC32 of the uncompressed frame
+	 */
+	public long getCrc()
+	{
+		return crc;
+	}
+
+	public long getCompressedSize()
+	{
+		return compressedSize;
+	}
+
+	/**
+	 * @return		Size of the uncompressed frame
+	 */
+	public long getSize()
+	{
+		return size;
+	}
+}
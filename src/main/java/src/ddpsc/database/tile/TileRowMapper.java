@@ -8,6 +8,7 @@ import org.springframework.jdbc.core.RowMapper;
 
 import src.ddpsc.database.snapshot.Snapshot;
 import src.ddpsc.database.snapshot.SnapshotDaoImpl;
+import src.ddpsc.utility.IntIndex;
 
 /**
  * This class creates a mapping from the database to our Snapshot object's fields. The inner class SnapshotExtractor
@@ -22,21 +23,11 @@ import src.ddpsc.database.snapshot.SnapshotDaoImpl;
  */
 public class TileRowMapper implements RowMapper<Tile>
 {
-	List<Snapshot> snapshots;
+	// Built once per query, so attaching each tile to its snapshot is a lookup rather than a scan of the snapshots
+	IntIndex<Snapshot> snapshots;
 	public TileRowMapper(List<Snapshot> snapshots)
 	{
-		this.snapshots = snapshots;
-	}
-	
-	private int indexById(int id, List<Snapshot> snapshots)
-	{
-		for (int index = 0; index < snapshots.size(); index++) {
-			Snapshot snapshot = snapshots.get(index);
-			if (snapshot.id == id)
-				return index;
-		}
-		
-		return -1;
+		this.snapshots = Snapshot.getSnapshotIdIndex(snapshots);
 	}
 	
 	@Override
@@ -44,24 +35,36 @@ public class TileRowMapper implements RowMapper<Tile>
 	{
 		int snapshotId = resultSet.getInt("snapshot_id");
 		
-		Tile tile = new Tile(
-		
-				snapshotId,
-			resultSet.getInt(SnapshotDaoImpl.TILE_ID),
-			
-			resultSet.getString(SnapshotDaoImpl.CAMERA),
-			resultSet.getInt(SnapshotDaoImpl.RAW_IMAGE_OID),
-			resultSet.getInt(SnapshotDaoImpl.NULL_IMAGE_OID),
-			resultSet.getInt(SnapshotDaoImpl.WIDTH),
-			resultSet.getInt(SnapshotDaoImpl.HEIGHT),
-			resultSet.getInt(SnapshotDaoImpl.DATA_FORMAT),
-			resultSet.getInt(SnapshotDaoImpl.FRAME),
-			resultSet.getInt(SnapshotDaoImpl.FLIP_TYPE) );
+		Tile tile = mapTile(resultSet, snapshotId, "");
 		
-		int index = indexById(snapshotId, snapshots);
-		if (index != -1)
-			snapshots.get(index).addTile(tile);
+		Snapshot snapshot = snapshots.get(snapshotId);
+		if (snapshot != null)
+			snapshot.addTile(tile);
 		
 		return tile;
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Reads the tile in the current row.
+	 * 
+	 * @param resultSet		Result set positioned at a row with the tile columns
+	 * @param snapshotId	ID of the snapshot the tile belongs to
+	 * @param columnPrefix	Prefix of the tile columns, for queries which alias them to avoid clashing with others
+	 */
+	public static Tile mapTile(ResultSet resultSet, int snapshotId, String columnPrefix) throws SQLException
+	{
+		return new Tile(
+		
+				snapshotId,
+			resultSet.getInt(columnPrefix + SnapshotDaoImpl.TILE_ID),
+			
+			resultSet.getString(columnPrefix + SnapshotDaoImpl.CAMERA),
+			resultSet.getInt(columnPrefix + SnapshotDaoImpl.RAW_IMAGE_OID),
+			resultSet.getInt(columnPrefix + SnapshotDaoImpl.NULL_IMAGE_OID),
+			resultSet.getInt(columnPrefix + SnapshotDaoImpl.WIDTH),
+			resultSet.getInt(columnPrefix + SnapshotDaoImpl.HEIGHT),
+			resultSet.getInt(columnPrefix + SnapshotDaoImpl.DATA_FORMAT),
+			resultSet.getInt(columnPrefix + SnapshotDaoImpl.FRAME),
+			resultSet.getInt(columnPrefix + SnapshotDaoImpl.FLIP_TYPE) );
+	}
+}
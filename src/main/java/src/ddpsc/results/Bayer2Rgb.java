@@ -1,47 +1,53 @@
 package src.ddpsc.results;
 
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
+import java.awt.image.DataBufferByte;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 import javax.imageio.ImageIO;
-import javax.imageio.spi.IIORegistry;
 
-import org.apache.commons.io.IOUtils;
-import src.ddpsc.database.tile.Tile;
-
-public final class Bayer2Rgb {
-	final static int tHeaderSize = 106;
-	final static byte[] tiffheader = new byte[] {
-		    // I     I     42	0-3
-		      0x49, 0x49, 0x2a, 0x00,
-		    // ( offset to tags, 0 ) 4-7
-		      0x08, 0x00, 0x00, 0x00,
-		    // ( num tags ) 8-9
-		      0x08, 0x00,
-		   // ( newsubfiletype, 0 full-image )
-		      (byte) 0xfe, 0x00, 0x04, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
-		    // ( image width ) 22 - 33
-		      0x00, 0x01, 0x03, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
-		    // ( image height ) 34 - 45
-		      0x01, 0x01, 0x03, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
-		    // ( bits per sample ) 46 - 57
-		      0x02, 0x01, 0x03, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
-		    // ( Photometric Interpretation, 2 = RGB ) 
-		      0x06, 0x01, 0x03, 0x00, 0x01, 0x00, 0x00, 0x00, 0x02, 0x00, 0x00, 0x00,
-		    // ( Strip offsets, 8 )
-		      0x11, 0x01, 0x03, 0x00, 0x01, 0x00, 0x00, 0x00, 0x08, 0x00, 0x00, 0x00,
-		    // ( samples per pixel, 3 - RGB)
-		      0x15, 0x01, 0x03, 0x00, 0x01, 0x00, 0x00, 0x00, 0x03, 0x00, 0x00, 0x00,
-		    // ( Strip byte count )
-		      0x17, 0x01, 0x04, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
-	};
-	final static String filename = "/Users/shill/Documents/JSEE_workspace/PhenoFront/bin/bayer2rgb/data.raw";
-	final static int bpp = 8;
+/**
+ * Demosaics raw BGGR bayer frames from the LemnaTec cameras into RGB images.
+ * 
+ * The raw frame is read into a buffer owned by the calling thread and interpolated straight into the
+ * backing array of a {@link BufferedImage#TYPE_3BYTE_BGR} image that is also owned by the calling thread, so
+ * converting a frame allocates nothing once a thread has seen a frame of that size. Because of that the
+ * image returned by {@link #demosaic(InputStream, int, int, DemosaicAlgorithm, Executor, int)} is only valid
+ * until the same thread demosaics its next frame.
+ * 
+ * A single large frame may be split into horizontal bands that are interpolated in parallel.
+ * 
+ * Explanation of bayer interpolation: http://www.unc.edu/~rjean/demosaicing/demosaicing.pdf
+ * 
+ * @see DemosaicAlgorithm
+ * 
+ * @author shill
+ */
+public final class Bayer2Rgb
+{
+	/**
+	 * Frames shorter than this many rows per band are not worth splitting.
+	 */
+	public final static int MIN_BAND_ROWS = 128;
+	
+	private final static ThreadLocal<byte[]> rawBuffer = new ThreadLocal<byte[]>();
+	private final static ThreadLocal<BufferedImage> imageBuffer = new ThreadLocal<BufferedImage>();
+	
+	private Bayer2Rgb()
+	{
+	}
 	
 	/**
 	 * Converts an image from BGGR Raw Bayer format to png. Writes the result to the passed output stream.
@@ -53,271 +59,209 @@ public final class Bayer2Rgb {
 	 * @param out	OutputStream to write the resulting png.
 	 * @throws IOException
 	 */
-	public static void convertRawImage(String path, int width, int height, OutputStream out) throws IOException{
-		InputStream is = new FileInputStream(new File(path));
-		byte[] bayer= IOUtils.toByteArray(is); //raw image
-		is.close();
-	    int outSize = width * height * (bpp / 8) * 3 + tHeaderSize;
-		byte[] rgb = dc1394_bayer_Bilinear(bayer, width, height, bpp);
-		byte[] tiff = new byte[outSize];
-		putTiff(tiff, width, height, 8);
-		System.arraycopy(rgb, 0, tiff, tHeaderSize, rgb.length);			
-        ByteArrayInputStream bytes = new ByteArrayInputStream(tiff);
-        BufferedImage img = ImageIO.read(bytes);
-        ImageIO.write( img, "png", out);
-        out.flush();
+	public static void convertRawImage(String path, int width, int height, OutputStream out) throws IOException
+	{
+		BufferedImage image = demosaic(new FileInputStream(new File(path)), width, height, DemosaicAlgorithm.BILINEAR, null, 1);
+		ImageIO.write(image, "png", out);
+		out.flush();
 	}
 	
-	
 	/**
-	 * Returns a png of the converted bayer raw image. The output is in RGB space.
-	 * @see convertRawImage
-	 * @param input Open InputStream to read the raw image from. Closes the InputStream on completion. Leaves output open.
-	 * @param width
-	 * @param height
-	 * @param output
-	 * @throws IOException
+	 * Returns the converted bayer raw image in RGB space, bilinear interpolated on the calling thread.
+	 * 
+	 * @see #demosaic(InputStream, int, int, DemosaicAlgorithm, Executor, int)
 	 */
 	public static BufferedImage convertRawImage(InputStream input, int width, int height) throws IOException
 	{
-		byte[] bayer= IOUtils.toByteArray(input); //raw image
-		input.close();
-	    
-		int outSize = width * height * (bpp / 8) * 3 + tHeaderSize;		
-	    byte[] rgb = dc1394_bayer_Bilinear(bayer, width, height, bpp);
-		byte[] tiff = new byte[outSize];
+		return demosaic(input, width, height, DemosaicAlgorithm.BILINEAR, null, 1);
+	}
+	
+	/**
+	 * Reads a raw bayer frame and interpolates it into the calling thread's pooled image. Closes the
+	 * InputStream on completion.
+	 * 
+	 * The returned image belongs to the calling thread and is overwritten by its next call, so it must be
+	 * encoded or copied before the thread converts another frame.
+	 * 
+	 * @param input			Open InputStream to read the raw image from
+	 * @param width			Width of the image in pixels
+	 * @param height		Height of the image in pixels
+	 * @param algorithm		How to interpolate the frame, which also decides the size of the returned image
+	 * @param bandExecutor	Runs the extra bands of the frame, null interpolates the whole frame on the calling thread
+	 * @param bands			Maximum number of bands to split the frame into
+	 * @return				The demosaiced image
+	 * @throws IOException	Thrown if the raw image cannot be read or is shorter than width * height
+	 */
+	public static BufferedImage demosaic(
+			InputStream input,
+			int width,
+			int height,
+			DemosaicAlgorithm algorithm,
+			Executor bandExecutor,
+			int bands)
+			throws IOException
+	{
+		byte[] bayer;
+		try {
+			bayer = readRaw(input, width * height);
+		}
+		finally {
+			input.close();
+		}
 		
-		putTiff(tiff, width, height, 8);
-		System.arraycopy(rgb, 0, tiff, tHeaderSize, rgb.length);			
-        ByteArrayInputStream bytes = new ByteArrayInputStream(tiff);
-        
-        if (! ImageIO.getImageReadersBySuffix("tiff").hasNext()) {
-        	System.err.println("[WARNING]: Bayer2Rgb Manually loaded Tiff reader.");
-	        ImageIO.scanForPlugins();
-	        IIORegistry.getDefaultInstance().registerApplicationClasspathSpis();
-        }
-        
-        return ImageIO.read(bytes);
+		BufferedImage image = pooledImage(algorithm.outputWidth(width), algorithm.outputHeight(height));
+		demosaic(bayer, width, height, image, algorithm, bandExecutor, bands);
+		return image;
 	}
 	
 	/**
-	 * Code ported from OpenCV C code. Converts a raw BGGR bayer image to RGB format.
-	 * Explanation of bayer interpolation: http://www.unc.edu/~rjean/demosaicing/demosaicing.pdf
+	 * Interpolates a raw bayer frame held in a buffer, such as a blob mapped by
+	 * {@link src.ddpsc.database.tile.TileBlob}, into the calling thread's pooled image.
 	 * 
-	 * @param bayer	Array of raw bayer bytes.
-	 * @param rgb	Output array to place the RGB data.
-	 * @param sizeX	Width of the image.
-	 * @param sizeY	Height of the image.
+	 * A heap buffer starting at its array's first byte is interpolated in place. Any other buffer is copied once
+	 * into the calling thread's raw buffer, as every pixel is read several times while interpolating.
+	 * 
+	 * @param raw			Raw BGGR frame from the buffer's position, which is left unchanged
+	 * @return				The demosaiced image, valid until the calling thread's next frame
+	 * @throws IOException	Thrown if the buffer has fewer than width * height bytes remaining
+	 * @see #demosaic(InputStream, int, int, DemosaicAlgorithm, Executor, int)
 	 */
-	public static byte[] dc1394_bayer_Bilinear(byte[] bayer, int sizeX, int sizeY, int bpp)
+	public static BufferedImage demosaic(
+			ByteBuffer raw,
+			int width,
+			int height,
+			DemosaicAlgorithm algorithm,
+			Executor bandExecutor,
+			int bands)
+			throws IOException
 	{
-		final int bayerStep = sizeX; //iterative step
-	    final int rgbStep = 3 * sizeX; //iterative step
-	    int width = sizeX;
-	    int height = sizeY;
-	    int blue =  -1;
-	    boolean start_with_green = false;
-	    int outSize = width * height * (bpp / 8) * 3;
-		byte[] rgb = new byte[outSize]; //result
-	   // int rgbIndex = tHeaderSize + rgbStep + 3 + 1;
-	    int rgbIndex = rgbStep + 3 + 1;
-	    ClearBorders(rgb, sizeX, sizeY, 1, 0);
-	  //  ClearBorders(rgb, sizeX, sizeY, 1, tHeaderSize);
-	    int bayerIndex = 0;
-	    height -= 2;
-	    width -= 2;
+		int length = width * height;
+		if (raw.remaining() < length)
+			throw new EOFException("Raw image has " + raw.remaining() + " of " + length + " bytes.");
+		
+		byte[] bayer;
+		if (raw.hasArray() && raw.arrayOffset() + raw.position() == 0) {
+			bayer = raw.array();
+		}
+		else {
+			bayer = pooledRaw(length);
+			raw.duplicate().get(bayer, 0, length);
+		}
+		
+		BufferedImage image = pooledImage(algorithm.outputWidth(width), algorithm.outputHeight(height));
+		demosaic(bayer, width, height, image, algorithm, bandExecutor, bands);
+		return image;
+	}
 	
-	    for (; height-- > 0;  bayerIndex += bayerStep, rgbIndex+= rgbStep) {
-
-	        int t0, t1;
-	        int bayerEnd = bayerIndex + width;
-	        int tmp, tmp1, tmp2, tmp3;
-	        
-	        if (start_with_green) {
-	        	// bytes need to be cast to int to avoid overflow, each block does this.
-	        	// bitmasking to avoid sign errors
-	        	tmp = bayer[bayerIndex + 1] & (0xff);
-	        	tmp1 = bayer[bayerStep * 2 + 1] &(0xff);
-	        	t0 = (tmp + tmp1) / 2;
-	        	
-	        	tmp = bayer[bayerIndex + bayerStep] &(0xff);
-	        	tmp1 = bayer[bayerIndex + bayerStep + 2] &(0xff) ;
-	        	t1 = (tmp + tmp1) / 2;
+	/**
+	 * Interpolates a raw bayer frame into an image.
+	 * 
+	 * @param bayer			Raw BGGR frame, at least width * height bytes
+	 * @param width			Width of the raw frame in pixels
+	 * @param height		Height of the raw frame in pixels
+	 * @param image			A {@link BufferedImage#TYPE_3BYTE_BGR} image of the size the algorithm produces
+	 * @param algorithm		How to interpolate the frame
+	 * @param bandExecutor	Runs the extra bands of the frame, null interpolates the whole frame on the calling thread
+	 * @param bands			Maximum number of bands to split the frame into
+	 * @throws IOException	Thrown if one of the bands fails or the calling thread is interrupted
+	 */
+	public static void demosaic(
+			final byte[] bayer,
+			final int width,
+			final int height,
+			BufferedImage image,
+			final DemosaicAlgorithm algorithm,
+			Executor bandExecutor,
+			int bands)
+			throws IOException
+	{
+		if (image.getType() != BufferedImage.TYPE_3BYTE_BGR)
+			throw new IllegalArgumentException("Demosaicing requires a TYPE_3BYTE_BGR image.");
+		
+		if (image.getWidth() != algorithm.outputWidth(width) || image.getHeight() != algorithm.outputHeight(height))
+			throw new IllegalArgumentException("The image is not the size " + algorithm.getName() + " produces.");
+		
+		final byte[] bgr = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		
+		int rows = image.getHeight();
+		bands = Math.min(bands, rows / MIN_BAND_ROWS);
+		if (bandExecutor == null || bands < 2) {
+			algorithm.interpolateRows(bayer, width, height, bgr, 0, rows);
+			return;
+		}
+		
+		// The calling thread takes the first band and waits for the others
+		List<FutureTask<Void>> others = new ArrayList<FutureTask<Void>>(bands - 1);
+		for (int band = 1; band < bands; band++) {
+			final int firstRow = rows * band / bands;
+			final int endRow = rows * (band + 1) / bands;
+			FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+				@Override
+				public void run()
+				{
+					algorithm.interpolateRows(bayer, width, height, bgr, firstRow, endRow);
+				}
+			}, null);
+			others.add(task);
+			bandExecutor.execute(task);
+		}
+		
+		algorithm.interpolateRows(bayer, width, height, bgr, 0, rows / bands);
+		
+		try {
+			for (FutureTask<Void> task : others)
+				task.get();
+		}
+		catch (InterruptedException e) {
+			for (FutureTask<Void> task : others)
+				task.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for demosaic bands.");
+		}
+		catch (ExecutionException e) {
+			throw new IOException("Demosaic band failed.", e.getCause());
+		}
+	}
 	
-	            rgb[rgbIndex - blue] = (byte) ( t0 ); 
-	            rgb[0 + rgbIndex] = (byte) ( bayer[bayerStep + bayerIndex + 1] );
-	            rgb[blue + rgbIndex] = (byte) ( t1 );
-	            bayerIndex++;
-	            rgbIndex += 3;
-	        }
-
-	        if (blue > 0) {
-	            for (; bayerIndex <= bayerEnd - 2; bayerIndex += 2, rgbIndex += 6) {
-	            	tmp = bayer[bayerIndex + 0] &(0xff);
-	            	tmp1 = bayer[bayerIndex + 2] &(0xff);
-	            	tmp2 = bayer[bayerIndex + bayerStep * 2] &(0xff);
-	            	tmp3 = bayer[bayerIndex + bayerStep * 2 + 2] &(0xff);
-	            	t0 = (tmp + tmp1 + tmp2 + tmp3 + 2) / 4;
-	            	
-	            	tmp = bayer[bayerIndex + 1] &(0xff);
-	            	tmp1 =  bayer[bayerIndex + bayerStep] &(0xff);
-	            	tmp2 = bayer[bayerIndex + bayerStep + 2] &(0xff);
-	            	tmp3 = bayer[bayerIndex + bayerStep * 2 + 1] &(0xff);
-	                t1 = (tmp + tmp1 + tmp2 + tmp3 + 2) / 4 ;
-	                
-	                rgb[rgbIndex + -1] = (byte) ( t0 );
-	                rgb[rgbIndex + 0] = (byte) ( t1 );
-	                rgb[rgbIndex + 1] = (byte) ( bayer[bayerIndex + bayerStep + 1] );
-	                
-	                tmp = bayer[bayerIndex + 2] &(0xff);
-	                tmp1 = bayer[bayerIndex + bayerStep * 2 + 2] & 0xff;
-	                t0 = (tmp + tmp1 + 1) /2;
-	                
-	                tmp = bayer[bayerIndex + bayerStep + 1] &(0xff);
-	                tmp1 = bayer[bayerIndex + bayerStep + 3] &(0xff);
-	                t1 = (tmp + tmp1 + 1) / 2 ;
-
-	                rgb[rgbIndex + 2] = (byte) (t0);
-	                rgb[rgbIndex + 3] = (byte) ( bayer[bayerIndex + bayerStep + 2] );
-	                rgb[rgbIndex + 4] = (byte) (t1);
-	            }
-	        } else {
-	            for (; bayerIndex <= bayerEnd - 2; bayerIndex += 2, rgbIndex += 6) {
-	            	tmp = bayer[bayerIndex + 0] & 0xff;
-	            	tmp1 = bayer[bayerIndex + 2] & 0xff;
-	            	tmp2 = bayer[bayerIndex + bayerStep * 2] & 0xff;
-	            	tmp3 = bayer[bayerIndex + bayerStep * 2 + 2] & 0xff;
-            		t0 = (tmp + tmp1 + tmp2 + tmp3 + 2) / 4;
-            		
-	            	tmp = bayer[bayerIndex + 1] & 0xff;
-	            	tmp1 = bayer[bayerIndex + bayerStep] &0xff;
-	            	tmp2 = bayer[bayerIndex + bayerStep + 2] & 0xff;
-	            	tmp3 = bayer[bayerIndex + bayerStep * 2 + 1] & 0xff;
-	            	t1 = (tmp + tmp1 + tmp2 + tmp3 + 2) / 4;
-	            	
-	                rgb[rgbIndex + 1] = (byte) (t0); 
-	                rgb[rgbIndex + 0] = (byte) (t1);
-	                rgb[rgbIndex + -1] = (byte) ( bayer[bayerIndex + bayerStep + 1]  );
-
-	                tmp = bayer[bayerIndex + 2] & 0xff;
-	                tmp1 = bayer[bayerIndex + bayerStep * 2 + 2] & 0xff;
-	                t0 = (tmp + tmp1 + 1) /2;
-	                
-	                tmp = bayer[bayerIndex + bayerStep + 1] &0xff;
-	                tmp1 = bayer[bayerIndex + bayerStep + 3] &0xff;
-	                t1 = (tmp + tmp1 + 1) /2 ;
-	                
-	                rgb[rgbIndex + 4] = (byte) (t0  );
-	                rgb[rgbIndex + 3] = (byte) (bayer[bayerIndex + bayerStep + 2]  );
-	                rgb[rgbIndex + 2] = (byte) (t1  );
-	            }
-	        }
-
-	        if (bayerIndex < bayerEnd) {
-	        	tmp = bayer[bayerIndex] & 0xff;
-	        	tmp1 = bayer[bayerIndex + 2] &0xff;
-	        	tmp2 = bayer[bayerIndex + bayerStep * 2] &0xff;
-	        	tmp3 = bayer[bayerIndex + bayerStep * 2 + 2] &0xff;
-        		t0 = (tmp + tmp1 + tmp2 + tmp3 + 2) / 4;
-	        	
-	        	tmp = bayer[bayerIndex + 1] & 0xff;
-	        	tmp1 = bayer[bayerIndex + bayerStep] & 0xff;
-	        	tmp2 = bayer[bayerIndex + bayerStep + 2] &0xff;
-	        	tmp3 = bayer[bayerIndex + bayerStep * 2 + 1] &0xff;
-	        	t1 = (tmp + tmp1 + tmp2 + tmp3) + 2 / 4;
-	        	
-	            rgb[rgbIndex - blue] = (byte) (t0);
-	            rgb[rgbIndex + 0] = (byte) (t1);
-	            rgb[rgbIndex + blue] = (byte) ( bayer[bayerIndex + bayerStep + 1] );
-	            bayerIndex++;
-	            rgbIndex += 3;
-	        }
-	        
-	        bayerIndex -= width;
-	        rgbIndex -= width * 3;
-	      
-	        blue = -blue;
-	        start_with_green = !start_with_green;
-	        
-	    }
-	    return rgb;
+	/**
+	 * Reads exactly length bytes into the calling thread's raw buffer, growing it if needed.
+	 */
+	private static byte[] readRaw(InputStream input, int length) throws IOException
+	{
+		byte[] buffer = pooledRaw(length);
+		int offset = 0;
+		while (offset < length) {
+			int read = input.read(buffer, offset, length - offset);
+			if (read < 0)
+				throw new EOFException("Raw image ended after " + offset + " of " + length + " bytes.");
+			offset += read;
+		}
+		return buffer;
 	}
 	
 	/**
-	 * Important to note that passed arrays' values may be changed,, that change will be reflected.
-	 * @param rgb
-	 * @param sizeX
-	 * @param sizeY
-	 * @param w	width of border
+	 * @return		The calling thread's raw buffer, grown to at least length bytes
 	 */
-	public static void ClearBorders(byte[] rgb, int sizeX, int sizeY, int w, int rgbIndex)
+	private static byte[] pooledRaw(int length)
 	{
-	    int i, j;
-	    // black edges are added with a width w:
-	    i = 3 * sizeX * w - 1;
-	    j = 3 * sizeX * sizeY - 1;
-	    while (i >= 0) {
-	        rgb[rgbIndex + i--] = 0;
-	        rgb[rgbIndex + j--] = 0;
-	    }
-
-	    int low = sizeX * (w - 1) * 3 - 1 + w * 3;
-	    i = low + sizeX * (sizeY - w * 2 + 1) * 3;
-	    while (i > low) {
-	        j = 6 * w;
-	        while (j > 0) {
-	            rgb[rgbIndex + i--] = 0;
-	            j--;
-	        }
-	        i -= (sizeX - 2 * w) * 3;
-	    }
+		byte[] buffer = rawBuffer.get();
+		if (buffer == null || buffer.length < length) {
+			buffer = new byte[length];
+			rawBuffer.set(buffer);
+		}
+		return buffer;
 	}
 	
 	/**
-	 * Writes a tiff header to the passed array. Expects the space for the Tiff header to already be allocated.
-	 * 
-	 * @param rgb	Array to add the header to
-	 * @param width	Width of the image	
-	 * @param height	Height of the image	
-	 * @param bpp	Bits per pixel (LemnaTec uses 8)
+	 * @return		The calling thread's image of the given size, replacing its previous one if the size differs
 	 */
-    public static void putTiff(byte[] rgb, int width, int height, int bpp)
-    {
-        int ulTemp=0;
-        int sTemp=0;
-        System.arraycopy(tiffheader, 0, rgb, 0, tHeaderSize);
-        //sTemp = TIFF_HDR_NUM_ENTRY;
-        sTemp = 8;
-        //memcpy(rgb + 8, &sTemp, 2);
-        
-        rgb[8] = (byte) (sTemp);
-        
-        //width
-        //memcpy(rgb + 10 + 1*12 + 8, &width, 4);
-
-        rgb[10 + 12 * 1 + 8 + 0] = (byte) (width >> 0);
-        rgb[10 + 12 * 1 + 8 + 1] = (byte) (width >> 8);
-        //height
-        //memcpy(rgb + 10 + 1*12 + 8, &width, 4);
-
-        rgb[10 + 12 * 2 + 8 + 0] = (byte) (height >> 0);
-        rgb[10 + 12 * 2 + 8 + 1] = (byte) (height >> 8);
-      
-
-        //bbp
-        //memcpy(rgb + 10 + 3*12 + 8, &bpp, 2);
-        rgb[10 + 12 * 3 + 8 + 0] = (byte) bpp; 
-        
-      
-        //strip byte count
-        //memcpy(rgb + 10 + 7*12 + 8, &ulTemp, 4);
-        ulTemp = width * height * (bpp / 8) * 3;
-        rgb[10 + 7 * 12 + 8 + 0] = (byte) (ulTemp >> 0);
-        rgb[10 + 7 * 12 + 8 + 1] = (byte) (ulTemp >> 8);
-        
-        //strip offset
-        //memcpy(rgb + 10 + 5*12 + 8, &sTemp, 2);
-        sTemp = tHeaderSize;
-        rgb[10 + 5 * 12 + 8] = (byte) (sTemp);      
-    }
+	private static BufferedImage pooledImage(int width, int height)
+	{
+		BufferedImage image = imageBuffer.get();
+		if (image == null || image.getWidth() != width || image.getHeight() != height) {
+			image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+			imageBuffer.set(image);
+		}
+		return image;
+	}
 }
@@ -0,0 +1,84 @@
+package src.ddpsc.results;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * An encoded image ready to be written to an archive, with the CRC32 the archive entry needs. The CRC is computed
+ * by the converting thread as the image is encoded, so the archive writer can store the image without reading it
+ * a second time.
+ *
+ * @author shill
+ */
+public class ConvertedImage
+{
+	private final byte[] bytes;
+	private final int length;
+	private final long crc;
+
+	public ConvertedImage(byte[] bytes, int length, long crc)
+	{
+		this.bytes = bytes;
+		this.length = length;
+		this.crc = crc;
+	}
+
+	/**
+	 * Writes the encoded bytes to the stream.
+	 */
+	public void writeTo(OutputStream output) throws IOException
+	{
+		output.write(bytes, 0, length);
+	}
+
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	// Get/Set Methods
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	public int getLength()
+	{
+		return length;
+	}
+
+	public long getCrc()
+	{
+		return crc;
+	}
+
+
+	/**
+	 * Collects an image as it is encoded, updating its CRC32 along the way.
+	 * The collected bytes are handed to the {@link ConvertedImage} without copying them.
+	 */
+	public static class Output extends ByteArrayOutputStream
+	{
+		private final CRC32 crc = new CRC32();
+
+		public Output()
+		{
+			super(64 * 1024);
+		}
+
+		@Override
+		public synchronized void write(int b)
+		{
+			super.write(b);
+			crc.update(b);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len)
+		{
+			super.write(b, off, len);
+			crc.update(b, off, len);
+		}
+
+		public synchronized ConvertedImage toConvertedImage()
+		{
+			return new ConvertedImage(buf, count, crc.getValue());
+		}
+	}
+}
@@ -0,0 +1,403 @@
+package src.ddpsc.results;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import src.ddpsc.database.experiment.Experiment;
+import src.ddpsc.database.tile.Tile;
+
+/**
+ * Converted images kept on local disk, so a tile converted with the same settings by any download is not
+ * converted again.
+ *
+ * An image is keyed by its experiment, raw image and everything that changes the converted bytes (format, quality,
+ * png level and filter, and demosaic algorithm for visible tiles). Each image is a file named by the SHA-1 of its
+ * key and its CRC32, so a hit can be stored in an archive straight from the file. Files are written under a
+ * temporary name and renamed into place, so a reader never sees a partially written image.
+ *
+ * The cache is bounded by size. The least recently used images are deleted first, and the order survives
+ * restarts through the files' modification times.
+ *
+ * @see ResultsBuilder
+ *
+ * @author shill
+ */
+public class ConvertedImageCache
+{
+	private static final Logger log = Logger.getLogger(ConvertedImageCache.class);
+
+	public static final long DEFAULT_MAX_BYTES = 10L * 1024 * 1024 * 1024;
+
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final File directory;
+	private final long maxBytes;
+
+	// By the SHA-1 of the key, access ordered so iteration starts at the least recently used image
+	private final LinkedHashMap<String, CachedFile> files = new LinkedHashMap<String, CachedFile>(1024, 0.75f, true);
+	private long totalBytes;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Opens the cache in the supplied directory, picking up the images already in it.
+	 *
+	 * @param directory		Directory the images are kept in, created if it does not exist
+	 * @param maxBytes		Size the cache is kept under
+	 * @throws IOException	Thrown if the directory cannot be created
+	 */
+	public ConvertedImageCache(String directory, long maxBytes) throws IOException
+	{
+		this.directory = new File(directory);
+		this.maxBytes = maxBytes;
+
+		if ( ! this.directory.isDirectory() && ! this.directory.mkdirs())
+			throw new IOException("Could not create the image cache directory " + directory + ".");
+
+		load();
+		log.info("Image cache opened in " + directory + " with " + files.size() + " images, " + totalBytes + " bytes.");
+	}
+
+	/**
+	 * Opens the cache in the supplied directory, or leaves the server without one if the directory can't be used,
+	 * so a host without the directory still starts and simply converts every image.
+	 *
+	 * @param directory		Directory the images are kept in, created if it does not exist
+	 * @param maxBytes		Size the cache is kept under
+	 * @return				The open cache, or null if the directory cannot be created or written
+	 */
+	public static ConvertedImageCache open(String directory, long maxBytes)
+	{
+		try {
+			ConvertedImageCache cache = new ConvertedImageCache(directory, maxBytes);
+			if ( ! cache.directory.canWrite())
+				throw new IOException("Cannot write to the image cache directory " + directory + ".");
+			return cache;
+		}
+		catch (IOException e) {
+			log.warn("Images will not be cached, as the image cache could not be opened. " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @return		The cache key of a tile converted with the supplied settings
+	 */
+	public static String key(Experiment experiment, Tile tile, ImageEncoding encoding, DemosaicAlgorithm demosaic)
+	{
+		StringBuilder key = new StringBuilder()
+				.append(experiment.name)
+				.append('/').append(tile.rawImageOid)
+				.append('/').append(encoding.getFormatName());
+
+		if (encoding.isJPEG())
+			key.append("-q").append(encoding.getJpegQuality());
+		else
+			key.append("-l").append(encoding.getPngLevel()).append('-').append(encoding.getPngFilter().getName());
+
+		if (tile.dataFormat == 1)
+			key.append('/').append(demosaic.getName());
+
+		return key.toString();
+	}
+
+	/**
+	 * Opens the image cached under the key.
+	 *
+	 * @return		The open image, which the caller must close, or null if it is not cached
+	 */
+	public CachedImage open(String key)
+	{
+		String id = hash(key);
+		CachedFile cached;
+		synchronized (this) {
+			cached = files.get(id);
+		}
+
+		if (cached != null) {
+			try {
+				CachedImage image = new CachedImage(cached.file, cached.crc);
+				cached.file.setLastModified(System.currentTimeMillis());
+				hits.incrementAndGet();
+				return image;
+			}
+			catch (FileNotFoundException e) {
+				// Deleted behind the cache's back
+				remove(id, cached);
+			}
+		}
+
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Adds a converted image under the key, evicting the least recently used images to make room.
+	 * The image is written to a temporary file and renamed into place once complete.
+	 *
+	 * @throws IOException	Thrown if the image could not be written
+	 */
+	public void put(String key, ConvertedImage image) throws IOException
+	{
+		String id = hash(key);
+		synchronized (this) {
+			if (files.containsKey(id))
+				return;
+		}
+
+		String name = id + "-" + Long.toHexString(image.getCrc());
+		File file = new File(new File(directory, name.substring(0, 2)), name);
+		File temporary = new File(file.getParentFile(), name + "." + Thread.currentThread().getId() + TEMPORARY_SUFFIX);
+
+		if ( ! file.getParentFile().isDirectory() && ! file.getParentFile().mkdirs())
+			throw new IOException("Could not create " + file.getParent() + ".");
+
+		OutputStream output = new FileOutputStream(temporary);
+		try {
+			image.writeTo(output);
+		}
+		finally {
+			output.close();
+		}
+
+		if ( ! temporary.renameTo(file)) {
+			temporary.delete();
+			throw new IOException("Could not publish " + file + ".");
+		}
+
+		List<File> evicted = new ArrayList<File>();
+		synchronized (this) {
+			CachedFile previous = files.put(id, new CachedFile(file, image.getLength(), image.getCrc()));
+			if (previous != null)
+				totalBytes -= previous.length;
+			totalBytes += image.getLength();
+
+			Iterator<CachedFile> leastRecent = files.values().iterator();
+			while (totalBytes > maxBytes && leastRecent.hasNext()) {
+				CachedFile oldest = leastRecent.next();
+				if (oldest.file.equals(file))
+					continue;
+
+				leastRecent.remove();
+				totalBytes -= oldest.length;
+				evicted.add(oldest.file);
+			}
+		}
+
+		// Readers that already opened an evicted image keep reading it after it is deleted
+		for (File oldest : evicted)
+			oldest.delete();
+	}
+
+	private synchronized void remove(String id, CachedFile cached)
+	{
+		if (files.get(id) == cached) {
+			files.remove(id);
+			totalBytes -= cached.length;
+		}
+	}
+
+	/**
+	 * Picks up the images left by a previous run, oldest first, and deletes unfinished temporary files.
+	 * Image files are named by the SHA-1 of their key and their CRC32, both in hex.
+	 */
+	private void load()
+	{
+		List<File> found = new ArrayList<File>();
+		File[] subdirectories = directory.listFiles();
+		if (subdirectories == null)
+			return;
+
+		for (File subdirectory : subdirectories) {
+			File[] images = subdirectory.listFiles();
+			if (images == null)
+				continue;
+
+			for (File image : images) {
+				if (image.getName().endsWith(TEMPORARY_SUFFIX))
+					image.delete();
+				else
+					found.add(image);
+			}
+		}
+
+		Collections.sort(found, new Comparator<File>() {
+			@Override
+			public int compare(File first, File second)
+			{
+				long difference = first.lastModified() - second.lastModified();
+				return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+			}
+		});
+
+		for (File image : found) {
+			String name = image.getName();
+			int separator = name.lastIndexOf('-');
+			if (separator < 0)
+				continue;
+
+			long crc;
+			try {
+				crc = Long.parseLong(name.substring(separator + 1), 16);
+			}
+			catch (NumberFormatException e) {
+				continue;
+			}
+			files.put(name.substring(0, separator), new CachedFile(image, image.length(), crc));
+			totalBytes += image.length();
+		}
+
+		// The limit may have been lowered since the last run
+		Iterator<CachedFile> leastRecent = files.values().iterator();
+		while (totalBytes > maxBytes && leastRecent.hasNext()) {
+			CachedFile oldest = leastRecent.next();
+			leastRecent.remove();
+			totalBytes -= oldest.length;
+			oldest.file.delete();
+		}
+	}
+
+	private static String hash(String key)
+	{
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+			char[] hex = new char[digest.length * 2];
+			for (int i = 0; i < digest.length; i++) {
+				hex[2 * i] = HEX[(digest[i] >> 4) & 0xF];
+				hex[2 * i + 1] = HEX[digest[i] & 0xF];
+			}
+			return new String(hex);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not available.", e);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("UTF-8 is not available.", e);
+		}
+	}
+
+
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	// Get/Set Methods
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	public String getDirectory()
+	{
+		return directory.getPath();
+	}
+
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	public synchronized long getTotalBytes()
+	{
+		return totalBytes;
+	}
+
+	public synchronized int getImageCount()
+	{
+		return files.size();
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+
+	/**
+	 * An image file the cache holds.
+	 */
+	private static class CachedFile
+	{
+		final File file;
+		final long length;
+		final long crc;
+
+		CachedFile(File file, long length, long crc)
+		{
+			this.file = file;
+			this.length = length;
+			this.crc = crc;
+		}
+	}
+
+	/**
+	 * A cached image opened for reading. Once open, it can still be read after it is evicted.
+	 */
+	public static class CachedImage
+	{
+		private final FileInputStream input;
+		private final long length;
+		private final long crc;
+
+		CachedImage(File file, long crc) throws FileNotFoundException
+		{
+			this.input = new FileInputStream(file);
+			this.length = file.length();
+			this.crc = crc;
+		}
+
+		/**
+		 * Copies the image to the target channel.
+		 */
+		public void transferTo(WritableByteChannel target) throws IOException
+		{
+			FileChannel channel = input.getChannel();
+			long position = 0;
+			while (position < length) {
+				long transferred = channel.transferTo(position, length - position, target);
+				if (transferred <= 0)
+					throw new IOException("Cached image ended after " + position + " of " + length + " bytes.");
+				position += transferred;
+			}
+		}
+
+		public void close()
+		{
+			try {
+				input.close();
+			}
+			catch (IOException e) {
+				log.warn("Could not close a cached image.", e);
+			}
+		}
+
+		public long getLength()
+		{
+			return length;
+		}
+
+		public long getCrc()
+		{
+			return crc;
+		}
+	}
+}
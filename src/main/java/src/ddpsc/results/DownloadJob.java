@@ -0,0 +1,222 @@
+package src.ddpsc.results;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * A download archive being built on the server's disk by the {@link DownloadJobService}, to be fetched by its owner
+ * once finished. The archive is written under a temporary name and only appears as {@link #getArchive()} once it
+ * is complete, so a finished job's archive never changes and can be fetched in ranges.
+ *
+ * @author shill
+ */
+public class DownloadJob
+{
+	public enum State
+	{
+		QUEUED, RUNNING, FINISHED, FAILED, CANCELLED
+	}
+
+	private final String id;
+	private final String owner;
+	private final String experiment;
+	private final long created;
+	private final File archive;
+	private final DownloadProgress progress;
+
+	private volatile State state = State.QUEUED;
+	private volatile int snapshotCount = -1;
+	private volatile int tileCount = -1;
+	private volatile long stagedBytes;
+	private volatile long finished;
+	private volatile String failure;
+	private volatile List<Integer> missedSnapshots;
+	private volatile Future<?> future;
+
+	DownloadJob(String id, String owner, String experiment, File archive)
+	{
+		this.id = id;
+		this.owner = owner;
+		this.experiment = experiment;
+		this.archive = archive;
+		this.progress = new DownloadProgress(id, owner);
+		this.created = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return		Whether the job has stopped, successfully or not
+	 */
+	public boolean isDone()
+	{
+		return state == State.FINISHED || state == State.FAILED || state == State.CANCELLED;
+	}
+
+	/**
+	 * The job's state as reported to its owner.
+	 */
+	public Map<String, Object> toStatus()
+	{
+		Map<String, Object> status = new LinkedHashMap<String, Object>();
+		status.put("id", id);
+		status.put("experiment", experiment);
+		status.put("state", state.name());
+		if (snapshotCount >= 0) {
+			status.put("snapshots", snapshotCount);
+			status.put("tiles", tileCount);
+		}
+		status.put("stagedBytes", stagedBytes);
+		status.put("created", created);
+		if (finished > 0)
+			status.put("finished", finished);
+		if (state == State.FINISHED)
+			status.put("archiveBytes", archive.length());
+		if (failure != null)
+			status.put("failure", failure);
+		if (missedSnapshots != null)
+			status.put("missedSnapshots", missedSnapshots);
+		status.put("progress", progress.toStatus());
+		return status;
+	}
+
+
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	// Updated by the service
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	void setState(State state)
+	{
+		this.state = state;
+		if (isDone())
+			this.finished = System.currentTimeMillis();
+	}
+
+	/**
+	 * Records how many snapshots and tiles the job's query found, once they have all been read.
+	 */
+	void setCounts(int snapshotCount, int tileCount)
+	{
+		this.snapshotCount = snapshotCount;
+		this.tileCount = tileCount;
+	}
+
+	void addStagedBytes(long bytes)
+	{
+		stagedBytes += bytes;
+	}
+
+	void setFailure(String failure)
+	{
+		this.failure = failure;
+	}
+
+	void setMissedSnapshots(List<Integer> missedSnapshots)
+	{
+		this.missedSnapshots = missedSnapshots;
+	}
+
+	void setFuture(Future<?> future)
+	{
+		this.future = future;
+	}
+
+	Future<?> getFuture()
+	{
+		return future;
+	}
+
+
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	// Get/Set Methods
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	public String getId()
+	{
+		return id;
+	}
+
+	/**
+	 * @return		Username of the user who submitted the job
+	 */
+	public String getOwner()
+	{
+		return owner;
+	}
+
+	public String getExperiment()
+	{
+		return experiment;
+	}
+
+	public State getState()
+	{
+		return state;
+	}
+
+	/**
+	 * @return		Snapshots the job's query found, or -1 until its archive has been written
+	 */
+	public int getSnapshotCount()
+	{
+		return snapshotCount;
+	}
+
+	/**
+	 * @return		Tiles of the snapshots the job's query found, or -1 until its archive has been written
+	 */
+	public int getTileCount()
+	{
+		return tileCount;
+	}
+
+	public long getStagedBytes()
+	{
+		return stagedBytes;
+	}
+
+	/**
+	 * @return		Time the job was submitted, in milliseconds since the epoch
+	 */
+	public long getCreated()
+	{
+		return created;
+	}
+
+	/**
+	 * @return		Time the job stopped, or 0 while it is queued or running
+	 */
+	public long getFinished()
+	{
+		return finished;
+	}
+
+	/**
+	 * @return		The finished archive, which only exists once the job has {@link State#FINISHED}
+	 */
+	public File getArchive()
+	{
+		return archive;
+	}
+
+	/**
+	 * @return		Progress of building the archive
+	 */
+	public DownloadProgress getProgress()
+	{
+		return progress;
+	}
+
+	public String getFailure()
+	{
+		return failure;
+	}
+
+	public List<Integer> getMissedSnapshots()
+	{
+		return missedSnapshots;
+	}
+}
@@ -0,0 +1,344 @@
+package src.ddpsc.results;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import src.ddpsc.database.experiment.Experiment;
+import src.ddpsc.database.queries.Query;
+import src.ddpsc.database.snapshot.SnapshotCursor;
+import src.ddpsc.database.snapshot.SnapshotDao;
+
+/**
+ * Builds download archives on local disk in the background, so a client that loses its connection can fetch the
+ * rest of the archive instead of having every image converted again.
+ *
+ * A submitted job gets an id straight away and waits for one of a few workers. Its query is only run once a worker
+ * picks it up, through a {@link SnapshotCursor}, so a queued job holds no snapshots and a running one only a batch of
+ * them. The worker writes the archive with a {@link ResultsBuilder} to a temporary file in the staging directory and
+ * renames it once complete. The owner polls
+ * the job and fetches the archive, in ranges if it likes, until the job expires. Expired jobs and their archives
+ * are deleted, as are files left in the staging directory by a previous run, since jobs are only held in memory.
+ *
+ * Workers convert through the server-wide {@link ImageConversionService} like any other download.
+ *
+ * If the staging directory can't be created or written the server still starts, and jobs are refused until it can
+ * be, see {@link #isAvailable()}.
+ *
+ * @see DownloadJob
+ *
+ * @author shill
+ */
+public class DownloadJobService
+{
+	private static final Logger log = Logger.getLogger(DownloadJobService.class);
+
+	public static final int DEFAULT_WORKERS = 2;
+	public static final int DEFAULT_RETENTION_HOURS = 24;
+
+	private static final String ARCHIVE_SUFFIX = ".zip";
+	private static final String PARTIAL_SUFFIX = ".part";
+	private static final int STAGING_BUFFER = 256 * 1024;
+
+	private final ImageConversionService converter;
+	private final File stagingDirectory;
+	private final int retentionHours;
+
+	private final Map<String, DownloadJob> jobs = new ConcurrentHashMap<String, DownloadJob>();
+	private final SecureRandom random = new SecureRandom();
+
+	private final ThreadPoolExecutor workers;
+	private final ScheduledExecutorService cleaner;
+
+	/**
+	 * @param converter			Converts the jobs' images
+	 * @param stagingDirectory	Directory archives are built in, emptied on start
+	 * @param workers			Number of jobs built at once
+	 * @param retentionHours	How long a job and its archive are kept after it stops
+	 */
+	public DownloadJobService(ImageConversionService converter, String stagingDirectory, int workers, int retentionHours)
+	{
+		this.converter = converter;
+		this.stagingDirectory = new File(stagingDirectory);
+		this.retentionHours = Math.max(retentionHours, 1);
+
+		if (isAvailable())
+			deleteOrphans();
+		else
+			log.warn("Download jobs are unavailable until the staging directory " + stagingDirectory + " can be created and written.");
+
+		int threads = workers > 0 ? workers : DEFAULT_WORKERS;
+		this.workers = new ThreadPoolExecutor(
+				threads,
+				threads,
+				0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new JobThreadFactory("Download Job "));
+		this.cleaner = Executors.newSingleThreadScheduledExecutor(new JobThreadFactory("Download Job Cleaner "));
+		this.cleaner.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run()
+			{
+				deleteExpired();
+			}
+		}, 1, 1, TimeUnit.HOURS);
+
+		log.info("Download jobs staged in " + stagingDirectory + " with " + threads + " workers, kept for " + this.retentionHours + " hours.");
+	}
+
+	/**
+	 * Whether jobs can be staged, creating the staging directory if it's missing.
+	 */
+	public boolean isAvailable()
+	{
+		return (stagingDirectory.isDirectory() || stagingDirectory.mkdirs()) && stagingDirectory.canWrite();
+	}
+
+	/**
+	 * Queues a job building the archive of the supplied query. The query is run by the job's worker, not here.
+	 *
+	 * @param owner			Username of the user the archive is for
+	 * @param snapshotData	DAO of the experiment the query is in
+	 * @param query			The query whose snapshots are downloaded
+	 * @return				The queued job
+	 * @throws IOException	Thrown if the staging directory can't be used
+	 */
+	public DownloadJob submit(
+			String owner,
+			final SnapshotDao snapshotData,
+			final Query query,
+			final Experiment experiment,
+			final ImageEncoding encoding,
+			final DemosaicAlgorithm demosaic)
+					throws IOException
+	{
+		if ( ! isAvailable())
+			throw new IOException("Downloads can't be staged, as the staging directory " + stagingDirectory + " can't be written.");
+
+		String id = newId();
+		final DownloadJob job = new DownloadJob(
+				id,
+				owner,
+				experiment.name,
+				new File(stagingDirectory, id + ARCHIVE_SUFFIX));
+		jobs.put(id, job);
+
+		job.setFuture(workers.submit(new Runnable() {
+			@Override
+			public void run()
+			{
+				build(job, snapshotData, query, experiment, encoding, demosaic);
+			}
+		}));
+
+		log.info("Queued download job " + id + " in " + experiment.name + " for " + owner + ".");
+		return job;
+	}
+
+	/**
+	 * @return		The job with the supplied id, or null if there is none or it has expired
+	 */
+	public DownloadJob find(String id)
+	{
+		return jobs.get(id);
+	}
+
+	/**
+	 * Stops a job, interrupting its worker if it is running, and deletes its archive.
+	 */
+	public void cancel(DownloadJob job)
+	{
+		synchronized (job) {
+			if (job.isDone() && job.getState() != DownloadJob.State.FINISHED)
+				return;
+
+			job.setState(DownloadJob.State.CANCELLED);
+			job.getArchive().delete();
+		}
+		job.getFuture().cancel(true);
+		log.info("Cancelled download job " + job.getId() + ".");
+	}
+
+	public void shutdown()
+	{
+		log.info("Shutting down download jobs.");
+		cleaner.shutdownNow();
+		workers.shutdownNow();
+	}
+
+	/**
+	 * Runs a job's query and writes its archive to a temporary file, a batch of snapshots at a time, then renames
+	 * the archive into place.
+	 */
+	private void build(final DownloadJob job, SnapshotDao snapshotData, Query query, Experiment experiment,
+			ImageEncoding encoding, DemosaicAlgorithm demosaic)
+	{
+		if (job.getState() == DownloadJob.State.CANCELLED)
+			return;
+
+		job.setState(DownloadJob.State.RUNNING);
+		log.info("Building download job " + job.getId() + ".");
+
+		File partial = new File(stagingDirectory, job.getId() + PARTIAL_SUFFIX);
+		try {
+			OutputStream staging = new FilterOutputStream(new BufferedOutputStream(new FileOutputStream(partial), STAGING_BUFFER)) {
+				@Override
+				public void write(int b) throws IOException
+				{
+					out.write(b);
+					job.addStagedBytes(1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException
+				{
+					out.write(b, off, len);
+					job.addStagedBytes(len);
+				}
+			};
+
+			DownloadZipResult result;
+			SnapshotCursor snapshots = null;
+			try {
+				snapshots = snapshotData.openCustomQuery(query, SnapshotCursor.DEFAULT_BATCH_SIZE);
+				ResultsBuilder results = new ResultsBuilder(staging, snapshots, experiment, encoding, demosaic, converter);
+				results.setProgressListener(job.getProgress());
+				result = results.writeZipArchive();
+				job.setCounts(snapshots.getSnapshotsRead(), snapshots.getTilesRead());
+			}
+			finally {
+				if (snapshots != null)
+					snapshots.close();
+				staging.close();
+			}
+
+			job.setMissedSnapshots(result.missedSnapshots);
+			if ( ! result.succeeded && job.getState() != DownloadJob.State.CANCELLED)
+				throw new IOException("The archive could not be written.");
+
+			synchronized (job) {
+				if (job.getState() == DownloadJob.State.CANCELLED)
+					return;
+				if ( ! partial.renameTo(job.getArchive()))
+					throw new IOException("Could not publish " + job.getArchive() + ".");
+				job.setState(DownloadJob.State.FINISHED);
+			}
+			log.info("Download job " + job.getId() + " finished, " + job.getArchive().length() + " bytes.");
+		}
+		catch (Exception e) {
+			// The archive may have failed before it was started, the progress must still end with the job
+			if ( ! job.getProgress().isFinished())
+				job.getProgress().finished(false, job.getStagedBytes());
+			if (job.getState() == DownloadJob.State.CANCELLED)
+				return;
+
+			log.error("Download job " + job.getId() + " failed.", e);
+			job.setFailure(e.getMessage());
+			job.setState(DownloadJob.State.FAILED);
+		}
+		finally {
+			partial.delete();
+		}
+	}
+
+	private String newId()
+	{
+		String id;
+		do {
+			id = Long.toString(random.nextLong() & Long.MAX_VALUE, 36);
+		}
+		while (jobs.containsKey(id));
+		return id;
+	}
+
+	/**
+	 * Deletes jobs, and their archives, that stopped longer ago than the retention period.
+	 */
+	private void deleteExpired()
+	{
+		long expiry = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(retentionHours);
+		Iterator<DownloadJob> iterator = jobs.values().iterator();
+		while (iterator.hasNext()) {
+			DownloadJob job = iterator.next();
+			if (job.isDone() && job.getFinished() < expiry) {
+				iterator.remove();
+				job.getArchive().delete();
+				log.info("Download job " + job.getId() + " expired.");
+			}
+		}
+	}
+
+	private void deleteOrphans()
+	{
+		File[] files = stagingDirectory.listFiles();
+		if (files == null)
+			return;
+
+		for (File file : files) {
+			if (file.getName().endsWith(ARCHIVE_SUFFIX) || file.getName().endsWith(PARTIAL_SUFFIX))
+				file.delete();
+		}
+	}
+
+
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	// Get/Set Methods
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	public String getStagingDirectory()
+	{
+		return stagingDirectory.getPath();
+	}
+
+	public int getRetentionHours()
+	{
+		return retentionHours;
+	}
+
+	public int getWorkers()
+	{
+		return workers.getCorePoolSize();
+	}
+
+	public int getQueuedCount()
+	{
+		return workers.getQueue().size();
+	}
+
+
+	private static class JobThreadFactory implements ThreadFactory
+	{
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		JobThreadFactory(String prefix)
+		{
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
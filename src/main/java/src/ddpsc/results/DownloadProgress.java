@@ -0,0 +1,214 @@
+package src.ddpsc.results;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Progress of one download, as reported to the user downloading it and to administrators.
+ *
+ * Besides counts, the status has throughput and an estimate of the time left, and says whether the download is
+ * bound by conversion or by the network: whichever the writing thread has spent more of its time waiting on.
+ *
+ * Every update bumps a version, so a poller can wait for the next change with {@link #awaitChange(long, long)}
+ * instead of polling in a tight loop.
+ *
+ * @see DownloadProgressRegistry
+ *
+ * @author shill
+ */
+public class DownloadProgress implements DownloadProgressListener
+{
+	private static final double MEGABYTE = 1024 * 1024;
+
+	private final String key;
+	private final String owner;
+
+	private long version;
+	private long startNanos;
+	private long finishedNanos;
+	private long finishedTime;
+	private boolean started;
+	private boolean finished;
+	private boolean succeeded;
+
+	private int snapshots;
+	private int tiles;
+	private int snapshotsWritten;
+	private int tilesWritten;
+	private int tilesSkipped;
+	private long archiveBytes;
+	private long conversionNanos;
+	private long writeNanos;
+
+	/**
+	 * @param key		What the download is looked up by: its download key or job id
+	 * @param owner		Username of the user downloading
+	 */
+	public DownloadProgress(String key, String owner)
+	{
+		this.key = key;
+		this.owner = owner;
+	}
+
+	@Override
+	public synchronized void started(int snapshots, int tiles)
+	{
+		this.snapshots = snapshots;
+		this.tiles = tiles;
+		this.started = true;
+		this.startNanos = System.nanoTime();
+		changed();
+	}
+
+	@Override
+	public synchronized void tileWritten(long archiveBytes, long conversionNanos, long writeNanos)
+	{
+		this.tilesWritten++;
+		this.archiveBytes = archiveBytes;
+		this.conversionNanos += conversionNanos;
+		this.writeNanos += writeNanos;
+		changed();
+	}
+
+	@Override
+	public synchronized void tileSkipped()
+	{
+		tilesSkipped++;
+		changed();
+	}
+
+	@Override
+	public synchronized void snapshotWritten(long archiveBytes)
+	{
+		this.snapshotsWritten++;
+		this.archiveBytes = archiveBytes;
+		changed();
+	}
+
+	@Override
+	public synchronized void finished(boolean succeeded, long archiveBytes)
+	{
+		this.finished = true;
+		this.succeeded = succeeded;
+		this.archiveBytes = archiveBytes;
+		this.finishedNanos = System.nanoTime();
+		this.finishedTime = System.currentTimeMillis();
+		changed();
+	}
+
+	private void changed()
+	{
+		version++;
+		notifyAll();
+	}
+
+	/**
+	 * Waits until the progress is past the supplied version, or the download finishes, or the timeout passes.
+	 *
+	 * @param version		Version the caller last saw
+	 * @param timeoutMs		Longest time to wait
+	 * @return				The current version
+	 * @throws InterruptedException		Thrown if the waiting thread is interrupted
+	 */
+	public synchronized long awaitChange(long version, long timeoutMs) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		while (this.version <= version && ! finished) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				break;
+			wait(remaining);
+		}
+		return this.version;
+	}
+
+	/**
+	 * @return		Time the download finished, in milliseconds since the epoch, or 0 if it has not
+	 */
+	public synchronized long getFinishedTime()
+	{
+		return finishedTime;
+	}
+
+	/**
+	 * The download's progress, throughput and estimated time left, as reported to users.
+	 */
+	public synchronized Map<String, Object> toStatus()
+	{
+		Map<String, Object> status = new LinkedHashMap<String, Object>();
+		status.put("key", key);
+		status.put("version", version);
+		status.put("state", ! started ? "waiting" : ! finished ? "running" : succeeded ? "finished" : "interrupted");
+		status.put("snapshotsWritten", snapshotsWritten);
+		status.put("snapshots", snapshots);
+		status.put("tilesWritten", tilesWritten);
+		status.put("tilesSkipped", tilesSkipped);
+		status.put("tiles", tiles);
+		status.put("bytesWritten", archiveBytes);
+
+		if ( ! started)
+			return status;
+
+		long elapsedNanos = (finished ? finishedNanos : System.nanoTime()) - startNanos;
+		double seconds = Math.max(elapsedNanos / 1e9, 0.001);
+		double tilesPerSecond = (tilesWritten + tilesSkipped) / seconds;
+		status.put("elapsedSeconds", round(seconds));
+		status.put("megabytesPerSecond", round(archiveBytes / MEGABYTE / seconds));
+		status.put("tilesPerSecond", round(tilesPerSecond));
+
+		// Streamed downloads don't know their totals, so have no estimate
+		if ( ! finished && tiles >= 0 && tilesPerSecond > 0) {
+			int remaining = tiles - tilesWritten - tilesSkipped;
+			status.put("etaSeconds", Math.max(Math.round(remaining / tilesPerSecond), 0));
+		}
+
+		if (conversionNanos + writeNanos > 0) {
+			status.put("conversionSeconds", round(conversionNanos / 1e9));
+			status.put("writeSeconds", round(writeNanos / 1e9));
+			status.put("boundBy", conversionNanos > writeNanos ? "conversion" : "network");
+		}
+		return status;
+	}
+
+	private static double round(double value)
+	{
+		return Math.round(value * 100) / 100.0;
+	}
+
+
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	// Get/Set Methods
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	public String getKey()
+	{
+		return key;
+	}
+
+	public String getOwner()
+	{
+		return owner;
+	}
+
+	public synchronized boolean isFinished()
+	{
+		return finished;
+	}
+
+	public synchronized long getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * @return		Time the download has been writing, or took to write
+	 */
+	public synchronized long getElapsed(TimeUnit unit)
+	{
+		if ( ! started)
+			return 0;
+		return unit.convert((finished ? finishedNanos : System.nanoTime()) - startNanos, TimeUnit.NANOSECONDS);
+	}
+}
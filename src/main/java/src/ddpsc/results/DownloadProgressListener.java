@@ -0,0 +1,55 @@
+package src.ddpsc.results;
+
+/**
+ * Told by a {@link ResultsBuilder} how far it is through writing an archive. Called from the thread writing the
+ * archive, so implementations should return quickly.
+ *
+ * For each image the builder reports how long it waited for the image to convert and how long writing it to the
+ * client took, which shows whether a download is held up by conversion or by the network.
+ *
+ * @see DownloadProgress
+ *
+ * @author shill
+ */
+public interface DownloadProgressListener
+{
+	/**
+	 * Listens to nothing, for builders no one is watching.
+	 */
+	public static final DownloadProgressListener NONE = new DownloadProgressListener() {
+		public void started(int snapshots, int tiles) { }
+		public void tileWritten(long archiveBytes, long conversionNanos, long writeNanos) { }
+		public void tileSkipped() { }
+		public void snapshotWritten(long archiveBytes) { }
+		public void finished(boolean succeeded, long archiveBytes) { }
+	};
+
+	/**
+	 * @param snapshots		Snapshots in the archive, or -1 if the archive is streamed and the count not yet known
+	 * @param tiles			Tiles in the archive, or -1 if not yet known
+	 */
+	public void started(int snapshots, int tiles);
+
+	/**
+	 * @param archiveBytes		Bytes of the archive written so far
+	 * @param conversionNanos	Time spent waiting for the image to convert
+	 * @param writeNanos		Time spent writing the image to the archive
+	 */
+	public void tileWritten(long archiveBytes, long conversionNanos, long writeNanos);
+
+	/**
+	 * A tile was left out of the archive, as its blob is missing or could not be converted.
+	 */
+	public void tileSkipped();
+
+	/**
+	 * @param archiveBytes		Bytes of the archive written so far
+	 */
+	public void snapshotWritten(long archiveBytes);
+
+	/**
+	 * @param succeeded			False if the archive was cut short, e.g. by the client disconnecting
+	 * @param archiveBytes		Bytes of the archive written
+	 */
+	public void finished(boolean succeeded, long archiveBytes);
+}
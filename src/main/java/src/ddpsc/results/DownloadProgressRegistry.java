@@ -0,0 +1,68 @@
+package src.ddpsc.results;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The progress of downloads streamed from request threads, looked up by their download key. Finished downloads are
+ * kept for a few minutes so a poller sees how they ended.
+ *
+ * Download jobs hold their own progress, see {@link DownloadJob#getProgress()}.
+ *
+ * @author shill
+ */
+public class DownloadProgressRegistry
+{
+	public static final int DEFAULT_KEEP_MINUTES = 10;
+
+	private final Map<String, DownloadProgress> downloads = new ConcurrentHashMap<String, DownloadProgress>();
+	private final long keepMillis;
+
+	public DownloadProgressRegistry()
+	{
+		this(DEFAULT_KEEP_MINUTES);
+	}
+
+	/**
+	 * @param keepMinutes		How long a finished download's progress is kept
+	 */
+	public DownloadProgressRegistry(int keepMinutes)
+	{
+		this.keepMillis = TimeUnit.MINUTES.toMillis(keepMinutes);
+	}
+
+	/**
+	 * Starts tracking a download, replacing any earlier download with the same key.
+	 *
+	 * @return		The progress to hand to the download's {@link ResultsBuilder}
+	 */
+	public DownloadProgress register(String key, String owner)
+	{
+		removeExpired();
+
+		DownloadProgress progress = new DownloadProgress(key, owner);
+		downloads.put(key, progress);
+		return progress;
+	}
+
+	/**
+	 * @return		The download's progress, or null if there is none or it finished too long ago
+	 */
+	public DownloadProgress find(String key)
+	{
+		return downloads.get(key);
+	}
+
+	private void removeExpired()
+	{
+		long expiry = System.currentTimeMillis() - keepMillis;
+		Iterator<DownloadProgress> iterator = downloads.values().iterator();
+		while (iterator.hasNext()) {
+			DownloadProgress progress = iterator.next();
+			if (progress.isFinished() && progress.getFinishedTime() < expiry)
+				iterator.remove();
+		}
+	}
+}
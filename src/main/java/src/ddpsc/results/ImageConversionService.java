@@ -0,0 +1,276 @@
+package src.ddpsc.results;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Server-wide pool of image conversion workers shared by every download.
+ *
+ * Converting a tile holds a full raw frame and its converted copy in memory, so the number of conversions
+ * that may exist at once is bounded for the whole server rather than for each request. A conversion must
+ * reserve a slot before it is submitted and the slot is only given back once the archive writer has consumed
+ * the converted image. When all slots are taken the archive writers block, which gives back-pressure on the
+ * writers instead of queuing an unbounded amount of work.
+ *
+ * There are exactly as many slots as there are worker threads plus queue positions, so submissions never
+ * overflow the queue.
+ *
+ * The service also holds the prefetch window used by archive writers: how many snapshots past the one being
+ * written may be converting, and how much memory their pending images may be estimated to hold.
+ *
+ * Large frames may additionally be demosaiced in row bands, and large pngs deflated in blocks. Bands and blocks
+ * run on a separate pool that never queues: when no band thread is idle the converting thread does the work
+ * itself, so a busy server simply falls back to one thread per image.
+ *
+ * When an image cache is configured, archive writers look tiles up in it before submitting them, and converted
+ * images are added to it.
+ *
+ * @see ResultsBuilder
+ *
+ * @author shill
+ */
+public class ImageConversionService
+{
+	private static final Logger log = Logger.getLogger(ImageConversionService.class);
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 32;
+	public static final int DEFAULT_PREFETCH_SNAPSHOTS = 2;
+	public static final long DEFAULT_PREFETCH_BYTES = 256L * 1024 * 1024;
+	public static final int DEFAULT_DEMOSAIC_BANDS = 1;
+	public static final int DEFAULT_PNG_BLOCKS = 1;
+
+	private final int threads;
+	private final int queueCapacity;
+
+	private final ThreadPoolExecutor executor;
+	private final Semaphore slots;
+	private final ThreadPoolExecutor bandExecutor;
+
+	private int prefetchSnapshots = DEFAULT_PREFETCH_SNAPSHOTS;
+	private long prefetchBytes = DEFAULT_PREFETCH_BYTES;
+	private int demosaicBands = DEFAULT_DEMOSAIC_BANDS;
+	private int pngBlocks = DEFAULT_PNG_BLOCKS;
+	private ConvertedImageCache imageCache;
+
+	/**
+	 * Creates a conversion pool with one worker per core and the default queue capacity.
+	 */
+	public ImageConversionService()
+	{
+		this(0, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * Creates a conversion pool.
+	 *
+	 * @param threads			Number of worker threads, zero or less uses the number of cores
+	 * @param queueCapacity		Number of conversions that may wait for a worker
+	 */
+	public ImageConversionService(int threads, int queueCapacity)
+	{
+		this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		this.queueCapacity = Math.max(queueCapacity, 1);
+
+		this.executor = new ThreadPoolExecutor(
+				this.threads,
+				this.threads,
+				0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(this.queueCapacity),
+				new ConverterThreadFactory("Image Processor "));
+		this.slots = new Semaphore(this.threads + this.queueCapacity, true);
+
+		this.bandExecutor = new ThreadPoolExecutor(
+				0,
+				this.threads,
+				60L, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(),
+				new ConverterThreadFactory("Demosaic Band "),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+
+		log.info("Image conversion pool started with " + this.threads + " threads and a queue of " + this.queueCapacity + ".");
+	}
+
+	/**
+	 * Reserves a conversion slot, blocking until one is available.
+	 *
+	 * @throws InterruptedException		Thrown if the waiting thread is interrupted
+	 */
+	public void reserve() throws InterruptedException
+	{
+		slots.acquire();
+	}
+
+	/**
+	 * Reserves a conversion slot, waiting at most the supplied time.
+	 *
+	 * @return							Whether a slot was reserved
+	 * @throws InterruptedException		Thrown if the waiting thread is interrupted
+	 */
+	public boolean tryReserve(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		return slots.tryAcquire(timeout, unit);
+	}
+
+	/**
+	 * Gives back a slot reserved by {@link #reserve()} or {@link #tryReserve(long, TimeUnit)}. Must be called once
+	 * the converted image is no longer held, whether or not the conversion succeeded.
+	 */
+	public void release()
+	{
+		slots.release();
+	}
+
+	/**
+	 * Queues a conversion. The caller must already hold a reserved slot.
+	 *
+	 * @param conversion	The conversion to run
+	 * @return				Future result of the conversion
+	 */
+	public <T> Future<T> submit(Callable<T> conversion)
+	{
+		return executor.submit(conversion);
+	}
+
+	public void shutdown()
+	{
+		log.info("Shutting down the image conversion pool.");
+		executor.shutdownNow();
+		bandExecutor.shutdownNow();
+	}
+
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	// Get/Set Methods
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	/**
+	 * @return		Runs the extra row bands of a frame or blocks of a png, or the caller runs them when every band thread is busy
+	 */
+	public Executor getBandExecutor()
+	{
+		return bandExecutor;
+	}
+
+	public int getThreads()
+	{
+		return threads;
+	}
+
+	public int getQueueCapacity()
+	{
+		return queueCapacity;
+	}
+
+	public int getActiveCount()
+	{
+		return executor.getActiveCount();
+	}
+
+	public int getQueuedCount()
+	{
+		return executor.getQueue().size();
+	}
+
+	public int getAvailableSlots()
+	{
+		return slots.availablePermits();
+	}
+
+	public int getPrefetchSnapshots()
+	{
+		return prefetchSnapshots;
+	}
+
+	/**
+	 * @param prefetchSnapshots		Snapshots past the one being written that may be converting, zero disables prefetching
+	 */
+	public void setPrefetchSnapshots(int prefetchSnapshots)
+	{
+		this.prefetchSnapshots = Math.max(prefetchSnapshots, 0);
+	}
+
+	public long getPrefetchBytes()
+	{
+		return prefetchBytes;
+	}
+
+	/**
+	 * @param prefetchBytes			Estimated memory a single download's pending images may hold before it stops prefetching
+	 */
+	public void setPrefetchBytes(long prefetchBytes)
+	{
+		this.prefetchBytes = prefetchBytes;
+	}
+
+	public int getDemosaicBands()
+	{
+		return demosaicBands;
+	}
+
+	/**
+	 * @param demosaicBands		Row bands a single VIS frame may be split into, one disables band parallelism
+	 */
+	public void setDemosaicBands(int demosaicBands)
+	{
+		this.demosaicBands = Math.max(demosaicBands, 1);
+	}
+
+	public int getPngBlocks()
+	{
+		return pngBlocks;
+	}
+
+	/**
+	 * @param pngBlocks			Blocks a single png may be split into for deflating, one disables block parallelism
+	 */
+	public void setPngBlocks(int pngBlocks)
+	{
+		this.pngBlocks = Math.max(pngBlocks, 1);
+	}
+
+	/**
+	 * @return		Cache of converted images, or null if images are always converted
+	 */
+	public ConvertedImageCache getImageCache()
+	{
+		return imageCache;
+	}
+
+	public void setImageCache(ConvertedImageCache imageCache)
+	{
+		this.imageCache = imageCache;
+	}
+
+
+	/**
+	 * Names the worker threads and keeps them from holding the server open on shutdown.
+	 */
+	private static class ConverterThreadFactory implements ThreadFactory
+	{
+		private final AtomicInteger count = new AtomicInteger();
+		private final String prefix;
+
+		ConverterThreadFactory(String prefix)
+		{
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
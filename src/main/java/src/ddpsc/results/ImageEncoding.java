@@ -0,0 +1,134 @@
+package src.ddpsc.results;
+
+/**
+ * How converted images are encoded for a download: the format and its compression settings.
+ *
+ * The raw encoding skips conversion entirely, and each tile's raw frame is copied out of its blob as it is.
+ *
+ * @see PngEncoder
+ * @see ImageWriterPool
+ *
+ * @author shill
+ */
+public class ImageEncoding
+{
+	public static final float DEFAULT_JPEG_QUALITY = 0.75f; // 10% size
+
+	/**
+	 * Leaves the deflate level up to the encoder.
+	 */
+	public static final int DEFAULT_PNG_LEVEL = -1;
+
+	private final boolean raw;
+	private final boolean jpeg;
+	private final float jpegQuality;
+	private final int pngLevel;
+	private final PngFilter pngFilter;
+
+	/**
+	 * @param jpeg			Whether images are encoded as jpeg rather than png
+	 * @param jpegQuality	Jpeg quality from 0 (smallest) to 1 (best)
+	 * @param pngLevel		Png deflate level from 0 (fastest) to 9 (smallest), or -1 for the encoder's default
+	 * @param pngFilter		Png row filter
+	 * @throws IllegalArgumentException		Thrown if either setting is out of range
+	 */
+	public ImageEncoding(boolean jpeg, float jpegQuality, int pngLevel, PngFilter pngFilter)
+	{
+		if ( ! (jpegQuality >= 0 && jpegQuality <= 1))
+			throw new IllegalArgumentException("JPEG quality must be between 0 and 1, not " + jpegQuality + ".");
+
+		if (pngLevel < -1 || pngLevel > 9)
+			throw new IllegalArgumentException("PNG level must be between 0 and 9, or -1, not " + pngLevel + ".");
+
+		this.raw = false;
+		this.jpeg = jpeg;
+		this.jpegQuality = jpegQuality;
+		this.pngLevel = pngLevel;
+		this.pngFilter = pngFilter;
+	}
+
+	/**
+	 * @return		The encoding for the format with default compression settings
+	 */
+	public static ImageEncoding defaults(boolean jpeg)
+	{
+		return new ImageEncoding(jpeg, DEFAULT_JPEG_QUALITY, DEFAULT_PNG_LEVEL, PngFilter.DEFAULT);
+	}
+
+	/**
+	 * @return		The encoding that copies raw frames without converting them
+	 */
+	public static ImageEncoding raw()
+	{
+		return new ImageEncoding();
+	}
+
+	private ImageEncoding()
+	{
+		this.raw = true;
+		this.jpeg = false;
+		this.jpegQuality = DEFAULT_JPEG_QUALITY;
+		this.pngLevel = DEFAULT_PNG_LEVEL;
+		this.pngFilter = PngFilter.DEFAULT;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "ImageEncoding ["
+				+ "format=" + getFormatName() + ", "
+				+ "jpegQuality=" + jpegQuality + ", "
+				+ "pngLevel=" + pngLevel + ", "
+				+ "pngFilter=" + pngFilter.getName()
+				+ "]";
+	}
+
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	// Get/Set Methods
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	/**
+	 * @return		Whether raw frames are copied instead of converted
+	 */
+	public boolean isRaw()
+	{
+		return raw;
+	}
+
+	public boolean isJPEG()
+	{
+		return jpeg;
+	}
+
+	/**
+	 * @return		The ImageIO format name
+	 */
+	public String getFormatName()
+	{
+		return raw ? "raw" : jpeg ? "jpg" : "png";
+	}
+
+	/**
+	 * @return		File extension for images in this encoding, including the dot
+	 */
+	public String getExtension()
+	{
+		return raw ? ".raw" : jpeg ? ".jpg" : ".png";
+	}
+
+	public float getJpegQuality()
+	{
+		return jpegQuality;
+	}
+
+	public int getPngLevel()
+	{
+		return pngLevel;
+	}
+
+	public PngFilter getPngFilter()
+	{
+		return pngFilter;
+	}
+}
@@ -1,26 +1,21 @@
 package src.ddpsc.results;
 
-import java.awt.Point;
 import java.awt.image.BufferedImage;
-import java.awt.image.ComponentSampleModel;
-import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferUShort;
-import java.awt.image.Raster;
-import java.awt.image.WritableRaster;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
 
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.stream.ImageOutputStream;
-import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 import org.apache.commons.io.IOUtils;
 
@@ -56,20 +51,37 @@ public class ImageService
 	public final static int VISWIDTH = 2454;
 	public final static int VISHEIGHT = 2056;
 	
-	private final static float JPEG_QUALITY = 0.75f; // 10% size
+	ImageEncoding encoding;
 	
-	boolean convertJPEG;
-	ImageWriter jpegWriter;
-	ImageWriteParam jpegParam;
+	DemosaicAlgorithm demosaic;
+	Executor bandExecutor;
+	int demosaicBands;
+	int pngBlocks;
 	
 	public ImageService(boolean convertJPEG)
 	{
-		this.convertJPEG = convertJPEG;
-		
-		jpegWriter = ImageIO.getImageWritersByFormatName("jpg").next();
-		jpegParam = jpegWriter.getDefaultWriteParam();
-		jpegParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-		jpegParam.setCompressionQuality(JPEG_QUALITY);
+		this(ImageEncoding.defaults(convertJPEG), DemosaicAlgorithm.DEFAULT, null, 1, 1);
+	}
+	
+	/**
+	 * @param encoding			Format and compression settings of the converted images
+	 * @param demosaic			How VIS frames are interpolated
+	 * @param bandExecutor		Runs the extra row bands of VIS frames and png blocks, null keeps all work on the converting thread
+	 * @param demosaicBands		Row bands a single VIS frame may be split into
+	 * @param pngBlocks			Blocks a single png may be split into for deflating
+	 */
+	public ImageService(
+			ImageEncoding encoding,
+			DemosaicAlgorithm demosaic,
+			Executor bandExecutor,
+			int demosaicBands,
+			int pngBlocks)
+	{
+		this.encoding = encoding;
+		this.demosaic = demosaic;
+		this.bandExecutor = bandExecutor;
+		this.demosaicBands = demosaicBands;
+		this.pngBlocks = pngBlocks;
 	}
 	
 	public static void main(String[] args)
@@ -135,14 +147,39 @@ public class ImageService
 		byte[] bytes = IOUtils.toByteArray(input);
 		input.close();
 		
+		toInfrared(ByteBuffer.wrap(bytes), output);
+	}
+	
+	/**
+	 * Converts a raw 8bit infrared frame, stored bottom row first, to the service's format. The rows are copied
+	 * from the buffer straight into the image.
+	 * 
+	 * @param raw			Raw frame from the buffer's position, such as a mapped blob from {@link src.ddpsc.database.tile.TileBlob#readData()}
+	 * @throws IOException	Thrown if the frame is short or cannot be encoded
+	 */
+	public void toInfrared(ByteBuffer raw, OutputStream output) throws IOException
+	{
+		outputImage(infraredImage(raw), output);
+	}
+	
+	/**
+	 * @return				The 8bit gray image of a raw infrared frame
+	 * @throws IOException	Thrown if the frame is short
+	 * @see #toInfrared(ByteBuffer, OutputStream)
+	 */
+	public static BufferedImage infraredImage(ByteBuffer raw) throws IOException
+	{
+		if (raw.remaining() < NIRWIDTH * NIRHEIGHT)
+			throw new EOFException("Infrared frame has " + raw.remaining() + " of " + NIRWIDTH * NIRHEIGHT + " bytes.");
+		
 		BufferedImage image = new BufferedImage(NIRWIDTH, NIRHEIGHT, BufferedImage.TYPE_BYTE_GRAY);
+		byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
 		
-		WritableRaster grayRaster = image.getRaster();
-		for (int x = 0; x < NIRHEIGHT; x++)
-			for (int y = 0; y < NIRWIDTH; y++)
-				grayRaster.setSample(y, NIRHEIGHT - x - 1, 0, bytes[x * NIRWIDTH + y] );
+		ByteBuffer rows = raw.duplicate();
+		for (int row = 0; row < NIRHEIGHT; row++)
+			rows.get(pixels, (NIRHEIGHT - row - 1) * NIRWIDTH, NIRWIDTH);
 		
-		outputImage(image, output);
+		return image;
 	}
 
 	/**
@@ -159,58 +196,79 @@ public class ImageService
 		byte[] bytes = IOUtils.toByteArray(input);
 		input.close();
 		
-		short[] pixelArray = toShorts(bytes);
-		Point origin = new Point();
-		DataBufferUShort dataBuffer = new DataBufferUShort(pixelArray, (FLOUWIDTH * FLOUHEIGHT), 0);
-		
-		int[] bandOffets = {0};
-		ComponentSampleModel sampleModel = new ComponentSampleModel(DataBuffer.TYPE_USHORT, FLOUWIDTH, FLOUHEIGHT, 1, FLOUWIDTH, bandOffets);
+		toFluorescent(ByteBuffer.wrap(bytes), output);
+	}
+	
+	/**
+	 * Converts a raw 16bit little endian fluorescent frame to the service's format. The pixels are read from the
+	 * buffer straight into the image.
+	 * 
+	 * The camera has 14 significant bits, so each pixel is shifted by one bit to generally brighten the image
+	 * without reaching the sign bit.
+	 * 
+	 * @param raw			Raw frame from the buffer's position, such as a mapped blob from {@link src.ddpsc.database.tile.TileBlob#readData()}
+	 * @throws IOException	Thrown if the frame is short or cannot be encoded
+	 */
+	public void toFluorescent(ByteBuffer raw, OutputStream output) throws IOException
+	{
+		outputImage(fluorescentImage(raw), output);
+	}
+	
+	/**
+	 * @return				The 16bit gray image of a raw fluorescent frame
+	 * @throws IOException	Thrown if the frame is short
+	 * @see #toFluorescent(ByteBuffer, OutputStream)
+	 */
+	public static BufferedImage fluorescentImage(ByteBuffer raw) throws IOException
+	{
+		if (raw.remaining() < 2 * FLOUWIDTH * FLOUHEIGHT)
+			throw new EOFException("Fluorescent frame has " + raw.remaining() + " of " + 2 * FLOUWIDTH * FLOUHEIGHT + " bytes.");
 		
 		BufferedImage image = new BufferedImage(FLOUWIDTH, FLOUHEIGHT, BufferedImage.TYPE_USHORT_GRAY);
-		WritableRaster raster = Raster.createWritableRaster(sampleModel, dataBuffer, origin);
-		image.setData(raster);
+		short[] pixels = ((DataBufferUShort) image.getRaster().getDataBuffer()).getData();
 		
-		outputImage(image, output);
+		ShortBuffer samples = raw.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = (short) (samples.get(i) << 1);
+		
+		return image;
 	}
+	
 	/**
-	 * Converts a vis image to png. Expects the raw image to use a bayer rggb filter. 
+	 * Converts a vis image to png. Expects the raw image to use a bayer bggr filter. 
+	 * The demosaiced image is pooled by the calling thread and is encoded before this returns.
 	 * 
 	 * @see Bayer2Rgb.java
 	 */
 	public void toVisible(InputStream input, OutputStream output) throws IOException, ZipException
 	{
-		BufferedImage image = Bayer2Rgb.convertRawImage(input, VISWIDTH, VISHEIGHT);
+		BufferedImage image = Bayer2Rgb.demosaic(input, VISWIDTH, VISHEIGHT, demosaic, bandExecutor, demosaicBands);
 		outputImage(image, output);
 	}
 	
-	public void outputImage(BufferedImage image, OutputStream output) throws IOException
+	/**
+	 * Converts a vis frame held in a buffer, such as a mapped blob from {@link src.ddpsc.database.tile.TileBlob#readData()}.
+	 * 
+	 * @see Bayer2Rgb#demosaic(ByteBuffer, int, int, DemosaicAlgorithm, Executor, int)
+	 */
+	public void toVisible(ByteBuffer raw, OutputStream output) throws IOException
 	{
-		if (convertJPEG) {
-			ImageIO.write(image, "jpg", output);
-		}
-		else {
-			ImageIO.write(image, "png", output);
-		}
-		output.flush();
+		BufferedImage image = Bayer2Rgb.demosaic(raw, VISWIDTH, VISHEIGHT, demosaic, bandExecutor, demosaicBands);
+		outputImage(image, output);
 	}
 	
 	/**
-	 * Utility function that converts an array of bytes to an array of shorts, does not bias for signed integers.
-	 * Moves the final 14 bit array by 1 bit to the left, would move by 2 (max possibility) but that can interfere
-	 * with the sign bit. To avoid this we just let the first bit "exist". 
-	 * (THANKS JAVA)
-	 * @param bytes
-	 * @return
+	 * Encodes the image with this service's encoding. Png images use the {@link PngEncoder} where it handles
+	 * the image type, everything else the converting thread's pooled ImageIO writer.
+	 * 
+	 * @see ImageWriterPool
 	 */
-	private static short[] toShorts(byte[] bytes)
-	{	
-		short[] shorts = new short[bytes.length/2];	   
-	    for (int n = 0; n < bytes.length; n += 2){
-	    	shorts[n/2] = (short) (bytes[n + 1]);
-	    	shorts[n/2] = (short) ( (short) shorts[n/2] << (byte) 8);
-	    	shorts[n/2] = (short) ( (short) shorts[n/2] | (short) (0xff) & bytes[n]);
-	    	shorts[n/2] = (short) (shorts[n/2] << 1); //14 bit image, moving by 1 bit to generally brighten the image and avoid error with sign bit
-	    } 
-	    return shorts;
+	public void outputImage(BufferedImage image, OutputStream output) throws IOException
+	{
+		if ( ! encoding.isJPEG() && PngEncoder.canEncode(image))
+			PngEncoder.write(image, encoding.getPngLevel(), encoding.getPngFilter(), bandExecutor, pngBlocks, output);
+		else
+			ImageWriterPool.write(image, encoding, output);
+		output.flush();
 	}
 }
@@ -0,0 +1,144 @@
+package src.ddpsc.results;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.imageio.IIOException;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Encodes images with ImageIO writers that are kept by each converting thread and reused for every tile.
+ *
+ * {@code ImageIO.write} looks the writer up through the service registry, allocates a new writer and,
+ * with the default ImageIO cache setting, buffers the output in a temporary file, all for every image.
+ * Here each thread looks its writers up once, and the output is buffered in memory.
+ *
+ * Png images normally go through the {@link PngEncoder}, this pool only encodes the png images it does not handle.
+ *
+ * @see ImageEncoding
+ *
+ * @author shill
+ */
+public final class ImageWriterPool
+{
+	private static final Logger log = Logger.getLogger(ImageWriterPool.class);
+
+	private static final ThreadLocal<Map<String, PooledWriter>> writers = new ThreadLocal<Map<String, PooledWriter>>() {
+		@Override
+		protected Map<String, PooledWriter> initialValue()
+		{
+			return new HashMap<String, PooledWriter>();
+		}
+	};
+
+	private ImageWriterPool()
+	{
+	}
+
+	/**
+	 * Encodes the image with the calling thread's writer for the encoding's format. Does not close the stream.
+	 *
+	 * @param image			Image to encode
+	 * @param encoding		Format and compression settings
+	 * @param output		Stream to write the encoded image to
+	 * @throws IOException	Thrown if the format cannot encode this kind of image (e.g., 16 bit jpeg), or writing fails
+	 */
+	public static void write(BufferedImage image, ImageEncoding encoding, OutputStream output) throws IOException
+	{
+		PooledWriter pooled = writerFor(encoding.getFormatName());
+		ImageWriter writer = pooled.writer;
+
+		if ( ! writer.getOriginatingProvider().canEncodeImage(image))
+			throw new IIOException("The " + encoding.getFormatName() + " writer cannot encode an image of type " + image.getType() + ".");
+
+		ImageWriteParam param = pooled.configure(encoding);
+		ImageOutputStream stream = new MemoryCacheImageOutputStream(output);
+		boolean reusable = false;
+		try {
+			writer.setOutput(stream);
+			writer.write(null, new IIOImage(image, null, null), param);
+			stream.flush();
+			reusable = true;
+		}
+		finally {
+			// Closing a MemoryCacheImageOutputStream leaves the underlying stream open
+			stream.close();
+			if (reusable) {
+				writer.reset();
+			}
+			else {
+				writers.get().remove(encoding.getFormatName());
+				writer.dispose();
+			}
+		}
+	}
+
+	private static PooledWriter writerFor(String formatName) throws IIOException
+	{
+		Map<String, PooledWriter> threadWriters = writers.get();
+		PooledWriter pooled = threadWriters.get(formatName);
+		if (pooled == null) {
+			Iterator<ImageWriter> available = ImageIO.getImageWritersByFormatName(formatName);
+			if ( ! available.hasNext())
+				throw new IIOException("No image writer for " + formatName + ".");
+
+			pooled = new PooledWriter(available.next());
+			threadWriters.put(formatName, pooled);
+			log.debug(Thread.currentThread().getName() + " created a " + formatName + " writer.");
+		}
+		return pooled;
+	}
+
+
+	/**
+	 * A writer and the write parameters reused with it.
+	 */
+	private static class PooledWriter
+	{
+		final ImageWriter writer;
+		final ImageWriteParam param;
+
+		PooledWriter(ImageWriter writer)
+		{
+			this.writer = writer;
+			this.param = writer.getDefaultWriteParam();
+		}
+
+		/**
+		 * Applies the encoding's compression settings for this writer's format.
+		 *
+		 * Png writers before Java 9 have no compression settings, so the png level only applies where the writer
+		 * supports it.
+		 */
+		ImageWriteParam configure(ImageEncoding encoding)
+		{
+			if ( ! param.canWriteCompressed())
+				return param;
+
+			if (encoding.isJPEG()) {
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				param.setCompressionQuality(encoding.getJpegQuality());
+			}
+			else if (encoding.getPngLevel() == ImageEncoding.DEFAULT_PNG_LEVEL) {
+				param.setCompressionMode(ImageWriteParam.MODE_DEFAULT);
+			}
+			else {
+				// Png writers map quality 1 to no compression and 0 to the most
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				param.setCompressionQuality(1f - encoding.getPngLevel() / 9f);
+			}
+			return param;
+		}
+	}
+}
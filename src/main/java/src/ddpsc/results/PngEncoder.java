@@ -0,0 +1,517 @@
+package src.ddpsc.results;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Png encoder for the images the converters produce: 8 bit RGB (VIS), 8 bit gray (NIR) and 16 bit gray (FLUO).
+ *
+ * Unlike the ImageIO png writer the deflate level and row filter are chosen per download, so lossless downloads
+ * can trade size for speed. Level 0 stores the rows, which is the cheapest when the archive compresses anyway.
+ *
+ * Large images are split into blocks of rows that are filtered and deflated in parallel. Each block is its own
+ * deflate stream ended with a sync flush, so the blocks concatenate into one valid zlib stream, and the block
+ * checksums are combined into the stream's adler32. Blocks only lose the history of the blocks before them,
+ * which costs very little in size.
+ *
+ * Filter, row and deflater buffers belong to the encoding thread and are reused.
+ *
+ * @see PngFilter
+ *
+ * @author shill
+ */
+public final class PngEncoder
+{
+	/**
+	 * Images shorter than this many rows per block are not worth splitting.
+	 */
+	public final static int MIN_BLOCK_ROWS = 64;
+	
+	/**
+	 * Level used when none is requested. On camera frames it is both faster and smaller than the ImageIO writer.
+	 */
+	public final static int DEFAULT_LEVEL = 1;
+
+	private final static byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+	private final static byte[] IHDR = { 'I', 'H', 'D', 'R' };
+	private final static byte[] IDAT = { 'I', 'D', 'A', 'T' };
+	private final static byte[] IEND = { 'I', 'E', 'N', 'D' };
+
+	private final static int GRAY = 0;
+	private final static int RGB = 2;
+
+	private final static ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue()
+		{
+			return new Scratch();
+		}
+	};
+
+	private PngEncoder()
+	{
+	}
+
+	/**
+	 * @return		Whether this encoder handles the image's type, otherwise use an ImageIO writer
+	 */
+	public static boolean canEncode(BufferedImage image)
+	{
+		return Rows.forImage(image) != null;
+	}
+
+	/**
+	 * Encodes the image as a png. Does not close the stream.
+	 *
+	 * @param image				Image to encode, see {@link #canEncode(BufferedImage)}
+	 * @param requestedLevel	Deflate level from 0 (stored) to 9, or -1 for {@link #DEFAULT_LEVEL}
+	 * @param filter			Row filter
+	 * @param blockExecutor		Deflates the extra blocks of the image, null encodes the whole image on the calling thread
+	 * @param blocks			Maximum number of blocks to split the image into
+	 * @param output			Stream to write the png to
+	 * @throws IOException		Thrown if writing fails, a block fails, or the calling thread is interrupted
+	 */
+	public static void write(
+			BufferedImage image,
+			int requestedLevel,
+			PngFilter filter,
+			Executor blockExecutor,
+			int blocks,
+			OutputStream output)
+			throws IOException
+	{
+		final Rows rows = Rows.forImage(image);
+		if (rows == null)
+			throw new IllegalArgumentException("Cannot png encode an image of type " + image.getType() + ".");
+
+		final int level = requestedLevel == -1 ? DEFAULT_LEVEL : requestedLevel;
+		final PngFilter rowFilter = filter.forLevel(level);
+		final int height = image.getHeight();
+
+		blocks = Math.min(blocks, height / MIN_BLOCK_ROWS);
+		if (blockExecutor == null || blocks < 1)
+			blocks = 1;
+
+		// The calling thread takes the first block while the others deflate
+		List<FutureTask<Block>> others = new ArrayList<FutureTask<Block>>(blocks - 1);
+		for (int block = 1; block < blocks; block++) {
+			final int firstRow = height * block / blocks;
+			final int endRow = height * (block + 1) / blocks;
+			final boolean last = block == blocks - 1;
+			FutureTask<Block> task = new FutureTask<Block>(new Callable<Block>() {
+				@Override
+				public Block call()
+				{
+					return encodeBlock(rows, firstRow, endRow, level, rowFilter, last);
+				}
+			});
+			others.add(task);
+			blockExecutor.execute(task);
+		}
+
+		Block first = encodeBlock(rows, 0, height / blocks, level, rowFilter, blocks == 1);
+
+		writeHeader(output, image.getWidth(), height, rows.bitDepth, rows.colorType);
+
+		// Zlib header: deflate with a 32K window, and the level hint
+		byte flags = level <= 1 ? (byte) 0x01 : level <= 5 ? (byte) 0x5e : level == 6 ? (byte) 0x9c : (byte) 0xda;
+		writeChunk(output, IDAT, new byte[] { 0x78, flags }, 2);
+
+		long adler = first.adler;
+		writeChunk(output, IDAT, first.compressed, first.compressedLength);
+		try {
+			for (FutureTask<Block> task : others) {
+				Block block = task.get();
+				adler = combineAdler32(adler, block.adler, block.rawLength);
+				writeChunk(output, IDAT, block.compressed, block.compressedLength);
+			}
+		}
+		catch (InterruptedException e) {
+			for (FutureTask<Block> task : others)
+				task.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for png blocks.");
+		}
+		catch (ExecutionException e) {
+			throw new IOException("Png block failed.", e.getCause());
+		}
+
+		writeChunk(output, IDAT, new byte[] { (byte) (adler >>> 24), (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler }, 4);
+		writeChunk(output, IEND, new byte[0], 0);
+	}
+
+	/**
+	 * Filters and deflates the rows [firstRow, endRow) into a raw deflate stream, ended with a sync flush unless this
+	 * is the last block.
+	 */
+	private static Block encodeBlock(Rows rows, int firstRow, int endRow, int level, PngFilter filter, boolean last)
+	{
+		Scratch buffers = scratch.get();
+		buffers.ensureCapacity(rows.rowBytes);
+
+		byte[] row = buffers.row;
+		byte[] previous = buffers.previous;
+		int length = rows.rowBytes;
+
+		if (firstRow == 0)
+			Arrays.fill(previous, 0, length, (byte) 0);
+		else
+			rows.read(firstRow - 1, previous);
+
+		Deflater deflater = buffers.deflater;
+		deflater.reset();
+		deflater.setLevel(level);
+
+		Adler32 adler = buffers.adler;
+		adler.reset();
+
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(length * (endRow - firstRow) / 4, 64));
+		byte[] output = buffers.output;
+
+		for (int y = firstRow; y < endRow; y++) {
+			rows.read(y, row);
+			byte[] filtered = filterRow(filter, row, previous, length, rows.bytesPerPixel, buffers.filtered);
+
+			adler.update(filtered, 0, length + 1);
+			deflater.setInput(filtered, 0, length + 1);
+			while ( ! deflater.needsInput()) {
+				int written = deflater.deflate(output);
+				compressed.write(output, 0, written);
+			}
+
+			byte[] swap = previous;
+			previous = row;
+			row = swap;
+		}
+
+		if (last) {
+			deflater.finish();
+			while ( ! deflater.finished()) {
+				int written = deflater.deflate(output);
+				compressed.write(output, 0, written);
+			}
+		}
+		else {
+			int written;
+			do {
+				written = deflater.deflate(output, 0, output.length, Deflater.SYNC_FLUSH);
+				compressed.write(output, 0, written);
+			}
+			while (written == output.length);
+		}
+
+		// Rows were swapped, keep both arrays owned by the scratch buffers
+		buffers.row = row;
+		buffers.previous = previous;
+
+		return new Block(compressed, adler.getValue(), (long) (endRow - firstRow) * (length + 1));
+	}
+
+	/**
+	 * Filters a row into one of the filtered buffers, with the filter type in the first byte.
+	 *
+	 * @return		The buffer holding the filtered row
+	 */
+	private static byte[] filterRow(PngFilter filter, byte[] row, byte[] previous, int length, int bpp, byte[][] filtered)
+	{
+		if (filter != PngFilter.ADAPTIVE) {
+			byte[] out = filtered[filter.getType()];
+			applyFilter(filter.getType(), row, previous, length, bpp, out);
+			return out;
+		}
+
+		byte[] best = null;
+		long bestScore = Long.MAX_VALUE;
+		for (int type = 0; type < 5; type++) {
+			byte[] out = filtered[type];
+			applyFilter(type, row, previous, length, bpp, out);
+
+			long score = 0;
+			for (int i = 1; i <= length && score < bestScore; i++)
+				score += Math.abs(out[i]);
+
+			if (score < bestScore) {
+				bestScore = score;
+				best = out;
+			}
+		}
+		return best;
+	}
+
+	private static void applyFilter(int type, byte[] row, byte[] previous, int length, int bpp, byte[] out)
+	{
+		out[0] = (byte) type;
+		switch (type) {
+		case 0:
+			System.arraycopy(row, 0, out, 1, length);
+			break;
+
+		case 1:
+			for (int i = 0; i < bpp; i++)
+				out[i + 1] = row[i];
+			for (int i = bpp; i < length; i++)
+				out[i + 1] = (byte) (row[i] - row[i - bpp]);
+			break;
+
+		case 2:
+			for (int i = 0; i < length; i++)
+				out[i + 1] = (byte) (row[i] - previous[i]);
+			break;
+
+		case 3:
+			for (int i = 0; i < bpp; i++)
+				out[i + 1] = (byte) (row[i] - ((previous[i] & 0xff) >> 1));
+			for (int i = bpp; i < length; i++)
+				out[i + 1] = (byte) (row[i] - (((row[i - bpp] & 0xff) + (previous[i] & 0xff)) >> 1));
+			break;
+
+		case 4:
+			for (int i = 0; i < bpp; i++)
+				out[i + 1] = (byte) (row[i] - previous[i]);
+			for (int i = bpp; i < length; i++)
+				out[i + 1] = (byte) (row[i] - paeth(row[i - bpp] & 0xff, previous[i] & 0xff, previous[i - bpp] & 0xff));
+			break;
+
+		default:
+			throw new IllegalArgumentException("Unknown png filter type " + type);
+		}
+	}
+
+	private static int paeth(int left, int up, int upLeft)
+	{
+		int estimate = left + up - upLeft;
+		int toLeft = Math.abs(estimate - left);
+		int toUp = Math.abs(estimate - up);
+		int toUpLeft = Math.abs(estimate - upLeft);
+
+		if (toLeft <= toUp && toLeft <= toUpLeft)
+			return left;
+		if (toUp <= toUpLeft)
+			return up;
+		return upLeft;
+	}
+
+	/**
+	 * Adler32 of two concatenated sequences from the adler32 of each, ported from zlib's adler32_combine.
+	 *
+	 * @param length2	Length of the second sequence
+	 */
+	static long combineAdler32(long adler1, long adler2, long length2)
+	{
+		final long base = 65521;
+		long remainder = length2 % base;
+		long sum1 = adler1 & 0xffff;
+		long sum2 = (remainder * sum1) % base;
+		sum1 += (adler2 & 0xffff) + base - 1;
+		sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + base - remainder;
+		if (sum1 >= base)
+			sum1 -= base;
+		if (sum1 >= base)
+			sum1 -= base;
+		if (sum2 >= (base << 1))
+			sum2 -= (base << 1);
+		if (sum2 >= base)
+			sum2 -= base;
+		return sum1 | (sum2 << 16);
+	}
+
+	private static void writeHeader(OutputStream output, int width, int height, int bitDepth, int colorType) throws IOException
+	{
+		output.write(SIGNATURE);
+
+		byte[] header = new byte[13];
+		putInt(header, 0, width);
+		putInt(header, 4, height);
+		header[8] = (byte) bitDepth;
+		header[9] = (byte) colorType;
+		// Compression, filter method and interlace are all 0
+		writeChunk(output, IHDR, header, header.length);
+	}
+
+	private static void writeChunk(OutputStream output, byte[] type, byte[] data, int length) throws IOException
+	{
+		byte[] lengthBytes = new byte[4];
+		putInt(lengthBytes, 0, length);
+		output.write(lengthBytes);
+
+		CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(data, 0, length);
+
+		output.write(type);
+		output.write(data, 0, length);
+
+		byte[] crcBytes = new byte[4];
+		putInt(crcBytes, 0, (int) crc.getValue());
+		output.write(crcBytes);
+	}
+
+	private static void putInt(byte[] bytes, int offset, int value)
+	{
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+
+
+	/**
+	 * A deflated block of rows and the adler32 of its filtered rows.
+	 */
+	private static class Block
+	{
+		final byte[] compressed;
+		final int compressedLength;
+		final long adler;
+		final long rawLength;
+
+		Block(ByteArrayOutputStream compressed, long adler, long rawLength)
+		{
+			this.compressed = compressed.toByteArray();
+			this.compressedLength = this.compressed.length;
+			this.adler = adler;
+			this.rawLength = rawLength;
+		}
+	}
+
+	/**
+	 * Per-thread buffers, grown to the widest row the thread has encoded.
+	 */
+	private static class Scratch
+	{
+		byte[] row = new byte[0];
+		byte[] previous = new byte[0];
+		byte[][] filtered = new byte[5][0];
+		final byte[] output = new byte[64 * 1024];
+		final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		final Adler32 adler = new Adler32();
+
+		void ensureCapacity(int rowBytes)
+		{
+			if (row.length >= rowBytes)
+				return;
+
+			row = new byte[rowBytes];
+			previous = new byte[rowBytes];
+			for (int type = 0; type < filtered.length; type++)
+				filtered[type] = new byte[rowBytes + 1];
+		}
+	}
+
+	/**
+	 * Reads rows of an image in png sample order (RGB, big-endian 16 bit samples).
+	 */
+	private static class Rows
+	{
+		final int colorType;
+		final int bitDepth;
+		final int bytesPerPixel;
+		final int rowBytes;
+
+		private final int width;
+		private final byte[] bytes;
+		private final short[] shorts;
+		private final int offset;
+		private final int scanlineStride;
+		private final int[] bandOffsets;
+
+		private Rows(int colorType, int bitDepth, int bytesPerPixel, int width, byte[] bytes, short[] shorts, int offset, int scanlineStride, int[] bandOffsets)
+		{
+			this.colorType = colorType;
+			this.bitDepth = bitDepth;
+			this.bytesPerPixel = bytesPerPixel;
+			this.rowBytes = width * bytesPerPixel;
+			this.width = width;
+			this.bytes = bytes;
+			this.shorts = shorts;
+			this.offset = offset;
+			this.scanlineStride = scanlineStride;
+			this.bandOffsets = bandOffsets;
+		}
+
+		/**
+		 * @return		Rows of the image, or null if its type or layout is not supported
+		 */
+		static Rows forImage(BufferedImage image)
+		{
+			Raster raster = image.getRaster();
+			SampleModel model = raster.getSampleModel();
+			if ( ! (model instanceof PixelInterleavedSampleModel)
+					|| raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0)
+				return null;
+
+			PixelInterleavedSampleModel interleaved = (PixelInterleavedSampleModel) model;
+			int scanlineStride = interleaved.getScanlineStride();
+			int[] bandOffsets = interleaved.getBandOffsets();
+			int width = image.getWidth();
+
+			switch (image.getType()) {
+			case BufferedImage.TYPE_3BYTE_BGR:
+				if (interleaved.getPixelStride() != 3)
+					return null;
+				DataBufferByte rgb = (DataBufferByte) raster.getDataBuffer();
+				return new Rows(RGB, 8, 3, width, rgb.getData(), null, rgb.getOffset(), scanlineStride, bandOffsets);
+
+			case BufferedImage.TYPE_BYTE_GRAY:
+				if (interleaved.getPixelStride() != 1)
+					return null;
+				DataBufferByte gray = (DataBufferByte) raster.getDataBuffer();
+				return new Rows(GRAY, 8, 1, width, gray.getData(), null, gray.getOffset() + bandOffsets[0], scanlineStride, bandOffsets);
+
+			case BufferedImage.TYPE_USHORT_GRAY:
+				if (interleaved.getPixelStride() != 1)
+					return null;
+				DataBufferUShort gray16 = (DataBufferUShort) raster.getDataBuffer();
+				return new Rows(GRAY, 16, 2, width, null, gray16.getData(), gray16.getOffset() + bandOffsets[0], scanlineStride, bandOffsets);
+
+			default:
+				return null;
+			}
+		}
+
+		void read(int y, byte[] row)
+		{
+			int start = offset + y * scanlineStride;
+
+			if (shorts != null) {
+				for (int x = 0, i = start, out = 0; x < width; x++, i++, out += 2) {
+					short sample = shorts[i];
+					row[out] = (byte) (sample >>> 8);
+					row[out + 1] = (byte) sample;
+				}
+			}
+			else if (bytesPerPixel == 1) {
+				System.arraycopy(bytes, start, row, 0, width);
+			}
+			else {
+				int red = start + bandOffsets[0];
+				int green = start + bandOffsets[1];
+				int blue = start + bandOffsets[2];
+				for (int x = 0, i = 0, out = 0; x < width; x++, i += 3, out += 3) {
+					row[out] = bytes[red + i];
+					row[out + 1] = bytes[green + i];
+					row[out + 2] = bytes[blue + i];
+				}
+			}
+		}
+	}
+}
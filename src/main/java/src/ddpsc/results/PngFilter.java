@@ -0,0 +1,85 @@
+package src.ddpsc.results;
+
+/**
+ * Png row filters, chosen per download for the {@link PngEncoder}. Filtering makes rows more compressible at some
+ * CPU cost, which is wasted when the deflate level is too low to exploit it.
+ *
+ * @see PngEncoder
+ *
+ * @author shill
+ */
+public enum PngFilter
+{
+	NONE("none", 0),
+	SUB("sub", 1),
+	UP("up", 2),
+	AVERAGE("average", 3),
+	PAETH("paeth", 4),
+
+	/**
+	 * Tries every filter on each row and keeps the one with the smallest sum of absolute differences.
+	 */
+	ADAPTIVE("adaptive", -1),
+
+	/**
+	 * Picks a filter by deflate level: none for stored, sub for the fast levels, and adaptive otherwise.
+	 */
+	AUTO("auto", -1);
+
+
+	public static final PngFilter DEFAULT = AUTO;
+
+	private final String name;
+	private final int type;
+
+	private PngFilter(String name, int type)
+	{
+		this.name = name;
+		this.type = type;
+	}
+
+	/**
+	 * @return		The name used in requests
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * @return		The png filter type byte, or -1 if the filter is chosen per row
+	 */
+	public int getType()
+	{
+		return type;
+	}
+
+	/**
+	 * @return		The filter to use at the given deflate level, resolving {@link #AUTO}
+	 */
+	public PngFilter forLevel(int level)
+	{
+		if (this != AUTO)
+			return this;
+
+		if (level == 0)
+			return NONE;
+		if (level <= 3)
+			return SUB;
+		return ADAPTIVE;
+	}
+
+	/**
+	 * Parses a filter from its request name, also accepting the constant name in any case.
+	 *
+	 * @throws IllegalArgumentException		Thrown if no filter has that name
+	 */
+	public static PngFilter fromString(String filterString)
+	{
+		for (PngFilter filter : values())
+			if (filter.name.equalsIgnoreCase(filterString) || filter.name().equalsIgnoreCase(filterString))
+				return filter;
+
+		throw new IllegalArgumentException("Unknown png filter: " + filterString);
+	}
+}
@@ -0,0 +1,460 @@
+package src.ddpsc.results;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+
+import src.ddpsc.database.experiment.Experiment;
+import src.ddpsc.database.experiment.ExperimentDao;
+import src.ddpsc.database.snapshot.Snapshot;
+import src.ddpsc.database.snapshot.SnapshotDao;
+import src.ddpsc.database.tile.Tile;
+
+/**
+ * Converts the tiles of newly imaged snapshots into the {@link ConvertedImageCache} in the background, so the first
+ * download of a snapshot copies stored images instead of paying for their conversion.
+ *
+ * Every experiment is polled with {@link SnapshotDao#findAfterTimestamp(Timestamp)} from its high-water mark, the
+ * time of the newest snapshot already handled. Snapshots are handled oldest first and the mark stops at the first
+ * snapshot the LemnaTec system has not completed, which is picked up again by a later poll. LemnaTec never completes
+ * an aborted snapshot, so one still incomplete after {@link #setIncompleteGraceHours(int) a few hours} is skipped
+ * and the mark moves past it, rather than holding up the experiment for good. Marks are saved to a
+ * properties file after every snapshot, so a restart resumes where it left off. An experiment seen for the first
+ * time starts {@link #setInitialLookbackHours(int) a few hours} back rather than at its first snapshot.
+ *
+ * Conversions use the default download settings, as only images converted with the settings a download asks for
+ * are found in the cache. They run one at a time on a single low priority thread that does not take slots from
+ * the {@link ImageConversionService}. The CPU budget is the share of that thread's time spent converting, the
+ * rest is spent sleeping. Conversion pauses while downloads are converting or the system load average is above
+ * its limit.
+ *
+ * @author shill
+ */
+public class PreconversionService
+{
+	private static final Logger log = Logger.getLogger(PreconversionService.class);
+
+	public static final int DEFAULT_POLL_SECONDS = 300;
+	public static final double DEFAULT_CPU_SHARE = 0.25;
+	public static final double DEFAULT_LOAD_PER_CORE = 0.75;
+	public static final int DEFAULT_PAUSE_SECONDS = 30;
+	public static final int DEFAULT_INITIAL_LOOKBACK_HOURS = 24;
+	public static final int DEFAULT_INCOMPLETE_GRACE_HOURS = 6;
+
+	private final ImageConversionService converter;
+	private final ExperimentDao experimentData;
+	private final SnapshotDao snapshotData;
+	private final File markFile;
+
+	private int pollSeconds = DEFAULT_POLL_SECONDS;
+	private double cpuShare = DEFAULT_CPU_SHARE;
+	private double loadPerCore = DEFAULT_LOAD_PER_CORE;
+	private int pauseSeconds = DEFAULT_PAUSE_SECONDS;
+	private int initialLookbackHours = DEFAULT_INITIAL_LOOKBACK_HOURS;
+	private int incompleteGraceHours = DEFAULT_INCOMPLETE_GRACE_HOURS;
+	private boolean jpeg = false;
+	private boolean enabled = true;
+
+	private final Properties marks = new Properties();
+	private ScheduledExecutorService scheduler;
+	private volatile boolean stopped;
+
+	private final AtomicLong convertedTiles = new AtomicLong();
+	private final AtomicLong failedTiles = new AtomicLong();
+	private final AtomicLong pauses = new AtomicLong();
+
+	/**
+	 * @param converter			Holds the image cache, and tells whether downloads are converting
+	 * @param experimentData	Lists the experiments to poll
+	 * @param snapshotData		Hands out a DAO for each experiment polled
+	 * @param markFile			Properties file the high-water marks are kept in
+	 */
+	public PreconversionService(ImageConversionService converter, ExperimentDao experimentData, SnapshotDao snapshotData, String markFile)
+	{
+		this.converter = converter;
+		this.experimentData = experimentData;
+		this.snapshotData = snapshotData;
+		this.markFile = new File(markFile);
+	}
+
+	/**
+	 * Loads the high-water marks and starts polling. Does nothing if disabled, or if there is no image cache to
+	 * convert into.
+	 */
+	public synchronized void start()
+	{
+		if ( ! enabled) {
+			log.info("Background conversion is disabled.");
+			return;
+		}
+		if (converter.getImageCache() == null) {
+			log.warn("Background conversion is disabled as there is no image cache.");
+			return;
+		}
+
+		loadMarks();
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "Background Image Conversion");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run()
+			{
+				poll();
+			}
+		}, pollSeconds, pollSeconds, TimeUnit.SECONDS);
+
+		log.info("Background conversion started, polling every " + pollSeconds + " seconds with a CPU share of " + cpuShare + ".");
+	}
+
+	public synchronized void shutdown()
+	{
+		stopped = true;
+		if (scheduler != null) {
+			log.info("Shutting down background conversion.");
+			scheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * Converts the new snapshots of every experiment. Failures are logged and retried on the next poll.
+	 */
+	private void poll()
+	{
+		try {
+			Set<Experiment> experiments = experimentData.findAll();
+			for (Experiment experiment : experiments) {
+				if (stopped)
+					return;
+				pollExperiment(experiment);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (Exception e) {
+			log.error("Background conversion poll failed, retrying next poll.", e);
+		}
+	}
+
+	private void pollExperiment(Experiment experiment) throws Exception
+	{
+		Timestamp mark = getMark(experiment.name);
+
+		List<Snapshot> snapshots = snapshotData.forExperiment(experiment.name).findAfterTimestamp(mark);
+		if (snapshots.isEmpty())
+			return;
+
+		Collections.sort(snapshots, new Comparator<Snapshot>() {
+			@Override
+			public int compare(Snapshot first, Snapshot second)
+			{
+				return first.timestamp.compareTo(second.timestamp);
+			}
+		});
+		log.info("Background conversion found " + snapshots.size() + " snapshots in " + experiment.name + " after " + mark + ".");
+
+		ImageEncoding encoding = ImageEncoding.defaults(jpeg);
+		ImageService imageConverter = new ImageService(encoding, DemosaicAlgorithm.DEFAULT, null, 1, 1);
+		ConvertedImageCache cache = converter.getImageCache();
+
+		long abortedBefore = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(incompleteGraceHours);
+		for (Snapshot snapshot : snapshots) {
+			// Later snapshots wait for this one, so the mark never passes a snapshot still being imaged
+			if ( ! snapshot.completed) {
+				if (snapshot.timestamp.getTime() >= abortedBefore)
+					return;
+
+				log.info("Background conversion skipped snapshot " + snapshot.id + " of " + experiment.name
+						+ ", which is still incomplete after " + incompleteGraceHours + " hours.");
+				setMark(experiment.name, snapshot.timestamp);
+				continue;
+			}
+
+			DateTime date = new DateTime(snapshot.timestamp);
+			for (Tile tile : snapshot.getTiles()) {
+				waitForIdle();
+				if (stopped)
+					return;
+
+				String cacheKey = ConvertedImageCache.key(experiment, tile, encoding, DemosaicAlgorithm.DEFAULT);
+				ConvertedImageCache.CachedImage cached = cache.open(cacheKey);
+				if (cached != null) {
+					cached.close();
+					continue;
+				}
+
+				long started = System.nanoTime();
+				try {
+					new TileConversion(tile, date, experiment, imageConverter, cache, cacheKey).call();
+					convertedTiles.incrementAndGet();
+				}
+				catch (Exception e) {
+					// Blobs missing or corrupt now will be too next poll, so the tile is not retried
+					failedTiles.incrementAndGet();
+					log.warn("Background conversion could not convert " + tile.getName() + " of " + experiment.name + ".", e);
+				}
+				keepToBudget(System.nanoTime() - started);
+			}
+
+			setMark(experiment.name, snapshot.timestamp);
+		}
+	}
+
+	/**
+	 * Blocks while downloads are converting or the machine is loaded.
+	 */
+	private void waitForIdle() throws InterruptedException
+	{
+		boolean paused = false;
+		while ( ! stopped && isBusy()) {
+			if ( ! paused) {
+				paused = true;
+				pauses.incrementAndGet();
+				log.info("Background conversion paused for load.");
+			}
+			Thread.sleep(TimeUnit.SECONDS.toMillis(pauseSeconds));
+		}
+		if (paused)
+			log.info("Background conversion resumed.");
+	}
+
+	private boolean isBusy()
+	{
+		if (converter.getActiveCount() > 0 || converter.getQueuedCount() > 0)
+			return true;
+
+		// Negative where the load average is not available
+		double load = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+		return load >= 0 && load > loadPerCore * Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Sleeps long enough after a conversion that conversions take at most the CPU share of this thread's time.
+	 */
+	private void keepToBudget(long convertingNanos) throws InterruptedException
+	{
+		if (cpuShare >= 1)
+			return;
+
+		long sleepNanos = (long) (convertingNanos * (1 - cpuShare) / cpuShare);
+		TimeUnit.NANOSECONDS.sleep(sleepNanos);
+	}
+
+
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	// High-Water Marks
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	private synchronized Timestamp getMark(String experimentName)
+	{
+		String mark = marks.getProperty(experimentName);
+		if (mark != null) {
+			try {
+				return new Timestamp(Long.parseLong(mark));
+			}
+			catch (NumberFormatException e) {
+				log.warn("Ignoring the unreadable high-water mark '" + mark + "' of " + experimentName + ".");
+			}
+		}
+
+		Timestamp start = new Timestamp(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(initialLookbackHours));
+		setMark(experimentName, start);
+		return start;
+	}
+
+	private synchronized void setMark(String experimentName, Timestamp mark)
+	{
+		marks.setProperty(experimentName, Long.toString(mark.getTime()));
+		saveMarks();
+	}
+
+	private synchronized void loadMarks()
+	{
+		if ( ! markFile.isFile())
+			return;
+
+		try {
+			InputStream input = new FileInputStream(markFile);
+			try {
+				marks.load(input);
+			}
+			finally {
+				input.close();
+			}
+			log.info("Loaded background conversion marks for " + marks.size() + " experiments from " + markFile + ".");
+		}
+		catch (IOException e) {
+			log.error("Could not read the background conversion marks in " + markFile + ", starting over.", e);
+		}
+	}
+
+	/**
+	 * Writes the marks to a temporary file and renames it into place, so a crash never leaves a partial file.
+	 */
+	private synchronized void saveMarks()
+	{
+		File temporary = new File(markFile.getPath() + ".tmp");
+		try {
+			File directory = markFile.getAbsoluteFile().getParentFile();
+			if ( ! directory.isDirectory() && ! directory.mkdirs())
+				throw new IOException("Could not create " + directory + ".");
+
+			OutputStream output = new FileOutputStream(temporary);
+			try {
+				marks.store(output, "Background image conversion high-water marks, in milliseconds since the epoch");
+			}
+			finally {
+				output.close();
+			}
+
+			if ( ! temporary.renameTo(markFile)) {
+				// Windows will not rename over an existing file
+				markFile.delete();
+				if ( ! temporary.renameTo(markFile))
+					throw new IOException("Could not replace " + markFile + ".");
+			}
+		}
+		catch (IOException e) {
+			log.error("Could not save the background conversion marks to " + markFile + ".", e);
+		}
+	}
+
+
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	// Get/Set Methods
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	public int getPollSeconds()
+	{
+		return pollSeconds;
+	}
+
+	public void setPollSeconds(int pollSeconds)
+	{
+		this.pollSeconds = Math.max(pollSeconds, 1);
+	}
+
+	/**
+	 * @return		Share of the background thread's time spent converting, between 0 and 1
+	 */
+	public double getCpuShare()
+	{
+		return cpuShare;
+	}
+
+	public void setCpuShare(double cpuShare)
+	{
+		this.cpuShare = Math.min(Math.max(cpuShare, 0.01), 1);
+	}
+
+	/**
+	 * @return		Load average per core above which conversion pauses
+	 */
+	public double getLoadPerCore()
+	{
+		return loadPerCore;
+	}
+
+	public void setLoadPerCore(double loadPerCore)
+	{
+		this.loadPerCore = loadPerCore;
+	}
+
+	public int getPauseSeconds()
+	{
+		return pauseSeconds;
+	}
+
+	public void setPauseSeconds(int pauseSeconds)
+	{
+		this.pauseSeconds = Math.max(pauseSeconds, 1);
+	}
+
+	public int getInitialLookbackHours()
+	{
+		return initialLookbackHours;
+	}
+
+	public void setInitialLookbackHours(int initialLookbackHours)
+	{
+		this.initialLookbackHours = Math.max(initialLookbackHours, 0);
+	}
+
+	/**
+	 * @return		Hours an incomplete snapshot holds up the mark before it's taken as aborted and skipped
+	 */
+	public int getIncompleteGraceHours()
+	{
+		return incompleteGraceHours;
+	}
+
+	public void setIncompleteGraceHours(int incompleteGraceHours)
+	{
+		this.incompleteGraceHours = Math.max(incompleteGraceHours, 0);
+	}
+
+	/**
+	 * @return		Whether tiles are converted to jpeg rather than png
+	 */
+	public boolean isJpeg()
+	{
+		return jpeg;
+	}
+
+	public void setJpeg(boolean jpeg)
+	{
+		this.jpeg = jpeg;
+	}
+
+	/**
+	 * @param enabled	Whether {@link #start()} starts polling
+	 */
+	public void setEnabled(boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+
+	public long getConvertedTiles()
+	{
+		return convertedTiles.get();
+	}
+
+	public long getFailedTiles()
+	{
+		return failedTiles.get();
+	}
+
+	public long getPauses()
+	{
+		return pauses.get();
+	}
+}
@@ -1,30 +1,37 @@
 package src.ddpsc.results;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
+import org.springframework.dao.DataAccessException;
 
-import net.lingala.zip4j.core.ZipFile;
-import net.lingala.zip4j.exception.ZipException;
-import net.lingala.zip4j.model.FileHeader;
 import src.ddpsc.database.experiment.Experiment;
 import src.ddpsc.database.snapshot.Snapshot;
+import src.ddpsc.database.snapshot.SnapshotCursor;
 import src.ddpsc.database.tile.Tile;
+import src.ddpsc.database.tile.TileBlob;
 import src.ddpsc.database.tile.TileFileLTSystemUtil;
-import src.ddpsc.utility.Tuple;
 
 /**
  * Manages the results and conversion of images. 
@@ -39,39 +46,97 @@ public class ResultsBuilder
 {
 	private static final Logger log = Logger.getLogger(ResultsBuilder.class);
 	
+	// How long to wait for a free conversion slot before writing out an image this builder is holding
+	private static final long RESERVE_POLL_MS = 50;
+	
+	public static final String DEMOSAIC = "demosaic";
+	public static final String RAW_FORMAT = "raw format";
+	
 	/**
-	 * For threads we could do something like spawn 1 thread per tile
+	 * Tiles are converted by the server-wide {@link ImageConversionService} rather than a thread per tile.
 	 * 
-	 * each thread get's their own output stream
+	 * Each submitted tile becomes a pending image. Pending images are written to the archive in the
+	 * order they were submitted, so the layout of the archive does not depend on which conversion
+	 * finishes first. Every pending image holds one of the conversion service's slots until it is written,
+	 * which bounds the number of converted images in memory across all downloads.
 	 * 
-	 * spawn threads, setup results stream, write in order of streams, write to
-	 * closure,
-	 * 
-	 * this may seem slow but since all of the threads are concurrent the
-	 * runtime will be the time of the slowest thread. (vs O(n)) which is fine.
+	 * While one snapshot is being written, the tiles of the next few snapshots are already converting, so the
+	 * workers are not idle while the client drains the archive. How far ahead is limited both by a number of
+	 * snapshots and by an estimate of the memory the pending images hold.
 	 */
 	private OutputStream requestStream;
 	
 	private List<Snapshot> snapshots;
+	private SnapshotCursor cursor;
 	private Experiment experiment;
 	
-	private boolean convertJPEG;
+	private ImageEncoding encoding;
+	private DemosaicAlgorithm demosaic;
+	
+	private ImageConversionService converter;
+	private ConvertedImageCache cache;
+	private LinkedList<PendingImage> pendingImages;
+	private long pendingBytes;
 	
-	private HashMap<String, InputStream> threadStreams;
-	private ThreadGroup group;
+	private int prefetchSnapshots;
+	private long prefetchBytes;
+	
+	private long size_bytes;
+	
+	private DownloadProgressListener progress = DownloadProgressListener.NONE;
+	
+	public ResultsBuilder(
+			OutputStream out,
+			List<Snapshot> snapshots,
+			Experiment experiment,
+			boolean convertJPEG,
+			ImageConversionService converter)
+	{
+		this(out, snapshots, experiment, ImageEncoding.defaults(convertJPEG), DemosaicAlgorithm.DEFAULT, converter);
+	}
 	
 	public ResultsBuilder(
 			OutputStream out,
 			List<Snapshot> snapshots,
 			Experiment experiment,
-			boolean convertJPEG)
+			ImageEncoding encoding,
+			DemosaicAlgorithm demosaic,
+			ImageConversionService converter)
 	{
 		this.requestStream = out;
 		this.snapshots = new ArrayList<Snapshot>(snapshots);
 		this.experiment = experiment;
-		this.convertJPEG = convertJPEG;
-		this.threadStreams = new HashMap<String, InputStream>();
-		this.group = new ThreadGroup("Image Processors");
+		this.encoding = encoding;
+		this.demosaic = demosaic;
+		this.converter = converter;
+		this.cache = encoding.isRaw() ? null : converter.getImageCache();
+		this.pendingImages = new LinkedList<PendingImage>();
+		this.prefetchSnapshots = converter.getPrefetchSnapshots();
+		this.prefetchBytes = converter.getPrefetchBytes();
+	}
+	
+	/**
+	 * Builds the archive from the snapshots of a cursor, a batch at a time, rather than from a list held in memory.
+	 * The cursor is read to its end but not closed.
+	 */
+	public ResultsBuilder(
+			OutputStream out,
+			SnapshotCursor cursor,
+			Experiment experiment,
+			ImageEncoding encoding,
+			DemosaicAlgorithm demosaic,
+			ImageConversionService converter)
+	{
+		this(out, new ArrayList<Snapshot>(), experiment, encoding, demosaic, converter);
+		this.cursor = cursor;
+	}
+	
+	/**
+	 * Reports the progress of {@link #writeZipArchive()} to the supplied listener.
+	 */
+	public void setProgressListener(DownloadProgressListener progress)
+	{
+		this.progress = progress == null ? DownloadProgressListener.NONE : progress;
 	}
 	
 	
@@ -79,84 +144,47 @@ public class ResultsBuilder
 	 * Handles the entire process of creating an archive, processing images, and writing to that archive.
 	 * This type of method should probably be in a subclass and the parent be abstract.
 	 * 
+	 * Builders made from a {@link SnapshotCursor} stream the archive one batch at a time, see
+	 * {@link #writeStreamedZipArchive()}.
+	 * 
 	 * @throws IOException
 	 */
 	public DownloadZipResult writeZipArchive()
 	{
-		long size_bytes = 0;
+		if (cursor != null)
+			return writeStreamedZipArchive();
+		
+		size_bytes = 0;
 		List<Snapshot> downloadedSnapshots = new ArrayList<Snapshot>();
+		ZipArchiveWriter archive = null;
+		boolean finished = false;
 		
 		try {
-			ZipOutputStream archive = new ZipOutputStream(this.requestStream);
+			archive = newArchive();
 			
-			// Add snapshots CSV file
+			// Add snapshots CSV file, CSV files are deflated while images are stored
 			String snapshotCSV = "SnapshotInfo.csv";
-			archive.putNextEntry(new ZipEntry(snapshotCSV));
-			archive.write(Snapshot.toCSV(snapshots, true).getBytes());
+			OutputStream csv = archive.putDeflatedEntry(snapshotCSV);
+			csv.write(Snapshot.toCSV(snapshots, true).getBytes());
+			csv.close();
 			log.info("Snapshot CSV data added to the zip archive.");
 			
 			// Add tiles CSV file
 			List<Tile> tiles = Snapshot.getTiles(snapshots);
+			progress.started(snapshots.size(), tiles.size());
 			String tileCSV = "TileInfo.csv";
-			archive.putNextEntry(new ZipEntry(tileCSV));
-			archive.write(Tile.toCSV(tiles, true).getBytes());
+			csv = archive.putDeflatedEntry(tileCSV);
+			csv.write((tileCSVHeader() + tileCSVRows(tiles)).getBytes());
+			csv.close();
 			log.info("Tile CSV data added to the zip archive.");
 			
-			// Add images
-			for (Snapshot snapshot : snapshots) {
-				
-				log.info("Adding snapshot " + snapshot.id + " to the zip archive.");
-				String prefixName = "snapshot" + snapshot.id + "/";
-				this.threadStreams.clear(); // Reset from previous snapshot processing
-				
-				this.processImages(
-						snapshot.getTiles(),
-						new DateTime(snapshot.timestamp),
-						this.experiment,
-						prefixName);
-				
-				for (String imageName : this.threadStreams.keySet()){
-					try{
-						ZipEntry nextImage = new ZipEntry(imageName);
-						archive.putNextEntry(nextImage);
-						
-						log.info("Waiting to write " + imageName + " to zip.");
-						byte[] imageBytes = IOUtils.toByteArray(this.threadStreams.get(imageName));
-						archive.write(imageBytes);
-						size_bytes += imageBytes.length;
-						
-						log.info(imageName + " written to zip.");
-						archive.flush();
-					}
-					
-					catch(java.util.zip.ZipException e){
-						// TODO: Determine why this is thrown and how to handle it
-						log.error("Uncaught zip error " + e.getMessage());
-						System.err.println(e.getMessage());
-					}
-				}
-				
-				// Pauses all the open threads
-				// TODO: Why are there any open threads
-				try {
-					log.info("Accessing this thread group.");
-					synchronized (this.group) {
-						log.info("In thread group for snapshot " + snapshot.id + " there are " + group.activeCount() + " open threads.");
-						if (group.activeCount() > 0)
-							group.wait();
-					}
-				}
-				
-				catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-				
-				downloadedSnapshots.add(snapshot);
-			}		
+			writeSnapshots(archive, snapshots, newImageService(), downloadedSnapshots);
 			log.info("All snapshots added the zip archive.");
 			
 			archive.finish();
 			log.info("Archive finished.");
+			finished = true;
+			progress.finished(true, archive.getBytesWritten());
 			
 			snapshots.removeAll(downloadedSnapshots);
 			return new DownloadZipResult(size_bytes, Snapshot.getIds(snapshots), true);
@@ -168,89 +196,601 @@ public class ResultsBuilder
 			snapshots.removeAll(downloadedSnapshots);
 			return new DownloadZipResult(size_bytes, Snapshot.getIds(snapshots), false);
 		}
+		
+		finally {
+			// Whatever stopped the archive, pollers must see the download end
+			if ( ! finished)
+				progress.finished(false, archive == null ? 0 : archive.getBytesWritten());
+			discardPendingImages();
+		}
+	}
+	
+	/**
+	 * Writes the snapshots of the cursor to the archive a batch at a time, so only one batch of snapshots and
+	 * their tiles is ever held, however many the query finds.
+	 * 
+	 * The CSV files cover every snapshot, so their rows are spooled to temporary files as each batch goes by and
+	 * they are added at the end of the archive rather than the start. Totals are not known until the cursor is
+	 * exhausted, so progress is started with unknown counts.
+	 * 
+	 * If the archive is cut short, the missed snapshots are the unwritten ones of the batch being written followed
+	 * by every snapshot the cursor hadn't read yet, so resuming the download covers the rest of the query.
+	 */
+	private DownloadZipResult writeStreamedZipArchive()
+	{
+		size_bytes = 0;
+		List<Snapshot> batch = new ArrayList<Snapshot>();
+		List<Snapshot> downloadedSnapshots = new ArrayList<Snapshot>();
+		ZipArchiveWriter archive = null;
+		File snapshotRows = null;
+		File tileRows = null;
+		Writer snapshotCSV = null;
+		Writer tileCSV = null;
+		boolean finished = false;
+		
+		try {
+			archive = newArchive();
+			progress.started(-1, -1);
+			
+			snapshotRows = File.createTempFile("snapshots", ".csv");
+			tileRows = File.createTempFile("tiles", ".csv");
+			snapshotCSV = new BufferedWriter(new FileWriter(snapshotRows));
+			tileCSV = new BufferedWriter(new FileWriter(tileRows));
+			
+			ImageService imageConverter = newImageService();
+			while ( ! (batch = cursor.nextBatch()).isEmpty()) {
+				snapshotCSV.write(Snapshot.toCSV(batch, false));
+				tileCSV.write(tileCSVRows(Snapshot.getTiles(batch)));
+				
+				downloadedSnapshots.clear();
+				writeSnapshots(archive, batch, imageConverter, downloadedSnapshots);
+			}
+			log.info("All " + cursor.getSnapshotsRead() + " snapshots added the zip archive.");
+			
+			snapshotCSV.close();
+			tileCSV.close();
+			copyCSV(archive, "SnapshotInfo.csv", Snapshot.CSV_HEADER, snapshotRows);
+			copyCSV(archive, "TileInfo.csv", tileCSVHeader(), tileRows);
+			log.info("Snapshot and tile CSV data added to the zip archive.");
+			
+			archive.finish();
+			log.info("Archive finished.");
+			finished = true;
+			progress.finished(true, archive.getBytesWritten());
+			
+			return new DownloadZipResult(size_bytes, new ArrayList<Integer>(), true);
+		}
+		
+		catch (IOException e) {
+			log.info("Building zip file for download cancelled prematurely.");
+			
+			return new DownloadZipResult(size_bytes, missedSnapshots(batch, downloadedSnapshots), false);
+		}
+		
+		catch (DataAccessException e) {
+			log.error("Reading snapshots for the zip archive failed after " + cursor.getSnapshotsRead() + " snapshots.", e);
+			
+			return new DownloadZipResult(size_bytes, missedSnapshots(batch, downloadedSnapshots), false);
+		}
+		
+		finally {
+			// Whatever stopped the archive, pollers must see the download end
+			if ( ! finished)
+				progress.finished(false, archive == null ? 0 : archive.getBytesWritten());
+			discardPendingImages();
+			IOUtils.closeQuietly(snapshotCSV);
+			IOUtils.closeQuietly(tileCSV);
+			if (snapshotRows != null)
+				snapshotRows.delete();
+			if (tileRows != null)
+				tileRows.delete();
+		}
+	}
+	
+	/**
+	 * IDs of the snapshots a streamed archive cut short has missed: the unwritten snapshots of the batch being
+	 * written, then those the cursor hadn't read yet.
+	 * 
+	 * If a batch failed to read, the supplied batch is the one before it, which was written in full.
+	 */
+	private List<Integer> missedSnapshots(List<Snapshot> batch, List<Snapshot> downloadedSnapshots)
+	{
+		batch.removeAll(downloadedSnapshots);
+		List<Integer> missed = Snapshot.getIds(batch);
+		try {
+			missed.addAll(cursor.readRemainingIds());
+		}
+		catch (DataAccessException e) {
+			log.error("Could not read the snapshots after the " + cursor.getSnapshotsRead()
+					+ " read so far, they will be left out of the missed snapshots.", e);
+		}
+		return missed;
+	}
+	
+	// Deflated entries are compressed in blocks on the band threads, or here when they are all busy
+	private ZipArchiveWriter newArchive() throws IOException
+	{
+		return new ZipArchiveWriter(
+				this.requestStream,
+				converter.getBandExecutor(),
+				converter.getThreads(),
+				Deflater.DEFAULT_COMPRESSION);
+	}
+	
+	private ImageService newImageService()
+	{
+		return new ImageService(
+				encoding,
+				demosaic,
+				converter.getBandExecutor(),
+				converter.getDemosaicBands(),
+				converter.getPngBlocks());
+	}
+	
+	/**
+	 * Writes the images of the supplied snapshots to the archive, in order.
+	 * 
+	 * Converted snapshots are prefetched within the list only, so all of their images have been written by the
+	 * time this returns.
+	 * 
+	 * @param archive				Archive to write the images into
+	 * @param snapshots				Snapshots to write
+	 * @param imageConverter		Converts the images, unused for raw downloads
+	 * @param downloadedSnapshots	Snapshots are added to this once all their images are written
+	 * @throws IOException			Thrown if the archive cannot be written
+	 */
+	private void writeSnapshots(
+			ZipArchiveWriter archive,
+			List<Snapshot> snapshots,
+			ImageService imageConverter,
+			List<Snapshot> downloadedSnapshots)
+					throws IOException
+	{
+		// Raw frames are copied straight from their blobs, without converting or holding anything
+		if (encoding.isRaw()) {
+			for (Snapshot snapshot : snapshots) {
+				log.info("Adding snapshot " + snapshot.id + " to the zip archive.");
+				copyRawImages(archive, snapshot.getTiles(), new DateTime(snapshot.timestamp), "snapshot" + snapshot.id + "/");
+				downloadedSnapshots.add(snapshot);
+				progress.snapshotWritten(archive.getBytesWritten());
+			}
+			return;
+		}
+		
+		int nextToConvert = 0;
+		for (int index = 0; index < snapshots.size(); index++) {
+			Snapshot snapshot = snapshots.get(index);
+			
+			// Start converting this snapshot, and as many following ones as the prefetch window allows
+			while (nextToConvert < snapshots.size()
+					&& (nextToConvert == index || withinPrefetchWindow(nextToConvert - index, snapshots.get(nextToConvert)))) {
+				
+				Snapshot toConvert = snapshots.get(nextToConvert);
+				this.processImages(
+						archive,
+						nextToConvert,
+						toConvert.getTiles(),
+						new DateTime(toConvert.timestamp),
+						this.experiment,
+						"snapshot" + toConvert.id + "/",
+						imageConverter);
+				nextToConvert++;
+			}
+			
+			log.info("Adding snapshot " + snapshot.id + " to the zip archive.");
+			
+			// Write out whatever of this snapshot wasn't written while waiting on conversion slots
+			while ( ! pendingImages.isEmpty() && pendingImages.getFirst().snapshotIndex == index)
+				writeNextImage(archive);
+			
+			downloadedSnapshots.add(snapshot);
+			progress.snapshotWritten(archive.getBytesWritten());
+		}
+	}
+	
+	/**
+	 * Adds a CSV file to the archive from a header and rows spooled to a file.
+	 */
+	private static void copyCSV(ZipArchiveWriter archive, String name, String header, File rows) throws IOException
+	{
+		OutputStream csv = archive.putDeflatedEntry(name);
+		csv.write(header.getBytes());
+		InputStream in = new FileInputStream(rows);
+		try {
+			IOUtils.copy(in, csv);
+		}
+		finally {
+			in.close();
+		}
+		csv.close();
+	}
+	
+	/**
+	 * Tile CSV with an extra column recording how each tile's image was produced. Only visible tiles are
+	 * demosaiced, so the column is empty for the others.
+	 * 
+	 * Raw downloads are not demosaiced, and instead get a column with the pixel layout of each raw frame,
+	 * which along with the width and height is what is needed to decode it.
+	 */
+	private String tileCSVHeader()
+	{
+		String column = encoding.isRaw() ? RAW_FORMAT : DEMOSAIC;
+		return Tile.CSV_HEADER.replace("\n", "," + column + "\n");
+	}
+	
+	private String tileCSVRows(List<Tile> tiles)
+	{
+		StringBuilder csv = new StringBuilder();
+		for (Tile tile : tiles) {
+			String row = tile.toCSV(false);
+			csv.append(row, 0, row.length() - 1).append(',');
+			if (encoding.isRaw())
+				csv.append(rawFormat(tile));
+			else if (tile.dataFormat == 1)
+				csv.append(demosaic.getName());
+			csv.append('\n');
+		}
+		return csv.toString();
+	}
+	
+	/**
+	 * Pixel layout of a tile's raw frame: 8 bit Bayer BGGR for visible, 16 bit little endian (14 significant bits)
+	 * for fluorescent, and 8 bit gray stored bottom row first for infrared.
+	 */
+	private static String rawFormat(Tile tile)
+	{
+		if (tile.dataFormat == 0)
+			return "gray8 bottom-up";
+		else if (tile.dataFormat == 1)
+			return "bayer-bggr8";
+		else if (tile.dataFormat == 6)
+			return "gray16le";
+		else
+			return "unknown";
 	}
 	
 	/**
-	 * For each tile create a thread to convert the raw images and return.
-	 * Opens an output stream for each thread, then writes each stream to the requestStream 
-	 * until that stream is closed.
+	 * Copies the raw frame of each tile from its blob into the archive, still compressed as it is in the blob.
 	 * 
-	 * Currently threads handle all exceptions, including zip exceptions (which would mean corrupted or something)
-	 * It is possible that these need to be handled and logged, in which case a listener should be implemented.
+	 * Tiles whose blob is missing or is not a readable zip are logged and left out of the archive, like tiles
+	 * that fail to convert.
+	 * 
+	 * @param archive			Archive to copy the frames into
+	 * @param tiles				Tiles of a snapshot, may be null
+	 * @param datetime			Time of the snapshot, which locates its blobs
+	 * @param namePrefix		Prefix to be added to image names
+	 * @throws IOException		Thrown if the archive cannot be written
+	 */
+	private void copyRawImages(ZipArchiveWriter archive, List<Tile> tiles, DateTime datetime, String namePrefix)
+			throws IOException
+	{
+		if (tiles == null)
+			return;
+		
+		for (Tile tile : tiles) {
+			String imageName = namePrefix + tile.getName() + encoding.getExtension();
+			String filename = TileFileLTSystemUtil.getTileFilename(tile, datetime, experiment);
+			
+			TileBlob blob;
+			try {
+				blob = new TileBlob(filename);
+			}
+			catch (IOException e) {
+				log.error("Could not read " + filename + ". " + imageName + " will be left out of the archive.", e);
+				progress.tileSkipped();
+				continue;
+			}
+			
+			try {
+				long writeStart = System.nanoTime();
+				archive.putBlobEntry(imageName, blob);
+				size_bytes += blob.getCompressedSize();
+				progress.tileWritten(archive.getBytesWritten(), 0, System.nanoTime() - writeStart);
+				log.info(imageName + " copied to zip.");
+			}
+			finally {
+				blob.close();
+			}
+		}
+		archive.flush();
+	}
+	
+	/**
+	 * Whether a snapshot the supplied distance ahead of the one being written may start converting.
+	 */
+	private boolean withinPrefetchWindow(int distance, Snapshot snapshot)
+	{
+		if (distance > prefetchSnapshots)
+			return false;
+		
+		long snapshotBytes = 0;
+		for (Tile tile : snapshot.getTiles())
+			snapshotBytes += estimatedImageBytes(tile);
+		
+		return pendingBytes + snapshotBytes <= prefetchBytes;
+	}
+	
+	/**
+	 * Estimate of the memory a tile holds while it converts and waits to be written, taken as the size of its
+	 * decoded frame (3 bytes a pixel for visible, 2 for fluorescent, 1 for infrared).
+	 */
+	private static long estimatedImageBytes(Tile tile)
+	{
+		int bytesPerPixel = tile.dataFormat == 1 ? 3 : tile.dataFormat == 6 ? 2 : 1;
+		return (long) tile.width * tile.height * bytesPerPixel;
+	}
+	
+	/**
+	 * Submits each tile to the conversion service. The converted images are written to the archive, in order,
+	 * by {@link #writeNextImage(ZipArchiveWriter)}.
+	 * 
+	 * Conversions handle their own failures (missing blobs, corrupted zips) by logging them, and the tile is left
+	 * out of the archive.
 	 * 
 	 * To handle null tiles, it simply returns. That is snapshots with no tiles associated with it.
 	 * 
-	 * TODO: Implement listener that monitors progress
+	 * Progress is reported to the {@link DownloadProgressListener} as each image is written.
 	 * 
+	 * @param archive			Archive to write held images to while waiting for a free conversion slot
+	 * @param snapshotIndex		Position of the tiles' snapshot in the download
 	 * @param tiles
 	 * @param datetime
 	 * @param experiment
-	 * @param namePrefix	Prefix to be added to map names. This could be anything but was added for zip archives.
+	 * @param namePrefix		Prefix to be added to image names. This could be anything but was added for zip archives.
+	 * @param imageConverter	Converter used by every tile of this download
 	 * @throws IOException 
 	 */
-	public void processImages(List<Tile> tiles, DateTime datetime, Experiment experiment, String namePrefix) throws IOException
+	private void processImages(
+			ZipArchiveWriter archive,
+			int snapshotIndex,
+			List<Tile> tiles,
+			DateTime datetime,
+			Experiment experiment,
+			String namePrefix,
+			ImageService imageConverter)
+					throws IOException
 	{
 		if (tiles == null)
 			return;
 		
-		ImageService imageConverter = new ImageService(convertJPEG);
-		
 		for (Tile tile : tiles) {
+			String imageName = namePrefix + tile.getName() + encoding.getExtension();
 			
-			PipedInputStream input = new PipedInputStream();
-			PipedOutputStream threadedOutput = new PipedOutputStream(input);
-			
-			String imageName = namePrefix + tile.getName() + (convertJPEG ? ".jpg" : ".png");
+			// Images converted before with the same settings are copied from the cache, and take no slot
+			String cacheKey = null;
+			if (cache != null) {
+				cacheKey = ConvertedImageCache.key(experiment, tile, encoding, demosaic);
+				ConvertedImageCache.CachedImage cached = cache.open(cacheKey);
+				if (cached != null) {
+					log.info("Found " + imageName + " in the image cache.");
+					pendingImages.add(new PendingImage(imageName, snapshotIndex, cached));
+					continue;
+				}
+			}
 			
-			this.threadStreams.put(imageName, input);
+			reserveConversionSlot(archive);
 			
-			// TODO: No logging happens, nothing. This is something that needs to be discussed and addressed.
 			log.info("Beginning image processing for tile " + imageName);
-			ImageProcessor imageProcessor = new ImageProcessor(
-					group,
-					"Process Image",
-					threadedOutput,
-					tile,
-					datetime,
-					experiment,
-					imageConverter);
-			imageProcessor.start();
+			try {
+				Future<ConvertedImage> result = converter.submit(
+						new TileConversion(tile, datetime, experiment, imageConverter, cache, cacheKey));
+				PendingImage image = new PendingImage(imageName, snapshotIndex, estimatedImageBytes(tile), result);
+				pendingImages.add(image);
+				pendingBytes += image.estimatedBytes;
+			}
+			catch (RuntimeException e) {
+				converter.release();
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Blocks until a conversion slot is free. While waiting it writes out images this builder already holds, otherwise
+	 * two downloads each holding slots the other is waiting on would never finish.
+	 */
+	private void reserveConversionSlot(ZipArchiveWriter archive) throws IOException
+	{
+		try {
+			while ( ! converter.tryReserve(RESERVE_POLL_MS, TimeUnit.MILLISECONDS)) {
+				if (pendingImages.isEmpty()) {
+					converter.reserve();
+					return;
+				}
+				writeNextImage(archive);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for an image conversion slot.");
+		}
+	}
+	
+	/**
+	 * Waits for the oldest pending image to finish converting and writes it to the archive.
+	 * Gives back the image's conversion slot whether or not it could be written.
+	 * 
+	 * Jpeg and png images are already compressed, so they are stored rather than deflated a second time.
+	 * The exception is png level 0, which leaves compressing the image to the archive.
+	 */
+	private void writeNextImage(ZipArchiveWriter archive) throws IOException
+	{
+		PendingImage image = pendingImages.removeFirst();
+		pendingBytes -= image.estimatedBytes;
+		
+		if (image.cached != null) {
+			writeCachedImage(archive, image);
+			return;
+		}
+		
+		try {
+			log.info("Waiting to write " + image.name + " to zip.");
+			long waitStart = System.nanoTime();
+			ConvertedImage converted = image.await();
+			long writeStart = System.nanoTime();
+			if (converted == null) {
+				progress.tileSkipped();
+				return;
+			}
+			
+			if (encoding.isJPEG() || encoding.getPngLevel() != 0) {
+				archive.putStoredEntry(image.name, converted);
+			}
+			else {
+				OutputStream entry = archive.putDeflatedEntry(image.name);
+				converted.writeTo(entry);
+				entry.close();
+			}
+			size_bytes += converted.getLength();
+			
+			log.info(image.name + " written to zip.");
+			archive.flush();
+			progress.tileWritten(archive.getBytesWritten(), writeStart - waitStart, System.nanoTime() - writeStart);
+		}
+		
+		catch(java.util.zip.ZipException e){
+			// TODO: Determine why this is thrown and how to handle it
+			log.error("Uncaught zip error " + e.getMessage());
+			progress.tileSkipped();
+		}
+		
+		finally {
+			converter.release();
+		}
+	}
+	
+	/**
+	 * Copies a cached image to the archive and closes it. Cached images hold no conversion slot.
+	 */
+	private void writeCachedImage(ZipArchiveWriter archive, PendingImage image) throws IOException
+	{
+		try {
+			long writeStart = System.nanoTime();
+			if (encoding.isJPEG() || encoding.getPngLevel() != 0) {
+				archive.putCachedEntry(image.name, image.cached);
+			}
+			else {
+				OutputStream entry = archive.putDeflatedEntry(image.name);
+				image.cached.transferTo(Channels.newChannel(entry));
+				entry.close();
+			}
+			size_bytes += image.cached.getLength();
+			
+			log.info(image.name + " written to zip from the image cache.");
+			archive.flush();
+			progress.tileWritten(archive.getBytesWritten(), 0, System.nanoTime() - writeStart);
+		}
+		
+		catch(java.util.zip.ZipException e){
+			log.error("Uncaught zip error " + e.getMessage());
+			progress.tileSkipped();
+		}
+		
+		finally {
+			image.cached.close();
+		}
+	}
+	
+	/**
+	 * Cancels any conversions that will not be written (e.g., the client disconnected) and gives back their slots.
+	 */
+	private void discardPendingImages()
+	{
+		for (PendingImage image : pendingImages) {
+			if (image.cached != null) {
+				image.cached.close();
+				continue;
+			}
+			image.result.cancel(true);
+			converter.release();
+		}
+		pendingImages.clear();
+		pendingBytes = 0;
+	}
+	
+	
+	/**
+	 * A tile that has been submitted for conversion, or found in the image cache, along with the name it will have
+	 * in the archive and the snapshot it belongs to.
+	 */
+	private static class PendingImage
+	{
+		final String name;
+		final int snapshotIndex;
+		final long estimatedBytes;
+		final Future<ConvertedImage> result;
+		final ConvertedImageCache.CachedImage cached;
+		
+		PendingImage(String name, int snapshotIndex, long estimatedBytes, Future<ConvertedImage> result)
+		{
+			this.name = name;
+			this.snapshotIndex = snapshotIndex;
+			this.estimatedBytes = estimatedBytes;
+			this.result = result;
+			this.cached = null;
+		}
+		
+		PendingImage(String name, int snapshotIndex, ConvertedImageCache.CachedImage cached)
+		{
+			this.name = name;
+			this.snapshotIndex = snapshotIndex;
+			this.estimatedBytes = 0;
+			this.result = null;
+			this.cached = cached;
+		}
+		
+		/**
+		 * @return		The converted image, or null if the conversion failed
+		 */
+		ConvertedImage await() throws InterruptedIOException
+		{
+			try {
+				return result.get();
+			}
+			catch (ExecutionException e) {
+				log.error("Could not convert " + name + ". It will be left out of the archive.", e.getCause());
+				return null;
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for " + name + " to convert.");
+			}
 		}
 	}
 }
 
 
 /**
- * Inner class which represents the thread state and all of the information threads need to know.
- * These threads check the type of image, convert it, and then write to the output stream.
+ * Conversion of a single tile, run on the {@link ImageConversionService} workers.
+ * Checks the type of image, converts it, and returns the encoded image along with its CRC.
+ * The image is also added to the image cache, if there is one.
  * 
  * @author shill
  */
-class ImageProcessor extends Thread
+class TileConversion implements Callable<ConvertedImage>
 {
-	private static final Logger log = Logger.getLogger(ImageProcessor.class);
+	private static final Logger log = Logger.getLogger(TileConversion.class);
 	
 	private Tile tile;
 	private DateTime date;
 	private Experiment experiment;
 	
-	private OutputStream output;
 	private ImageService imageConvert;
 	
-	public ImageProcessor(
-			ThreadGroup group,
-			String name,
-			OutputStream output,
+	private ConvertedImageCache cache;
+	private String cacheKey;
+	
+	public TileConversion(
 			Tile tile,
 			DateTime date,
 			Experiment experiment,
-			ImageService imageConverter)
+			ImageService imageConverter,
+			ConvertedImageCache cache,
+			String cacheKey)
 	{
-		super(group, name);
-		
 		this.imageConvert = imageConverter;
-		
-		this.output = output;
+		this.cache = cache;
+		this.cacheKey = cacheKey;
 		
 		this.tile = tile;
 		this.date = date;
@@ -258,71 +798,45 @@ class ImageProcessor extends Thread
 	}
 	
 	@Override
-	public void run()
+	public ConvertedImage call() throws IOException
 	{
 		log.info("Converting " + tile.getSpectrum() + " tile, " + tile.getName() + ".");
 		
-		try{
-			String filename = TileFileLTSystemUtil.getTileFilename(tile, date, experiment);
-			
-			if (! new File(filename).exists())
-				throw new FileNotFoundException(filename + " is not found.");
-			
-			InputStream input = readZipImageEntry(filename);
+		String filename = TileFileLTSystemUtil.getTileFilename(tile, date, experiment);
+		
+		if (! new File(filename).exists())
+			throw new FileNotFoundException(filename + " is not found.");
+		
+		// The frame is mapped from the blob, or inflated from the mapping, and converted from there
+		ConvertedImage.Output output = new ConvertedImage.Output();
+		TileBlob blob = new TileBlob(filename);
+		try {
+			ByteBuffer raw = blob.readData();
 			
 			if (tile.dataFormat == 0)
-				imageConvert.toInfrared(input, output);
+				imageConvert.toInfrared(raw, output);
 			
 			else if (tile.dataFormat == 1)
-				imageConvert.toVisible(input, output);
+				imageConvert.toVisible(raw, output);
 			
 			else if (tile.dataFormat == 6)
-				imageConvert.toFluorescent(input, output);
-			
-			
-			output.flush();
-			log.info("Tile " + filename + " has completed processing.");
+				imageConvert.toFluorescent(raw, output);
 		}
-		
-		
-		
-		catch (ZipException e) {
-			e.printStackTrace();
-		}
-		catch(NullPointerException e) {
-			e.printStackTrace();
-			System.err.println("Tile " + tile.getName() + " does not exist on file system.");
-		}
-		catch(IOException e) {
-			e.printStackTrace();
-			System.err.println("IOException in Thread group.");
+		finally {
+			blob.close();
 		}
 		
+		log.info("Tile " + filename + " has completed processing.");
+		ConvertedImage converted = output.toConvertedImage();
 		
-		// If some previous exception is thrown we need to know so that we can close the threads stream
-		try {
-			output.close();
-		}
-		
-		catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		if (cache != null) {
+			try {
+				cache.put(cacheKey, converted);
+			}
+			catch (IOException e) {
+				log.warn("Could not add " + tile.getName() + " to the image cache.", e);
+			}
 		}
-	}
-	
-	
-	/**
-	 * Utility function which handles the 3 lines of code for reading the raw image located in the
-	 * LemnaTec Blob. This is a DDPSC LemnaTec system specific function.
-	 * @param filename
-	 * @return
-	 * @throws ZipException
-	 */
-	private static InputStream readZipImageEntry(String filename) throws ZipException
-	{
-		ZipFile zipFile = new ZipFile(filename);
-		FileHeader entry = zipFile.getFileHeader("data");
-		
-		return zipFile.getInputStream(entry);
+		return converted;
 	}
 }
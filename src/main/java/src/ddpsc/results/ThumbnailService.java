@@ -0,0 +1,300 @@
+package src.ddpsc.results;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+
+import src.ddpsc.database.experiment.Experiment;
+import src.ddpsc.database.snapshot.Snapshot;
+import src.ddpsc.database.tile.Tile;
+import src.ddpsc.database.tile.TileBlob;
+import src.ddpsc.database.tile.TileFileLTSystemUtil;
+
+/**
+ * Jpeg previews of single tiles at a few fixed sizes, for looking at plants without downloading them.
+ *
+ * Each tile has a pyramid of levels: 128 and 512 pixels on the longest side, and full resolution. Levels are
+ * rendered when first asked for, from one read of the raw blob. Asking for a level also renders every smaller
+ * level from it by repeated halving, so the smaller levels are ready when the browser asks for them next. The
+ * smaller levels start from a half resolution demosaic, which costs a fraction of a full one.
+ *
+ * Rendered levels are kept in the {@link ConvertedImageCache}, keyed by tile id, so a cached level is served
+ * without touching the database. Renders run on the {@link ImageConversionService} and count against its slots
+ * like any download.
+ *
+ * Fluorescent previews are reduced to 8 bits, as jpeg has no 16 bit gray.
+ *
+ * @author shill
+ */
+public class ThumbnailService
+{
+	private static final Logger log = Logger.getLogger(ThumbnailService.class);
+
+	/**
+	 * The full resolution level.
+	 */
+	public static final int FULL = 0;
+
+	/**
+	 * Longest side of the reduced levels, smallest first.
+	 */
+	public static final int[] LEVELS = { 128, 512 };
+
+	private static final ImageEncoding ENCODING = new ImageEncoding(true, 0.85f, ImageEncoding.DEFAULT_PNG_LEVEL, PngFilter.DEFAULT);
+
+	private final ImageConversionService converter;
+
+	public ThumbnailService(ImageConversionService converter)
+	{
+		this.converter = converter;
+	}
+
+	/**
+	 * Parses a requested size: "full", or a number of pixels that is rounded up to the next level.
+	 *
+	 * @return		{@link #FULL} or one of the {@link #LEVELS}
+	 * @throws IllegalArgumentException		Thrown if the size is neither
+	 */
+	public static int level(String size)
+	{
+		if ("full".equalsIgnoreCase(size))
+			return FULL;
+
+		int pixels;
+		try {
+			pixels = Integer.parseInt(size.trim());
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Unknown thumbnail size: " + size);
+		}
+		if (pixels <= 0)
+			throw new IllegalArgumentException("Unknown thumbnail size: " + size);
+
+		for (int level : LEVELS)
+			if (pixels <= level)
+				return level;
+		return FULL;
+	}
+
+	/**
+	 * @return		The cache key of a tile's level
+	 */
+	public static String key(Experiment experiment, int tileId, int level)
+	{
+		return experiment.name + "/tile" + tileId + "/thumbnail-" + (level == FULL ? "full" : Integer.toString(level));
+	}
+
+	/**
+	 * Opens a tile's level if it is already rendered.
+	 *
+	 * @return		The open level, which the caller must close, or null if it has to be rendered
+	 */
+	public ConvertedImageCache.CachedImage openCached(Experiment experiment, int tileId, int level)
+	{
+		ConvertedImageCache cache = converter.getImageCache();
+		if (cache == null)
+			return null;
+		return cache.open(key(experiment, tileId, level));
+	}
+
+	/**
+	 * Renders a tile's level along with every smaller level, and caches them.
+	 *
+	 * @param snapshot		The tile's snapshot, which locates its blob
+	 * @return				The requested level
+	 * @throws IOException	Thrown if the blob cannot be read or the render is interrupted
+	 */
+	public ConvertedImage render(final Experiment experiment, final Snapshot snapshot, final Tile tile, final int level)
+			throws IOException
+	{
+		try {
+			converter.reserve();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for an image conversion slot.");
+		}
+
+		try {
+			Future<ConvertedImage> result = converter.submit(new Callable<ConvertedImage>() {
+				@Override
+				public ConvertedImage call() throws IOException
+				{
+					return renderPyramid(experiment, snapshot, tile, level);
+				}
+			});
+			return result.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while rendering a thumbnail.");
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Could not render a thumbnail of tile " + tile.id + ".", e.getCause());
+		}
+		finally {
+			converter.release();
+		}
+	}
+
+	private ConvertedImage renderPyramid(Experiment experiment, Snapshot snapshot, Tile tile, int level) throws IOException
+	{
+		log.info("Rendering thumbnails of tile " + tile.id + " up to level " + level + ".");
+
+		String filename = TileFileLTSystemUtil.getTileFilename(tile, new DateTime(snapshot.timestamp), experiment);
+		BufferedImage image;
+		TileBlob blob = new TileBlob(filename);
+		try {
+			image = decode(blob.readData(), tile, level == FULL);
+		}
+		finally {
+			blob.close();
+		}
+
+		ConvertedImage requested = null;
+		if (level == FULL)
+			requested = encode(experiment, tile, FULL, image);
+
+		for (int i = LEVELS.length - 1; i >= 0; i--) {
+			if (level != FULL && LEVELS[i] > level)
+				continue;
+
+			image = downscale(image, LEVELS[i]);
+			ConvertedImage encoded = encode(experiment, tile, LEVELS[i], image);
+			if (LEVELS[i] == level)
+				requested = encoded;
+		}
+		return requested;
+	}
+
+	private ConvertedImage encode(Experiment experiment, Tile tile, int level, BufferedImage image) throws IOException
+	{
+		ConvertedImage.Output output = new ConvertedImage.Output();
+		ImageWriterPool.write(image, ENCODING, output);
+		ConvertedImage encoded = output.toConvertedImage();
+
+		ConvertedImageCache cache = converter.getImageCache();
+		if (cache != null) {
+			try {
+				cache.put(key(experiment, tile.id, level), encoded);
+			}
+			catch (IOException e) {
+				log.warn("Could not add a thumbnail of tile " + tile.id + " to the image cache.", e);
+			}
+		}
+		return encoded;
+	}
+
+
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	// Pixels
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	/**
+	 * Decodes a raw frame into an 8 bit gray or BGR image. Visible frames are binned to half resolution unless the
+	 * full level is wanted.
+	 */
+	private BufferedImage decode(ByteBuffer raw, Tile tile, boolean full) throws IOException
+	{
+		if (tile.dataFormat == 0)
+			return ImageService.infraredImage(raw);
+
+		if (tile.dataFormat == 1) {
+			DemosaicAlgorithm algorithm = full ? DemosaicAlgorithm.BILINEAR : DemosaicAlgorithm.HALF_RESOLUTION;
+			return Bayer2Rgb.demosaic(
+					raw,
+					ImageService.VISWIDTH,
+					ImageService.VISHEIGHT,
+					algorithm,
+					converter.getBandExecutor(),
+					converter.getDemosaicBands());
+		}
+
+		if (tile.dataFormat == 6)
+			return toGray8(ImageService.fluorescentImage(raw));
+
+		throw new IOException("Tile " + tile.id + " has unknown data format " + tile.dataFormat + ".");
+	}
+
+	/**
+	 * Fluorescent images hold 14 significant bits shifted left by one, so the top 8 of those 15 bits are kept.
+	 */
+	private static BufferedImage toGray8(BufferedImage fluorescent)
+	{
+		short[] samples = ((DataBufferUShort) fluorescent.getRaster().getDataBuffer()).getData();
+		BufferedImage gray = new BufferedImage(fluorescent.getWidth(), fluorescent.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+		byte[] pixels = ((DataBufferByte) gray.getRaster().getDataBuffer()).getData();
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = (byte) ((samples[i] & 0xFFFF) >>> 7);
+		return gray;
+	}
+
+	/**
+	 * Shrinks an image so its longest side is at most the supplied size, halving it with a box filter while it is
+	 * at least twice as large and finishing with a bilinear resize.
+	 */
+	public static BufferedImage downscale(BufferedImage image, int longestSide)
+	{
+		while (Math.max(image.getWidth(), image.getHeight()) / 2 >= longestSide)
+			image = halve(image);
+
+		int longest = Math.max(image.getWidth(), image.getHeight());
+		if (longest <= longestSide)
+			return image;
+
+		int width = Math.max(1, (int) Math.round((double) image.getWidth() * longestSide / longest));
+		int height = Math.max(1, (int) Math.round((double) image.getHeight() * longestSide / longest));
+		BufferedImage scaled = new BufferedImage(width, height, image.getType());
+		Graphics2D graphics = scaled.createGraphics();
+		graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		graphics.drawImage(image, 0, 0, width, height, null);
+		graphics.dispose();
+		return scaled;
+	}
+
+	/**
+	 * Averages each 2x2 block of an 8 bit gray or BGR image into one pixel.
+	 */
+	private static BufferedImage halve(BufferedImage image)
+	{
+		int channels = image.getType() == BufferedImage.TYPE_3BYTE_BGR ? 3 : 1;
+		int width = image.getWidth() / 2;
+		int height = image.getHeight() / 2;
+		int sourceStride = image.getWidth() * channels;
+
+		BufferedImage halved = new BufferedImage(width, height, image.getType());
+		byte[] source = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		byte[] target = ((DataBufferByte) halved.getRaster().getDataBuffer()).getData();
+
+		int out = 0;
+		for (int y = 0; y < height; y++) {
+			int top = 2 * y * sourceStride;
+			int bottom = top + sourceStride;
+			for (int x = 0; x < width; x++) {
+				int left = 2 * x * channels;
+				for (int c = 0; c < channels; c++) {
+					int sum = (source[top + left + c] & 0xFF)
+							+ (source[top + left + channels + c] & 0xFF)
+							+ (source[bottom + left + c] & 0xFF)
+							+ (source[bottom + left + channels + c] & 0xFF);
+					target[out++] = (byte) ((sum + 2) >> 2);
+				}
+			}
+		}
+		return halved;
+	}
+}
@@ -0,0 +1,688 @@
+package src.ddpsc.results;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+import src.ddpsc.database.tile.TileBlob;
+
+/**
+ * Streams a zip archive whose deflated entries are compressed on several cores.
+ *
+ * A deflated entry is cut into blocks that are deflated independently, in the style of pigz. Each block is primed
+ * with the end of the block before it and ended with a sync flush, so the compressed blocks concatenate into the
+ * single deflate stream a reader expects. The CRC32 of each block is computed with its compression and the
+ * entry's CRC is combined from them. Blocks are written in order while later ones are still compressing, and only
+ * a few blocks per core are held at once.
+ *
+ * Stored entries (already compressed images) are written as is with the CRC computed during conversion or kept
+ * by the image cache, and the raw frames of blobs are copied with their compression and CRC from the blob.
+ *
+ * Archives of more than 4GB or 65535 entries get zip64 records. Deflated entries are followed by a data descriptor,
+ * as their sizes are not known when their header is written.
+ *
+ * @see ResultsBuilder
+ *
+ * @author shill
+ */
+public class ZipArchiveWriter
+{
+	/**
+	 * Uncompressed size of the blocks a deflated entry is cut into.
+	 */
+	public static final int BLOCK_SIZE = 128 * 1024;
+
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+
+	private static final int LOCAL_HEADER = 0x04034b50;
+	private static final int DATA_DESCRIPTOR = 0x08074b50;
+	private static final int CENTRAL_HEADER = 0x02014b50;
+	private static final int ZIP64_END = 0x06064b50;
+	private static final int ZIP64_LOCATOR = 0x07064b50;
+	private static final int END = 0x06054b50;
+
+	private static final int STORED = 0;
+	private static final int DEFLATED = 8;
+
+	private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+	private static final int FLAG_UTF8 = 1 << 11;
+
+	private static final int VERSION = 20;
+	private static final int VERSION_ZIP64 = 45;
+
+	private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+	private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue()
+		{
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+	};
+
+	private final CountingOutputStream out;
+	private final Executor deflateExecutor;
+	private final int maxBlocksInFlight;
+	private final int level;
+	private final int dosTime;
+
+	private final List<Entry> entries = new ArrayList<Entry>();
+	private final Set<String> names = new HashSet<String>();
+	private DeflatedEntryStream openEntry;
+	private boolean finished;
+
+	/**
+	 * @param output			Stream the archive is written to, left open by {@link #finish()}
+	 * @param deflateExecutor	Deflates blocks of deflated entries, null deflates on the writing thread
+	 * @param parallelism		Number of cores blocks are expected to be deflated on
+	 * @param level				Deflate level for deflated entries
+	 */
+	public ZipArchiveWriter(OutputStream output, Executor deflateExecutor, int parallelism, int level)
+	{
+		this.out = new CountingOutputStream(new BufferedOutputStream(output, 64 * 1024));
+		this.deflateExecutor = deflateExecutor;
+		this.maxBlocksInFlight = Math.max(2 * parallelism, 1);
+		this.level = level;
+		this.dosTime = dosTime(System.currentTimeMillis());
+	}
+
+	/**
+	 * Starts a deflated entry. Everything written to the returned stream is compressed into the entry, which ends
+	 * when the stream is closed. Closing the entry stream leaves the archive open.
+	 *
+	 * @throws ZipException		Thrown if the archive already has an entry with this name
+	 */
+	public OutputStream putDeflatedEntry(String name) throws IOException
+	{
+		Entry entry = startEntry(name, DEFLATED, FLAG_DATA_DESCRIPTOR);
+		writeLocalHeader(entry, false);
+		openEntry = new DeflatedEntryStream(entry);
+		return openEntry;
+	}
+
+	/**
+	 * Writes an already compressed image as a stored entry.
+	 *
+	 * @throws ZipException		Thrown if the archive already has an entry with this name
+	 */
+	public void putStoredEntry(String name, ConvertedImage image) throws IOException
+	{
+		Entry entry = startEntry(name, STORED, 0);
+		entry.crc = image.getCrc();
+		entry.compressedSize = image.getLength();
+		entry.size = image.getLength();
+
+		writeLocalHeader(entry, true);
+		image.writeTo(out);
+		entries.add(entry);
+	}
+
+	/**
+	 * Writes an image from the converted image cache as a stored entry, copying it straight from its file.
+	 *
+	 * @throws ZipException		Thrown if the archive already has an entry with this name
+	 */
+	public void putCachedEntry(String name, ConvertedImageCache.CachedImage image) throws IOException
+	{
+		Entry entry = startEntry(name, STORED, 0);
+		entry.crc = image.getCrc();
+		entry.compressedSize = image.getLength();
+		entry.size = image.getLength();
+
+		writeLocalHeader(entry, true);
+		image.transferTo(Channels.newChannel(out));
+		entries.add(entry);
+	}
+
+	/**
+	 * Copies the data entry of a LemnaTec blob into the archive as it is, still deflated if it is deflated in the
+	 * blob, so the raw frame is neither inflated nor recompressed.
+	 *
+	 * @throws ZipException		Thrown if the archive already has an entry with this name
+	 */
+	public void putBlobEntry(String name, TileBlob blob) throws IOException
+	{
+		Entry entry = startEntry(name, blob.getMethod() == TileBlob.DEFLATED ? DEFLATED : STORED, 0);
+		entry.crc = blob.getCrc();
+		entry.compressedSize = blob.getCompressedSize();
+		entry.size = blob.getSize();
+
+		writeLocalHeader(entry, true);
+		blob.transferCompressedTo(Channels.newChannel(out));
+		entries.add(entry);
+	}
+
+	/**
+	 * Pushes what has been written so far to the client.
+	 */
+	public void flush() throws IOException
+	{
+		out.flush();
+	}
+
+	/**
+	 * Writes the central directory. The underlying stream is flushed but left open.
+	 */
+	public void finish() throws IOException
+	{
+		if (finished)
+			return;
+
+		if (openEntry != null)
+			openEntry.close();
+
+		long centralOffset = out.count;
+		for (Entry entry : entries)
+			writeCentralHeader(entry);
+		long centralSize = out.count - centralOffset;
+
+		int count = entries.size();
+		if (count >= ZIP64_MAGIC_COUNT || centralOffset >= ZIP64_MAGIC || centralSize >= ZIP64_MAGIC) {
+			long zip64EndOffset = out.count;
+			writeInt(ZIP64_END);
+			writeLong(44);
+			writeShort(VERSION_ZIP64);
+			writeShort(VERSION_ZIP64);
+			writeInt(0);
+			writeInt(0);
+			writeLong(count);
+			writeLong(count);
+			writeLong(centralSize);
+			writeLong(centralOffset);
+
+			writeInt(ZIP64_LOCATOR);
+			writeInt(0);
+			writeLong(zip64EndOffset);
+			writeInt(1);
+		}
+
+		writeInt(END);
+		writeShort(0);
+		writeShort(0);
+		writeShort(Math.min(count, ZIP64_MAGIC_COUNT));
+		writeShort(Math.min(count, ZIP64_MAGIC_COUNT));
+		writeInt((int) Math.min(centralSize, ZIP64_MAGIC));
+		writeInt((int) Math.min(centralOffset, ZIP64_MAGIC));
+		writeShort(0);
+
+		out.flush();
+		finished = true;
+	}
+
+	/**
+	 * @return		Bytes of the archive written so far
+	 */
+	public long getBytesWritten()
+	{
+		return out.count;
+	}
+
+
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	// Records
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	private Entry startEntry(String name, int method, int flags) throws IOException
+	{
+		if (finished)
+			throw new IOException("The archive is already finished.");
+
+		if (openEntry != null)
+			openEntry.close();
+
+		if ( ! names.add(name))
+			throw new ZipException("duplicate entry: " + name);
+
+		Entry entry = new Entry();
+		entry.name = name.getBytes(UTF8);
+		entry.method = method;
+		entry.flags = flags | FLAG_UTF8;
+		entry.offset = out.count;
+		return entry;
+	}
+
+	private void writeLocalHeader(Entry entry, boolean sizesKnown) throws IOException
+	{
+		boolean zip64 = sizesKnown && entry.size >= ZIP64_MAGIC;
+
+		writeInt(LOCAL_HEADER);
+		writeShort(zip64 ? VERSION_ZIP64 : VERSION);
+		writeShort(entry.flags);
+		writeShort(entry.method);
+		writeInt(dosTime);
+		if (sizesKnown) {
+			writeInt((int) entry.crc);
+			writeInt((int) (zip64 ? ZIP64_MAGIC : entry.compressedSize));
+			writeInt((int) (zip64 ? ZIP64_MAGIC : entry.size));
+		}
+		else {
+			writeInt(0);
+			writeInt(0);
+			writeInt(0);
+		}
+		writeShort(entry.name.length);
+		writeShort(zip64 ? 20 : 0);
+		out.write(entry.name);
+
+		if (zip64) {
+			writeShort(0x0001);
+			writeShort(16);
+			writeLong(entry.size);
+			writeLong(entry.compressedSize);
+		}
+	}
+
+	private void writeDataDescriptor(Entry entry) throws IOException
+	{
+		writeInt(DATA_DESCRIPTOR);
+		writeInt((int) entry.crc);
+		if (entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC) {
+			writeLong(entry.compressedSize);
+			writeLong(entry.size);
+		}
+		else {
+			writeInt((int) entry.compressedSize);
+			writeInt((int) entry.size);
+		}
+	}
+
+	private void writeCentralHeader(Entry entry) throws IOException
+	{
+		boolean zip64Size = entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC;
+		boolean zip64Offset = entry.offset >= ZIP64_MAGIC;
+		int extraLength = (zip64Size ? 16 : 0) + (zip64Offset ? 8 : 0);
+		int version = extraLength > 0 ? VERSION_ZIP64 : VERSION;
+
+		writeInt(CENTRAL_HEADER);
+		writeShort(version);
+		writeShort(version);
+		writeShort(entry.flags);
+		writeShort(entry.method);
+		writeInt(dosTime);
+		writeInt((int) entry.crc);
+		writeInt((int) (zip64Size ? ZIP64_MAGIC : entry.compressedSize));
+		writeInt((int) (zip64Size ? ZIP64_MAGIC : entry.size));
+		writeShort(entry.name.length);
+		writeShort(extraLength > 0 ? extraLength + 4 : 0);
+		writeShort(0);
+		writeShort(0);
+		writeShort(0);
+		writeInt(0);
+		writeInt((int) (zip64Offset ? ZIP64_MAGIC : entry.offset));
+		out.write(entry.name);
+
+		if (extraLength > 0) {
+			writeShort(0x0001);
+			writeShort(extraLength);
+			if (zip64Size) {
+				writeLong(entry.size);
+				writeLong(entry.compressedSize);
+			}
+			if (zip64Offset)
+				writeLong(entry.offset);
+		}
+	}
+
+	private void writeShort(int value) throws IOException
+	{
+		out.write(value & 0xff);
+		out.write((value >>> 8) & 0xff);
+	}
+
+	private void writeInt(int value) throws IOException
+	{
+		writeShort(value & 0xffff);
+		writeShort((value >>> 16) & 0xffff);
+	}
+
+	private void writeLong(long value) throws IOException
+	{
+		writeInt((int) value);
+		writeInt((int) (value >>> 32));
+	}
+
+	private static int dosTime(long millis)
+	{
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(millis);
+		int year = calendar.get(Calendar.YEAR);
+		if (year < 1980)
+			return (1 << 21) | (1 << 16);
+
+		return (year - 1980) << 25
+				| (calendar.get(Calendar.MONTH) + 1) << 21
+				| calendar.get(Calendar.DAY_OF_MONTH) << 16
+				| calendar.get(Calendar.HOUR_OF_DAY) << 11
+				| calendar.get(Calendar.MINUTE) << 5
+				| calendar.get(Calendar.SECOND) >> 1;
+	}
+
+
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	// CRC
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	/**
+	 * CRC32 of two concatenated sequences from the CRC32 of each, ported from zlib's crc32_combine.
+	 *
+	 * @param length2	Length of the second sequence
+	 */
+	static long combineCrc32(long crc1, long crc2, long length2)
+	{
+		if (length2 <= 0)
+			return crc1;
+
+		long[] even = new long[32];
+		long[] odd = new long[32];
+
+		// Operator for one zero bit
+		odd[0] = 0xedb88320L;
+		long row = 1;
+		for (int n = 1; n < 32; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+
+		// Operators for two and four zero bits
+		gf2MatrixSquare(even, odd);
+		gf2MatrixSquare(odd, even);
+
+		// Apply length2 zero bytes to crc1, squaring the operator for each bit of length2
+		do {
+			gf2MatrixSquare(even, odd);
+			if ((length2 & 1) != 0)
+				crc1 = gf2MatrixTimes(even, crc1);
+			length2 >>= 1;
+			if (length2 == 0)
+				break;
+
+			gf2MatrixSquare(odd, even);
+			if ((length2 & 1) != 0)
+				crc1 = gf2MatrixTimes(odd, crc1);
+			length2 >>= 1;
+		}
+		while (length2 != 0);
+
+		return crc1 ^ crc2;
+	}
+
+	private static long gf2MatrixTimes(long[] matrix, long vector)
+	{
+		long sum = 0;
+		for (int i = 0; vector != 0; i++, vector >>>= 1)
+			if ((vector & 1) != 0)
+				sum ^= matrix[i];
+		return sum;
+	}
+
+	private static void gf2MatrixSquare(long[] square, long[] matrix)
+	{
+		for (int n = 0; n < 32; n++)
+			square[n] = gf2MatrixTimes(matrix, matrix[n]);
+	}
+
+
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	// Classes
+	// ////////////////////////////////////////////////
+	// ////////////////////////////////////////////////
+	/**
+	 * What the central directory needs to know about an entry.
+	 */
+	private static class Entry
+	{
+		byte[] name;
+		int method;
+		int flags;
+		long offset;
+		long crc;
+		long compressedSize;
+		long size;
+	}
+
+	/**
+	 * Cuts what is written into blocks, has them deflated and writes them to the archive in order.
+	 */
+	private class DeflatedEntryStream extends OutputStream
+	{
+		private final Entry entry;
+		private final LinkedList<FutureTask<DeflatedBlock>> inFlight = new LinkedList<FutureTask<DeflatedBlock>>();
+
+		private byte[] block = new byte[BLOCK_SIZE];
+		private int count;
+		private byte[] previous;
+		private int previousCount;
+		private boolean closed;
+
+		DeflatedEntryStream(Entry entry)
+		{
+			this.entry = entry;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			if (count == block.length)
+				submitBlock(false);
+			block[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException
+		{
+			while (length > 0) {
+				if (count == block.length)
+					submitBlock(false);
+
+				int copied = Math.min(length, block.length - count);
+				System.arraycopy(bytes, offset, block, count, copied);
+				count += copied;
+				offset += copied;
+				length -= copied;
+			}
+		}
+
+		/**
+		 * Writes out the blocks written so far. The last block stays open until more is written or the entry is closed.
+		 */
+		@Override
+		public void flush() throws IOException
+		{
+			while ( ! inFlight.isEmpty())
+				writeBlock(inFlight.removeFirst());
+			out.flush();
+		}
+
+		/**
+		 * Ends the entry. The archive stays open.
+		 */
+		@Override
+		public void close() throws IOException
+		{
+			if (closed)
+				return;
+
+			closed = true;
+			openEntry = null;
+
+			submitBlock(true);
+			while ( ! inFlight.isEmpty())
+				writeBlock(inFlight.removeFirst());
+
+			writeDataDescriptor(entry);
+			entries.add(entry);
+		}
+
+		private void submitBlock(boolean last) throws IOException
+		{
+			if (closed && ! last)
+				throw new IOException("The entry is closed.");
+
+			FutureTask<DeflatedBlock> task = new FutureTask<DeflatedBlock>(
+					new BlockDeflation(block, count, previous, previousCount, level, last));
+			inFlight.add(task);
+			if (deflateExecutor == null)
+				task.run();
+			else
+				deflateExecutor.execute(task);
+
+			previous = block;
+			previousCount = count;
+			block = new byte[BLOCK_SIZE];
+			count = 0;
+
+			while (inFlight.size() > maxBlocksInFlight)
+				writeBlock(inFlight.removeFirst());
+		}
+
+		private void writeBlock(FutureTask<DeflatedBlock> task) throws IOException
+		{
+			DeflatedBlock deflated;
+			try {
+				deflated = task.get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a block to deflate.");
+			}
+			catch (ExecutionException e) {
+				throw new IOException("Block deflation failed.", e.getCause());
+			}
+
+			out.write(deflated.compressed, 0, deflated.compressed.length);
+			entry.crc = combineCrc32(entry.crc, deflated.crc, deflated.length);
+			entry.compressedSize += deflated.compressed.length;
+			entry.size += deflated.length;
+		}
+	}
+
+	/**
+	 * Deflates one block, primed with the end of the block before it.
+	 */
+	private static class BlockDeflation implements Callable<DeflatedBlock>
+	{
+		private final byte[] block;
+		private final int length;
+		private final byte[] previous;
+		private final int previousLength;
+		private final int level;
+		private final boolean last;
+
+		BlockDeflation(byte[] block, int length, byte[] previous, int previousLength, int level, boolean last)
+		{
+			this.block = block;
+			this.length = length;
+			this.previous = previous;
+			this.previousLength = previousLength;
+			this.level = level;
+			this.last = last;
+		}
+
+		@Override
+		public DeflatedBlock call()
+		{
+			CRC32 crc = new CRC32();
+			crc.update(block, 0, length);
+
+			Deflater deflater = deflaters.get();
+			deflater.reset();
+			deflater.setLevel(level);
+			if (previous != null) {
+				int dictionaryLength = Math.min(previousLength, DICTIONARY_SIZE);
+				deflater.setDictionary(previous, previousLength - dictionaryLength, dictionaryLength);
+			}
+			deflater.setInput(block, 0, length);
+
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(length / 2, 64));
+			byte[] buffer = new byte[16 * 1024];
+			if (last) {
+				deflater.finish();
+				while ( ! deflater.finished()) {
+					int written = deflater.deflate(buffer);
+					compressed.write(buffer, 0, written);
+				}
+			}
+			else {
+				int written;
+				do {
+					written = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+					compressed.write(buffer, 0, written);
+				}
+				while (written == buffer.length || ! deflater.needsInput());
+			}
+
+			return new DeflatedBlock(compressed.toByteArray(), crc.getValue(), length);
+		}
+	}
+
+	private static class DeflatedBlock
+	{
+		final byte[] compressed;
+		final long crc;
+		final int length;
+
+		DeflatedBlock(byte[] compressed, long crc, int length)
+		{
+			this.compressed = compressed;
+			this.crc = crc;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Keeps track of the archive offset for the zip records.
+	 */
+	private static class CountingOutputStream extends OutputStream
+	{
+		private final OutputStream out;
+		long count;
+
+		CountingOutputStream(OutputStream out)
+		{
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException
+		{
+			out.write(bytes, offset, length);
+			count += length;
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			out.flush();
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package src.ddpsc.utility;
+
+/**
+ * Looks values up by an int ID, such as snapshots and tiles by their database ID.
+ *
+ * Keys are kept as primitives in an open addressed table, so building an index of every result of a query costs no
+ * boxing and one array of keys and one of values, and each lookup is a hash and usually a single probe. Meant to be
+ * built once per query and then read, it has no removal.
+ *
+ * @author shill
+ */
+public class IntIndex<T>
+{
+	// Golden ratio, the top bits of an ID times this spread sequential IDs over the whole table
+	private static final int MIX = 0x9E3779B9;
+
+	private int[] keys;
+	private Object[] values;
+	private int mask;
+	private int shift;
+	private int size;
+
+	/**
+	 * @param expectedSize		Number of values the index is expected to hold, it grows past this if needed
+	 */
+	public IntIndex(int expectedSize)
+	{
+		allocate(capacityFor(expectedSize));
+	}
+
+	/**
+	 * Indexes the value under the key, replacing any value already indexed under it.
+	 *
+	 * @param value		The value, not null
+	 */
+	public void put(int key, T value)
+	{
+		if (value == null)
+			throw new IllegalArgumentException("Null values cannot be indexed.");
+
+		if ((size + 1) * 2 > keys.length)
+			grow();
+
+		int slot = slot(key);
+		if (values[slot] == null)
+			size++;
+		keys[slot] = key;
+		values[slot] = value;
+	}
+
+	/**
+	 * @return		The value indexed under the key, or null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(int key)
+	{
+		return (T) values[slot(key)];
+	}
+
+	public boolean containsKey(int key)
+	{
+		return values[slot(key)] != null;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	// The key's slot, or the empty slot it would go in. The table is never more than half full, so one exists
+	private int slot(int key)
+	{
+		int slot = (key * MIX) >>> shift;
+		while (values[slot] != null && keys[slot] != key)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	private void grow()
+	{
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(keys.length * 2);
+
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != null) {
+				int slot = slot(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private void allocate(int capacity)
+	{
+		keys = new int[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		shift = 32 - Integer.numberOfTrailingZeros(capacity);
+	}
+
+	// Smallest power of two at least twice the expected size
+	private static int capacityFor(int expectedSize)
+	{
+		int capacity = 16;
+		while (capacity < expectedSize * 2L)
+			capacity <<= 1;
+		return capacity;
+	}
+}
@@ -32,6 +32,22 @@ public class StringOps
 		return idsAsCSV(ids, true);
 	}
 	
+	/**
+	 * A parameter placeholder for each value to be bound, separated by commas, for use in an IN clause.
+	 */
+	public static String placeholders(int count)
+	{
+		StringBuilder placeholders = new StringBuilder();
+		
+		for (int i = 0; i < count; i++) {
+			if (i != 0)
+				placeholders.append(", ");
+			placeholders.append("?");
+		}
+		
+		return placeholders.toString();
+	}
+	
 	public static List<Integer> CSVAsIds(String csv)
 	{
 		if (csv == null || csv.equals(""))
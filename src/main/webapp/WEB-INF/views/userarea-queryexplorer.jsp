@@ -100,8 +100,26 @@ $(function () {
     $('#fileupload').fileupload({
         dataType: 'json',
         done: function (e, data) {
-            $.each(data.result.files, function (index, file) {
-                $('<p/>').text(file.name).appendTo(document.body);
+            $('<p/>').text(data.result.applied + ' of ' + data.result.changes + ' metadata changes applied.').appendTo('#collapseMassModify');
+            $.each(data.result.unapplied, function (index, change) {
+                $('<p/>').text('Line ' + change.line + ', ' + change.type + '#' + change.id + ': ' + change.result).appendTo('#collapseMassModify');
+            });
+        },
+        fail: function (e, data) {
+            var report;
+            try {
+                report = $.parseJSON(data.jqXHR.responseText);
+            }
+            catch (error) {
+                report = null;
+            }
+            if ( ! report || ! report.errors) {
+                $('<p/>').text(data.jqXHR.responseText).appendTo('#collapseMassModify');
+                return;
+            }
+            $('<p/>').text('No metadata was changed, the file has ' + report.errorCount + ' errors.').appendTo('#collapseMassModify');
+            $.each(report.errors, function (index, error) {
+                $('<p/>').text(error).appendTo('#collapseMassModify');
             });
         }
     });
@@ -0,0 +1,176 @@
+package com.ddpsc.phenofront;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import src.ddpsc.results.Bayer2Rgb;
+import src.ddpsc.results.DemosaicAlgorithm;
+
+/**
+ * Tests for the bayer demosaic kernel.
+ */
+public class Bayer2RgbTest
+{
+	private static final int WIDTH = 301;
+	private static final int HEIGHT = 517;
+	
+	private static final int RED = 200;
+	private static final int GREEN = 100;
+	private static final int BLUE = 50;
+	
+	/**
+	 * A flat coloured scene sampled through a BGGR filter must interpolate back to that colour everywhere
+	 * except the black border.
+	 */
+	@Test
+	public void flatColourTest() throws IOException
+	{
+		byte[] bayer = flatBayer(WIDTH, HEIGHT);
+		BufferedImage image = Bayer2Rgb.convertRawImage(new ByteArrayInputStream(bayer), WIDTH, HEIGHT);
+		
+		Assert.assertEquals(BufferedImage.TYPE_3BYTE_BGR, image.getType());
+		assertFlat(image, true);
+	}
+	
+	/**
+	 * The edge-aware kernels must also reproduce a flat colour, including in the bilinear second ring.
+	 */
+	@Test
+	public void edgeAwareFlatColourTest() throws IOException
+	{
+		byte[] bayer = flatBayer(WIDTH, HEIGHT);
+		BufferedImage image = Bayer2Rgb.demosaic(
+				new ByteArrayInputStream(bayer), WIDTH, HEIGHT, DemosaicAlgorithm.EDGE_AWARE, null, 1);
+		
+		assertFlat(image, true);
+	}
+	
+	/**
+	 * Binning produces half the width and height and has no border.
+	 */
+	@Test
+	public void halfResolutionTest() throws IOException
+	{
+		byte[] bayer = flatBayer(WIDTH, HEIGHT);
+		BufferedImage image = Bayer2Rgb.demosaic(
+				new ByteArrayInputStream(bayer), WIDTH, HEIGHT, DemosaicAlgorithm.HALF_RESOLUTION, null, 1);
+		
+		Assert.assertEquals(WIDTH / 2, image.getWidth());
+		Assert.assertEquals(HEIGHT / 2, image.getHeight());
+		assertFlat(image, false);
+	}
+	
+	/**
+	 * Splitting a frame into bands must give exactly the same image as interpolating it on one thread.
+	 */
+	@Test
+	public void bandsMatchSingleThreadTest() throws IOException
+	{
+		byte[] bayer = new byte[WIDTH * HEIGHT];
+		new Random(7).nextBytes(bayer);
+		
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			for (DemosaicAlgorithm algorithm : DemosaicAlgorithm.values()) {
+				int width = algorithm == DemosaicAlgorithm.HALF_RESOLUTION ? WIDTH / 2 : WIDTH;
+				int height = algorithm == DemosaicAlgorithm.HALF_RESOLUTION ? HEIGHT / 2 : HEIGHT;
+				BufferedImage single = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+				BufferedImage banded = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+				
+				Bayer2Rgb.demosaic(bayer, WIDTH, HEIGHT, single, algorithm, null, 1);
+				Bayer2Rgb.demosaic(bayer, WIDTH, HEIGHT, banded, algorithm, executor, 4);
+				
+				Assert.assertTrue(algorithm.getName(), Arrays.equals(pixels(single), pixels(banded)));
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * Frames in direct buffers (as mapped blobs are) and in heap buffers demosaic like frames read from a stream.
+	 */
+	@Test
+	public void byteBufferTest() throws IOException
+	{
+		byte[] bayer = new byte[WIDTH * HEIGHT];
+		new Random(11).nextBytes(bayer);
+		
+		byte[] expected = pixels(Bayer2Rgb.convertRawImage(new ByteArrayInputStream(bayer), WIDTH, HEIGHT)).clone();
+		
+		ByteBuffer direct = ByteBuffer.allocateDirect(bayer.length);
+		direct.put(bayer).flip();
+		byte[] fromDirect = pixels(Bayer2Rgb.demosaic(direct, WIDTH, HEIGHT, DemosaicAlgorithm.BILINEAR, null, 1)).clone();
+		Assert.assertTrue(Arrays.equals(expected, fromDirect));
+		Assert.assertEquals(0, direct.position());
+		
+		byte[] fromHeap = pixels(Bayer2Rgb.demosaic(ByteBuffer.wrap(bayer), WIDTH, HEIGHT, DemosaicAlgorithm.BILINEAR, null, 1));
+		Assert.assertTrue(Arrays.equals(expected, fromHeap));
+	}
+	
+	/**
+	 * Algorithms are chosen by their request name or constant name.
+	 */
+	@Test
+	public void algorithmFromStringTest()
+	{
+		Assert.assertEquals(DemosaicAlgorithm.BILINEAR, DemosaicAlgorithm.fromString("bilinear"));
+		Assert.assertEquals(DemosaicAlgorithm.EDGE_AWARE, DemosaicAlgorithm.fromString("edge-aware"));
+		Assert.assertEquals(DemosaicAlgorithm.HALF_RESOLUTION, DemosaicAlgorithm.fromString("HALF_RESOLUTION"));
+	}
+	
+	/**
+	 * A raw image shorter than its dimensions is an error rather than a partly stale image.
+	 */
+	@Test(expected = IOException.class)
+	public void truncatedRawImageTest() throws IOException
+	{
+		Bayer2Rgb.convertRawImage(new ByteArrayInputStream(new byte[WIDTH * HEIGHT - 1]), WIDTH, HEIGHT);
+	}
+	
+	private static byte[] flatBayer(int width, int height)
+	{
+		byte[] bayer = new byte[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int value;
+				if ((y & 1) == 0)
+					value = (x & 1) == 0 ? BLUE : GREEN;
+				else
+					value = (x & 1) == 0 ? GREEN : RED;
+				bayer[y * width + x] = (byte) value;
+			}
+		}
+		return bayer;
+	}
+	
+	private static void assertFlat(BufferedImage image, boolean blackBorder)
+	{
+		int width = image.getWidth();
+		int height = image.getHeight();
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				boolean border = blackBorder && (x == 0 || y == 0 || x == width - 1 || y == height - 1);
+				int expected = border ? 0 : (RED << 16 | GREEN << 8 | BLUE);
+				Assert.assertEquals("Pixel " + x + "," + y, expected, image.getRGB(x, y) & 0xffffff);
+			}
+		}
+	}
+	
+	private static byte[] pixels(BufferedImage image)
+	{
+		return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+	}
+}
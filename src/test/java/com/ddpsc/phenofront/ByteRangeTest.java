@@ -0,0 +1,52 @@
+package com.ddpsc.phenofront;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Exercises Range header parsing for resumed downloads.
+ */
+public class ByteRangeTest
+{
+	/**
+	 * Open, closed and suffix ranges, with ends past the file clamped to it.
+	 */
+	@Test
+	public void parseTest()
+	{
+		assertRange(ByteRange.parse("bytes=100-", 1000), 100, 999);
+		assertRange(ByteRange.parse("bytes=0-99", 1000), 0, 99);
+		assertRange(ByteRange.parse("bytes=900-5000", 1000), 900, 999);
+		assertRange(ByteRange.parse("bytes=-200", 1000), 800, 999);
+		assertRange(ByteRange.parse("bytes=-5000", 1000), 0, 999);
+		
+		Assert.assertEquals(100, ByteRange.parse("bytes=100-199", 1000).size());
+		Assert.assertEquals("bytes 100-199/1000", ByteRange.parse("bytes=100-199", 1000).contentRange());
+	}
+	
+	/**
+	 * Headers that cannot be served as a single range are ignored, and ranges past the end are unsatisfiable.
+	 */
+	@Test
+	public void invalidTest()
+	{
+		Assert.assertNull(ByteRange.parse(null, 1000));
+		Assert.assertNull(ByteRange.parse("items=0-1", 1000));
+		Assert.assertNull(ByteRange.parse("bytes=0-1,5-6", 1000));
+		Assert.assertNull(ByteRange.parse("bytes=a-b", 1000));
+		Assert.assertNull(ByteRange.parse("bytes=50-10", 1000));
+		
+		ByteRange pastEnd = ByteRange.parse("bytes=1000-", 1000);
+		Assert.assertFalse(pastEnd.isSatisfiable());
+		Assert.assertEquals("bytes */1000", pastEnd.contentRange());
+		Assert.assertFalse(ByteRange.parse("bytes=-0", 1000).isSatisfiable());
+	}
+	
+	private static void assertRange(ByteRange range, long start, long end)
+	{
+		Assert.assertTrue(range.isSatisfiable());
+		Assert.assertEquals(start, range.start);
+		Assert.assertEquals(end, range.end);
+	}
+}
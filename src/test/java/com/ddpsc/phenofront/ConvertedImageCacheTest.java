@@ -0,0 +1,155 @@
+package com.ddpsc.phenofront;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import src.ddpsc.database.experiment.Experiment;
+import src.ddpsc.database.tile.Tile;
+import src.ddpsc.results.ConvertedImage;
+import src.ddpsc.results.ConvertedImageCache;
+import src.ddpsc.results.DemosaicAlgorithm;
+import src.ddpsc.results.ImageEncoding;
+import src.ddpsc.results.PngFilter;
+
+/**
+ * Exercises the converted image cache in a temporary directory.
+ */
+public class ConvertedImageCacheTest
+{
+	/**
+	 * Images read back as they were put, and are found again after the cache is reopened.
+	 */
+	@Test
+	public void putOpenTest() throws IOException
+	{
+		File directory = temporaryDirectory();
+		try {
+			ConvertedImageCache cache = new ConvertedImageCache(directory.getPath(), 1024 * 1024);
+			byte[] bytes = bytes(1000, 7);
+			ConvertedImage image = image(bytes);
+			
+			Assert.assertNull(cache.open("a"));
+			cache.put("a", image);
+			assertCached(cache, "a", bytes, image.getCrc());
+			
+			ConvertedImageCache reopened = new ConvertedImageCache(directory.getPath(), 1024 * 1024);
+			Assert.assertEquals(1, reopened.getImageCount());
+			Assert.assertEquals(bytes.length, reopened.getTotalBytes());
+			assertCached(reopened, "a", bytes, image.getCrc());
+		}
+		finally {
+			delete(directory);
+		}
+	}
+	
+	/**
+	 * The least recently opened image is evicted first once the cache is over its size.
+	 */
+	@Test
+	public void evictionTest() throws IOException
+	{
+		File directory = temporaryDirectory();
+		try {
+			ConvertedImageCache cache = new ConvertedImageCache(directory.getPath(), 2500);
+			cache.put("a", image(bytes(1000, 1)));
+			cache.put("b", image(bytes(1000, 2)));
+			cache.open("a").close();
+			cache.put("c", image(bytes(1000, 3)));
+			
+			Assert.assertEquals(2, cache.getImageCount());
+			Assert.assertEquals(2000, cache.getTotalBytes());
+			Assert.assertNull(cache.open("b"));
+			Assert.assertNotNull(cache.open("a"));
+			Assert.assertNotNull(cache.open("c"));
+			
+			ConvertedImageCache smaller = new ConvertedImageCache(directory.getPath(), 1500);
+			Assert.assertEquals(1, smaller.getImageCount());
+		}
+		finally {
+			delete(directory);
+		}
+	}
+	
+	/**
+	 * Every setting that changes the converted bytes changes the key, and demosaicing only matters for visible tiles.
+	 */
+	@Test
+	public void keyTest()
+	{
+		Experiment experiment = new Experiment(1, "LemnaTest");
+		Tile visible = new Tile(1, 1, "VIS SV 0", 129330, 0, 2454, 2056, 1, 0, 0);
+		Tile infrared = new Tile(1, 2, "NIR SV 0", 129331, 0, 320, 254, 0, 0, 0);
+		
+		ImageEncoding png = ImageEncoding.defaults(false);
+		ImageEncoding fastPng = new ImageEncoding(false, 0.75f, 1, PngFilter.SUB);
+		ImageEncoding jpeg = ImageEncoding.defaults(true);
+		ImageEncoding betterJpeg = new ImageEncoding(true, 0.9f, -1, PngFilter.AUTO);
+		
+		String key = ConvertedImageCache.key(experiment, visible, png, DemosaicAlgorithm.BILINEAR);
+		Assert.assertFalse(key.equals(ConvertedImageCache.key(experiment, visible, fastPng, DemosaicAlgorithm.BILINEAR)));
+		Assert.assertFalse(key.equals(ConvertedImageCache.key(experiment, visible, png, DemosaicAlgorithm.EDGE_AWARE)));
+		Assert.assertFalse(key.equals(ConvertedImageCache.key(new Experiment(2, "Other"), visible, png, DemosaicAlgorithm.BILINEAR)));
+		Assert.assertFalse(ConvertedImageCache.key(experiment, visible, jpeg, DemosaicAlgorithm.BILINEAR)
+				.equals(ConvertedImageCache.key(experiment, visible, betterJpeg, DemosaicAlgorithm.BILINEAR)));
+		
+		Assert.assertEquals(
+				ConvertedImageCache.key(experiment, infrared, png, DemosaicAlgorithm.BILINEAR),
+				ConvertedImageCache.key(experiment, infrared, png, DemosaicAlgorithm.EDGE_AWARE));
+	}
+	
+	private static void assertCached(ConvertedImageCache cache, String key, byte[] bytes, long crc) throws IOException
+	{
+		ConvertedImageCache.CachedImage cached = cache.open(key);
+		Assert.assertNotNull(cached);
+		try {
+			Assert.assertEquals(bytes.length, cached.getLength());
+			Assert.assertEquals(crc, cached.getCrc());
+			
+			ByteArrayOutputStream read = new ByteArrayOutputStream();
+			cached.transferTo(Channels.newChannel(read));
+			Assert.assertTrue(Arrays.equals(bytes, read.toByteArray()));
+		}
+		finally {
+			cached.close();
+		}
+	}
+	
+	private static ConvertedImage image(byte[] bytes) throws IOException
+	{
+		ConvertedImage.Output output = new ConvertedImage.Output();
+		output.write(bytes);
+		return output.toConvertedImage();
+	}
+	
+	private static byte[] bytes(int length, int seed)
+	{
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++)
+			bytes[i] = (byte) (i * seed);
+		return bytes;
+	}
+	
+	private static File temporaryDirectory() throws IOException
+	{
+		File directory = File.createTempFile("ConvertedImageCacheTest", "");
+		directory.delete();
+		directory.mkdirs();
+		return directory;
+	}
+	
+	private static void delete(File file)
+	{
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+		file.delete();
+	}
+}
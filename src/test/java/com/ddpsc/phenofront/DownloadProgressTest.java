@@ -0,0 +1,78 @@
+package com.ddpsc.phenofront;
+
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import src.ddpsc.results.DownloadProgress;
+
+/**
+ * Exercises download progress reporting.
+ */
+public class DownloadProgressTest
+{
+	/**
+	 * Counts add up, and a download waiting mostly on conversion is reported as conversion bound.
+	 */
+	@Test
+	public void statusTest()
+	{
+		DownloadProgress progress = new DownloadProgress("key", "user");
+		Assert.assertEquals("waiting", progress.toStatus().get("state"));
+		
+		progress.started(2, 4);
+		progress.tileWritten(1000, 3000000, 1000000);
+		progress.tileWritten(2000, 3000000, 1000000);
+		progress.tileSkipped();
+		progress.snapshotWritten(2500);
+		
+		Map<String, Object> status = progress.toStatus();
+		Assert.assertEquals("running", status.get("state"));
+		Assert.assertEquals(1, status.get("snapshotsWritten"));
+		Assert.assertEquals(2, status.get("tilesWritten"));
+		Assert.assertEquals(1, status.get("tilesSkipped"));
+		Assert.assertEquals(2500L, status.get("bytesWritten"));
+		Assert.assertEquals("conversion", status.get("boundBy"));
+		Assert.assertTrue(status.containsKey("etaSeconds"));
+		
+		progress.finished(false, 2600);
+		status = progress.toStatus();
+		Assert.assertEquals("interrupted", status.get("state"));
+		Assert.assertFalse(status.containsKey("etaSeconds"));
+	}
+	
+	/**
+	 * A poller waiting on the current version is woken by the next update.
+	 */
+	@Test
+	public void awaitChangeTest() throws InterruptedException
+	{
+		final DownloadProgress progress = new DownloadProgress("key", "user");
+		progress.started(1, 1);
+		long version = progress.getVersion();
+		
+		Assert.assertEquals(version, progress.awaitChange(version, 10));
+		
+		Thread writer = new Thread() {
+			@Override
+			public void run()
+			{
+				try {
+					Thread.sleep(50);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				progress.tileWritten(100, 0, 0);
+			}
+		};
+		writer.start();
+		
+		long started = System.currentTimeMillis();
+		Assert.assertTrue(progress.awaitChange(version, 10000) > version);
+		Assert.assertTrue(System.currentTimeMillis() - started < 5000);
+		writer.join();
+	}
+}
@@ -0,0 +1,62 @@
+package com.ddpsc.phenofront;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import src.ddpsc.utility.IntIndex;
+
+/**
+ * Exercises the int keyed index used to attach tiles and tags to snapshots.
+ */
+public class IntIndexTest
+{
+	/**
+	 * Values come back under their keys, including zero and negative keys, and missing keys give null.
+	 */
+	@Test
+	public void putGetTest()
+	{
+		IntIndex<String> index = new IntIndex<String>(4);
+		index.put(0, "zero");
+		index.put(-7, "minus seven");
+		index.put(42, "forty two");
+		
+		Assert.assertEquals("zero", index.get(0));
+		Assert.assertEquals("minus seven", index.get(-7));
+		Assert.assertEquals("forty two", index.get(42));
+		Assert.assertNull(index.get(43));
+		Assert.assertFalse(index.containsKey(1));
+		Assert.assertEquals(3, index.size());
+		
+		index.put(42, "replaced");
+		Assert.assertEquals("replaced", index.get(42));
+		Assert.assertEquals(3, index.size());
+	}
+	
+	/**
+	 * Growing past the expected size keeps every value, for sequential IDs and for IDs sharing their low bits.
+	 */
+	@Test
+	public void growTest()
+	{
+		IntIndex<Integer> index = new IntIndex<Integer>(0);
+		for (int i = 0; i < 100000; i++) {
+			index.put(i, i);
+			index.put(-(i << 12) - 1, -i);
+		}
+		
+		Assert.assertEquals(200000, index.size());
+		for (int i = 0; i < 100000; i++) {
+			Assert.assertEquals(Integer.valueOf(i), index.get(i));
+			Assert.assertEquals(Integer.valueOf(-i), index.get(-(i << 12) - 1));
+		}
+		Assert.assertNull(index.get(100000));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void nullValueTest()
+	{
+		new IntIndex<String>(1).put(1, null);
+	}
+}
@@ -0,0 +1,83 @@
+package com.ddpsc.phenofront;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import src.ddpsc.database.tagging.MetadataChange;
+import src.ddpsc.database.tagging.MetadataFileReader;
+
+/**
+ * Exercises reading metadata change files a batch at a time.
+ */
+public class MetadataFileReaderTest
+{
+	/**
+	 * Changes come back in batches of at most the batch size, with the lines they were on, and then an empty batch.
+	 */
+	@Test
+	public void batchTest() throws IOException
+	{
+		MetadataFileReader file = reader(
+				"# Comment",
+				"EXPERIMENT_NAME	Experiment",
+				"",
+				"snapshot#1	New tag",
+				"tile#2",
+				"query#3	A comment with spaces");
+
+		List<MetadataChange> first = file.nextBatch();
+		Assert.assertEquals(2, first.size());
+		Assert.assertEquals(4, first.get(0).line);
+		Assert.assertEquals("New tag", first.get(0).metadata);
+		Assert.assertTrue(first.get(1).isRemoval());
+		Assert.assertEquals("Experiment", file.getExperiment());
+
+		List<MetadataChange> second = file.nextBatch();
+		Assert.assertEquals(1, second.size());
+		Assert.assertEquals(MetadataChange.QUERY, second.get(0).type);
+		Assert.assertEquals(3, second.get(0).id);
+		Assert.assertEquals("A comment with spaces", second.get(0).metadata);
+
+		Assert.assertEquals(0, file.nextBatch().size());
+		Assert.assertEquals(3, file.getChangesRead());
+		Assert.assertEquals(0, file.getErrorCount());
+	}
+
+	/**
+	 * Bad lines are reported with their line number, and the lines after them are still read.
+	 */
+	@Test
+	public void errorTest() throws IOException
+	{
+		MetadataFileReader file = reader(
+				"snapshot#1	Before the experiment",
+				"EXPERIMENT_NAME	Experiment",
+				"snapshots#2	Misspelled",
+				"EXPERIMENT_NAME	Another",
+				"tile#3	Fine");
+
+		List<MetadataChange> batch = file.nextBatch();
+		Assert.assertEquals(1, batch.size());
+		Assert.assertEquals(5, batch.get(0).line);
+
+		Assert.assertEquals(3, file.getErrorCount());
+		Assert.assertTrue(file.getErrors().get(0).startsWith("Line 1: "));
+		Assert.assertTrue(file.getErrors().get(1).startsWith("Line 3: "));
+		Assert.assertTrue(file.getErrors().get(2).startsWith("Line 4: "));
+	}
+
+	private static MetadataFileReader reader(String... lines)
+	{
+		StringBuilder file = new StringBuilder();
+		for (String line : lines)
+			file.append(line).append("\n");
+
+		return new MetadataFileReader(new BufferedReader(new StringReader(file.toString())), 2);
+	}
+}
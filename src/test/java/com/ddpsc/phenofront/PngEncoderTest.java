@@ -0,0 +1,99 @@
+package com.ddpsc.phenofront;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import src.ddpsc.results.PngEncoder;
+import src.ddpsc.results.PngFilter;
+
+/**
+ * Round trips images through the png encoder and the ImageIO png reader.
+ */
+public class PngEncoderTest
+{
+	private static final int WIDTH = 211;
+	private static final int HEIGHT = 300;
+	
+	/**
+	 * Every filter and level decodes back to the same pixels, on one thread and split into blocks.
+	 */
+	@Test
+	public void roundTripTest() throws IOException
+	{
+		BufferedImage[] images = {
+				randomImage(BufferedImage.TYPE_3BYTE_BGR),
+				randomImage(BufferedImage.TYPE_BYTE_GRAY),
+				randomImage(BufferedImage.TYPE_USHORT_GRAY) };
+		
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			for (BufferedImage image : images) {
+				Assert.assertTrue(PngEncoder.canEncode(image));
+				for (PngFilter filter : PngFilter.values()) {
+					for (int level = -1; level <= 9; level += 2) {
+						assertRoundTrip(image, level, filter, null, 1);
+						assertRoundTrip(image, level, filter, executor, 4);
+					}
+				}
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * Image types the encoder does not handle are left to ImageIO.
+	 */
+	@Test
+	public void unsupportedTypeTest()
+	{
+		Assert.assertFalse(PngEncoder.canEncode(new BufferedImage(4, 4, BufferedImage.TYPE_INT_ARGB)));
+	}
+	
+	private static void assertRoundTrip(BufferedImage image, int level, PngFilter filter, ExecutorService executor, int blocks)
+			throws IOException
+	{
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		PngEncoder.write(image, level, filter, executor, blocks, output);
+		
+		BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(output.toByteArray()));
+		String message = "type " + image.getType() + ", level " + level + ", " + filter.getName() + ", " + blocks + " blocks";
+		Assert.assertNotNull(message, decoded);
+		Assert.assertEquals(message, image.getWidth(), decoded.getWidth());
+		Assert.assertEquals(message, image.getHeight(), decoded.getHeight());
+		
+		for (int y = 0; y < image.getHeight(); y++)
+			for (int x = 0; x < image.getWidth(); x++)
+				for (int band = 0; band < image.getRaster().getNumBands(); band++)
+					Assert.assertEquals(message, image.getRaster().getSample(x, y, band), decoded.getRaster().getSample(x, y, band));
+	}
+	
+	/**
+	 * Smooth gradients with noise, so the filters have something to work with.
+	 */
+	private static BufferedImage randomImage(int type)
+	{
+		BufferedImage image = new BufferedImage(WIDTH, HEIGHT, type);
+		Random random = new Random(type);
+		int max = type == BufferedImage.TYPE_USHORT_GRAY ? 65535 : 255;
+		
+		for (int y = 0; y < HEIGHT; y++)
+			for (int x = 0; x < WIDTH; x++)
+				for (int band = 0; band < image.getRaster().getNumBands(); band++)
+					image.getRaster().setSample(x, y, band, Math.min(max, (x * 7 + y * 3 + band * 50) * max / 2000 + random.nextInt(8)));
+		
+		return image;
+	}
+}
@@ -0,0 +1,167 @@
+package com.ddpsc.phenofront;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import src.ddpsc.database.queries.Query;
+import src.ddpsc.database.snapshot.Snapshot;
+import src.ddpsc.database.snapshot.SnapshotDaoImpl;
+import src.ddpsc.database.snapshot.SnapshotTileExtractor;
+
+/**
+ * Exercises grouping the rows of a stand-in result set for the joined snapshot and tile query into snapshots.
+ */
+public class SnapshotTileExtractorTest
+{
+	private static final String TILE = SnapshotTileExtractor.TILE_PREFIX;
+
+	/**
+	 * Consecutive rows of a snapshot become its tiles, and a snapshot whose only row has no tile has none.
+	 */
+	@Test
+	public void groupTest() throws SQLException
+	{
+		List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+		rows.add(row(1, 10, 1));
+		rows.add(row(1, 11, 6));
+		rows.add(row(2, null, null));
+		rows.add(row(3, 30, 0));
+
+		List<Snapshot> snapshots = new SnapshotTileExtractor("experiment").extractData(resultSet(rows));
+
+		Assert.assertEquals(3, snapshots.size());
+		Assert.assertEquals(1, snapshots.get(0).id);
+		Assert.assertEquals(2, snapshots.get(0).getTiles().size());
+		Assert.assertEquals(11, snapshots.get(0).getTiles().get(1).id);
+		Assert.assertEquals(6, snapshots.get(0).getTiles().get(1).dataFormat);
+		Assert.assertEquals(0, snapshots.get(1).getTiles().size());
+		Assert.assertEquals(1, snapshots.get(2).getTiles().size());
+		Assert.assertEquals(3, snapshots.get(2).getTiles().get(0).parentSnapshotId);
+		Assert.assertEquals("experiment", snapshots.get(2).experiment);
+	}
+
+	/**
+	 * No rows, no snapshots.
+	 */
+	@Test
+	public void emptyTest() throws SQLException
+	{
+		List<Snapshot> snapshots = new SnapshotTileExtractor("experiment")
+				.extractData(resultSet(new ArrayList<Map<String, Object>>()));
+
+		Assert.assertEquals(0, snapshots.size());
+	}
+
+	/**
+	 * The joined statement's data formats are bound as the text of an array, with only the setters the pinned 8.3
+	 * PostgreSQL driver implements, never through the connection's createArrayOf.
+	 */
+	@Test
+	public void dataFormatsTest() throws SQLException
+	{
+		Query anyTime = new Query("experiment", "barcode", "label", (Timestamp) null, null, false, true, true, false);
+		Map<Integer, Object> parameters = new HashMap<Integer, Object>();
+		new SnapshotDaoImpl().snapshotTileStatementSetter(anyTime).setValues(statement(parameters));
+
+		Assert.assertEquals(3, parameters.size());
+		Assert.assertEquals("barcode", parameters.get(1));
+		Assert.assertEquals("label", parameters.get(2));
+		Assert.assertEquals("{1,6}", parameters.get(3));
+
+		Query between = new Query("experiment", "", "", new Timestamp(0), new Timestamp(1000), true, false, false, false);
+		parameters.clear();
+		new SnapshotDaoImpl().snapshotTileStatementSetter(between).setValues(statement(parameters));
+
+		Assert.assertEquals(5, parameters.size());
+		Assert.assertEquals("{}", parameters.get(5));
+	}
+
+	/**
+	 * A prepared statement recording its parameters, which fails every other call as the 8.3 driver fails the
+	 * JDBC 4 methods it lacks.
+	 */
+	private static PreparedStatement statement(final Map<Integer, Object> parameters)
+	{
+		InvocationHandler handler = new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws SQLException
+			{
+				String name = method.getName();
+				if (name.equals("setString") || name.equals("setInt") || name.equals("setTimestamp")) {
+					parameters.put((Integer) args[0], args[1]);
+					return null;
+				}
+				throw new SQLException("Method " + name + " is not yet implemented.");
+			}
+		};
+
+		return (PreparedStatement) Proxy.newProxyInstance(
+				PreparedStatement.class.getClassLoader(),
+				new Class<?>[] { PreparedStatement.class },
+				handler);
+	}
+
+	private static Map<String, Object> row(int snapshotId, Integer tileId, Integer dataFormat)
+	{
+		Map<String, Object> row = new HashMap<String, Object>();
+		row.put(SnapshotDaoImpl.SNAPSHOT_ID, snapshotId);
+		row.put(SnapshotDaoImpl.BARCODE, "barcode" + snapshotId);
+		row.put(SnapshotDaoImpl.MEASUREMENT_LABEL, "label");
+		row.put(SnapshotDaoImpl.TIMESTAMP, new Timestamp(snapshotId * 1000L));
+		row.put(SnapshotDaoImpl.COMPLETED, true);
+		row.put(TILE + SnapshotDaoImpl.TILE_ID, tileId);
+		row.put(TILE + SnapshotDaoImpl.CAMERA, tileId == null ? null : "camera" + tileId);
+		row.put(TILE + SnapshotDaoImpl.DATA_FORMAT, dataFormat);
+		return row;
+	}
+
+	/**
+	 * A forward only result set over the supplied rows, reading missing columns as SQL nulls.
+	 */
+	private static ResultSet resultSet(final List<Map<String, Object>> rows)
+	{
+		InvocationHandler handler = new InvocationHandler() {
+			int index = -1;
+			boolean wasNull;
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args)
+			{
+				String name = method.getName();
+				if (name.equals("next"))
+					return ++index < rows.size();
+				if (name.equals("wasNull"))
+					return wasNull;
+
+				Object value = rows.get(index).get(args[0]);
+				wasNull = value == null;
+				Class<?> type = method.getReturnType();
+				if (type == int.class)
+					return value == null ? 0 : ((Number) value).intValue();
+				if (type == float.class)
+					return value == null ? 0f : ((Number) value).floatValue();
+				if (type == boolean.class)
+					return value == null ? false : value;
+				return value;
+			}
+		};
+
+		return (ResultSet) Proxy.newProxyInstance(
+				ResultSet.class.getClassLoader(),
+				new Class<?>[] { ResultSet.class },
+				handler);
+	}
+}
@@ -0,0 +1,73 @@
+package com.ddpsc.phenofront;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import src.ddpsc.database.tagging.TaggingDaoImpl;
+import src.ddpsc.utility.StringOps;
+
+/**
+ * Exercises splitting the IDs tags are loaded for into chunks. Every ID must land in exactly one chunk, including
+ * those past the last full chunk.
+ */
+public class TagChunkTest
+{
+	/**
+	 * Fewer IDs than a chunk holds are one chunk, not none.
+	 */
+	@Test
+	public void partialChunkTest()
+	{
+		List<List<Integer>> chunks = TaggingDaoImpl.chunk(ids(7), 10);
+
+		Assert.assertEquals(1, chunks.size());
+		Assert.assertEquals(7, chunks.get(0).size());
+	}
+
+	/**
+	 * The IDs past the last full chunk get a chunk of their own, and the chunks keep the IDs' order.
+	 */
+	@Test
+	public void remainderTest()
+	{
+		List<Integer> ids = ids(25);
+		List<List<Integer>> chunks = TaggingDaoImpl.chunk(ids, 10);
+
+		Assert.assertEquals(3, chunks.size());
+		Assert.assertEquals(5, chunks.get(2).size());
+
+		List<Integer> joined = new ArrayList<Integer>();
+		for (List<Integer> chunk : chunks)
+			joined.addAll(chunk);
+		Assert.assertEquals(ids, joined);
+	}
+
+	@Test
+	public void exactChunksTest()
+	{
+		List<List<Integer>> chunks = TaggingDaoImpl.chunk(ids(20), 10);
+
+		Assert.assertEquals(2, chunks.size());
+		Assert.assertEquals(10, chunks.get(1).size());
+		Assert.assertEquals(0, TaggingDaoImpl.chunk(ids(0), 10).size());
+	}
+
+	@Test
+	public void placeholdersTest()
+	{
+		Assert.assertEquals("?, ?, ?", StringOps.placeholders(3));
+		Assert.assertEquals("", StringOps.placeholders(0));
+	}
+
+	private static List<Integer> ids(int count)
+	{
+		List<Integer> ids = new ArrayList<Integer>();
+		for (int i = 0; i < count; i++)
+			ids.add(1000 + i);
+		return ids;
+	}
+}
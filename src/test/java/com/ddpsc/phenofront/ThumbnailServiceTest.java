@@ -0,0 +1,65 @@
+package com.ddpsc.phenofront;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import src.ddpsc.results.ThumbnailService;
+
+/**
+ * Exercises thumbnail sizing.
+ */
+public class ThumbnailServiceTest
+{
+	/**
+	 * Requested sizes round up to the next level, and past the largest level to full resolution.
+	 */
+	@Test
+	public void levelTest()
+	{
+		Assert.assertEquals(128, ThumbnailService.level("1"));
+		Assert.assertEquals(128, ThumbnailService.level("128"));
+		Assert.assertEquals(512, ThumbnailService.level("129"));
+		Assert.assertEquals(512, ThumbnailService.level("512"));
+		Assert.assertEquals(ThumbnailService.FULL, ThumbnailService.level("513"));
+		Assert.assertEquals(ThumbnailService.FULL, ThumbnailService.level("full"));
+		
+		String[] invalid = { "0", "-5", "big", "" };
+		for (String size : invalid) {
+			try {
+				ThumbnailService.level(size);
+				Assert.fail("Size '" + size + "' was accepted.");
+			}
+			catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+	
+	/**
+	 * Downscaled images keep their type and aspect ratio, and a flat image stays flat.
+	 */
+	@Test
+	public void downscaleTest()
+	{
+		BufferedImage image = new BufferedImage(2454, 2056, BufferedImage.TYPE_3BYTE_BGR);
+		byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = (byte) (i % 3 == 0 ? 200 : 40);
+		
+		BufferedImage scaled = ThumbnailService.downscale(image, 128);
+		Assert.assertEquals(BufferedImage.TYPE_3BYTE_BGR, scaled.getType());
+		Assert.assertEquals(128, scaled.getWidth());
+		Assert.assertEquals(107, scaled.getHeight());
+		
+		byte[] scaledPixels = ((DataBufferByte) scaled.getRaster().getDataBuffer()).getData();
+		for (int i = 0; i < scaledPixels.length; i++)
+			Assert.assertEquals(i % 3 == 0 ? 200 : 40, scaledPixels[i] & 0xFF);
+		
+		BufferedImage gray = new BufferedImage(100, 50, BufferedImage.TYPE_BYTE_GRAY);
+		Assert.assertSame(gray, ThumbnailService.downscale(gray, 128));
+	}
+}
@@ -0,0 +1,95 @@
+package com.ddpsc.phenofront;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import src.ddpsc.database.snapshot.Snapshot;
+import src.ddpsc.database.tile.Tile;
+import src.ddpsc.utility.IntIndex;
+
+/**
+ * Times attaching tiles to their snapshots as query results grow, by scanning the snapshots for each tile as
+ * TileRowMapper used to, and by looking each tile's snapshot up in an {@link IntIndex} built once per query.
+ *
+ * Not a test, run it by hand: scanning grows with snapshots times tiles, so the scan's time per tile climbs with
+ * the result size while the index's stays flat.
+ *
+ * java com.ddpsc.phenofront.TileAttachmentBenchmark [tiles per snapshot]
+ */
+public class TileAttachmentBenchmark
+{
+	private static final int[] SNAPSHOT_COUNTS = { 500, 1000, 2000, 5000, 10000, 20000 };
+	private static final int ROUNDS = 3;
+
+	public static void main(String[] args)
+	{
+		int tilesPerSnapshot = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+
+		System.out.println("snapshots\ttiles\tscan ms\tindex ms\tscan ns/tile\tindex ns/tile");
+		for (int snapshotCount : SNAPSHOT_COUNTS) {
+			long scanNanos = Long.MAX_VALUE;
+			long indexNanos = Long.MAX_VALUE;
+			int tileCount = snapshotCount * tilesPerSnapshot;
+
+			// Best of a few rounds, the first of which also warms up the JIT
+			for (int round = 0; round < ROUNDS; round++) {
+				scanNanos = Math.min(scanNanos, attach(snapshotCount, tilesPerSnapshot, false));
+				indexNanos = Math.min(indexNanos, attach(snapshotCount, tilesPerSnapshot, true));
+			}
+
+			System.out.println(snapshotCount + "\t" + tileCount
+					+ "\t" + scanNanos / 1000000 + "\t" + indexNanos / 1000000
+					+ "\t" + scanNanos / tileCount + "\t" + indexNanos / tileCount);
+		}
+	}
+
+	/**
+	 * Attaches every tile of a synthetic result to its snapshot, with tiles in a shuffled order as a query without
+	 * ordering returns them.
+	 *
+	 * @return		Time taken, in nanoseconds
+	 */
+	private static long attach(int snapshotCount, int tilesPerSnapshot, boolean useIndex)
+	{
+		List<Snapshot> snapshots = new ArrayList<Snapshot>(snapshotCount);
+		for (int i = 0; i < snapshotCount; i++)
+			snapshots.add(new Snapshot(1000 + i * 3, "experiment", "barcode", "label", "car", new Timestamp(i), 0, 0, -1, true));
+
+		List<Tile> tiles = new ArrayList<Tile>(snapshotCount * tilesPerSnapshot);
+		for (Snapshot snapshot : snapshots)
+			for (int i = 0; i < tilesPerSnapshot; i++)
+				tiles.add(new Tile(snapshot.id, tiles.size(), "camera", 0, 0, 0, 0, 1, 0, 0));
+		Collections.shuffle(tiles, new Random(snapshotCount));
+
+		long start = System.nanoTime();
+		if (useIndex) {
+			IntIndex<Snapshot> index = Snapshot.getSnapshotIdIndex(snapshots);
+			for (Tile tile : tiles) {
+				Snapshot snapshot = index.get(tile.parentSnapshotId);
+				if (snapshot != null)
+					snapshot.addTile(tile);
+			}
+		}
+		else {
+			for (Tile tile : tiles) {
+				int index = indexById(tile.parentSnapshotId, snapshots);
+				if (index != -1)
+					snapshots.get(index).addTile(tile);
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	// How TileRowMapper found each tile's snapshot before the index
+	private static int indexById(int id, List<Snapshot> snapshots)
+	{
+		for (int index = 0; index < snapshots.size(); index++) {
+			if (snapshots.get(index).id == id)
+				return index;
+		}
+		return -1;
+	}
+}
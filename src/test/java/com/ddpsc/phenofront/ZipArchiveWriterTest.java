@@ -0,0 +1,260 @@
+package com.ddpsc.phenofront;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import src.ddpsc.database.tile.TileBlob;
+import src.ddpsc.results.ConvertedImage;
+import src.ddpsc.results.ZipArchiveWriter;
+
+/**
+ * Reads archives written by the zip writer back with java.util.zip, and blobs written by java.util.zip with the
+ * blob reader.
+ */
+public class ZipArchiveWriterTest
+{
+	/**
+	 * Deflated entries spanning many blocks, stored entries and empty entries read back the same, both through the
+	 * central directory and streamed.
+	 */
+	@Test
+	public void roundTripTest() throws IOException
+	{
+		byte[] text = compressibleBytes(5 * ZipArchiveWriter.BLOCK_SIZE + 1234);
+		byte[] image = new byte[300 * 1024];
+		new Random(5).nextBytes(image);
+		
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			for (ExecutorService deflateExecutor : new ExecutorService[] { null, executor }) {
+				ByteArrayOutputStream archive = new ByteArrayOutputStream();
+				ZipArchiveWriter writer = new ZipArchiveWriter(archive, deflateExecutor, 3, 6);
+				
+				OutputStream csv = writer.putDeflatedEntry("SnapshotInfo.csv");
+				csv.write(text, 0, 1000);
+				csv.write(text, 1000, text.length - 1000);
+				csv.close();
+				
+				writer.putStoredEntry("snapshot1/image.png", convertedImage(image));
+				writer.putDeflatedEntry("empty.csv").close();
+				writer.finish();
+				
+				byte[] bytes = archive.toByteArray();
+				assertStreamedEntries(bytes, text, image);
+				assertCentralDirectory(bytes, text, image);
+				
+				Assert.assertEquals(bytes.length, writer.getBytesWritten());
+				Assert.assertTrue(bytes.length < text.length / 2 + image.length + 1024);
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * Names are unique within an archive, as with ZipOutputStream.
+	 */
+	@Test(expected = ZipException.class)
+	public void duplicateEntryTest() throws IOException
+	{
+		ZipArchiveWriter writer = new ZipArchiveWriter(new ByteArrayOutputStream(), null, 1, 6);
+		writer.putStoredEntry("a.png", convertedImage(new byte[10]));
+		writer.putStoredEntry("a.png", convertedImage(new byte[10]));
+	}
+	
+	/**
+	 * Raw frames are copied from blobs without inflating them, whether the blob's data entry is deflated with a data
+	 * descriptor (as ZipOutputStream writes it) or stored.
+	 */
+	@Test
+	public void blobEntryTest() throws IOException
+	{
+		byte[] frame = compressibleBytes(700 * 1024);
+		File deflatedBlob = blob(frame, ZipEntry.DEFLATED);
+		File storedBlob = blob(frame, ZipEntry.STORED);
+		try {
+			ByteArrayOutputStream archive = new ByteArrayOutputStream();
+			ZipArchiveWriter writer = new ZipArchiveWriter(archive, null, 1, 6);
+			
+			TileBlob blob = new TileBlob(deflatedBlob.getPath());
+			Assert.assertEquals(TileBlob.DEFLATED, blob.getMethod());
+			Assert.assertEquals(crc(frame), blob.getCrc());
+			Assert.assertEquals(frame.length, blob.getSize());
+			writer.putBlobEntry("deflated.raw", blob);
+			blob.close();
+			
+			blob = new TileBlob(storedBlob.getPath());
+			Assert.assertEquals(TileBlob.STORED, blob.getMethod());
+			writer.putBlobEntry("stored.raw", blob);
+			blob.close();
+			writer.finish();
+			
+			ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(archive.toByteArray()));
+			Assert.assertEquals("deflated.raw", input.getNextEntry().getName());
+			Assert.assertTrue(Arrays.equals(frame, readAll(input)));
+			Assert.assertEquals("stored.raw", input.getNextEntry().getName());
+			Assert.assertTrue(Arrays.equals(frame, readAll(input)));
+			Assert.assertNull(input.getNextEntry());
+		}
+		finally {
+			deflatedBlob.delete();
+			storedBlob.delete();
+		}
+	}
+	
+	/**
+	 * Blob frames read for conversion are the uncompressed frame, mapped when stored and inflated when deflated.
+	 */
+	@Test
+	public void blobReadDataTest() throws IOException
+	{
+		byte[] frame = compressibleBytes(300 * 1024);
+		for (int method : new int[] { ZipEntry.STORED, ZipEntry.DEFLATED }) {
+			File file = blob(frame, method);
+			try {
+				TileBlob blob = new TileBlob(file.getPath());
+				ByteBuffer data = blob.readData();
+				blob.close();
+				
+				Assert.assertEquals(frame.length, data.remaining());
+				Assert.assertEquals(ByteOrder.LITTLE_ENDIAN, data.order());
+				
+				byte[] read = new byte[frame.length];
+				data.get(read);
+				Assert.assertTrue(Arrays.equals(frame, read));
+			}
+			finally {
+				file.delete();
+			}
+		}
+	}
+	
+	/**
+	 * A blob with some other entry ahead of its data entry.
+	 */
+	private static File blob(byte[] frame, int method) throws IOException
+	{
+		File file = File.createTempFile("blob", "");
+		ZipOutputStream output = new ZipOutputStream(new FileOutputStream(file));
+		output.putNextEntry(new ZipEntry("info"));
+		output.write("camera".getBytes());
+		
+		ZipEntry data = new ZipEntry(TileBlob.DATA_ENTRY);
+		if (method == ZipEntry.STORED) {
+			data.setMethod(ZipEntry.STORED);
+			data.setSize(frame.length);
+			data.setCrc(crc(frame));
+		}
+		output.putNextEntry(data);
+		output.write(frame);
+		output.close();
+		return file;
+	}
+	
+	private static void assertStreamedEntries(byte[] archive, byte[] text, byte[] image) throws IOException
+	{
+		ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(archive));
+		
+		Assert.assertEquals("SnapshotInfo.csv", input.getNextEntry().getName());
+		Assert.assertTrue(Arrays.equals(text, readAll(input)));
+		
+		ZipEntry stored = input.getNextEntry();
+		Assert.assertEquals("snapshot1/image.png", stored.getName());
+		Assert.assertEquals(ZipEntry.STORED, stored.getMethod());
+		Assert.assertTrue(Arrays.equals(image, readAll(input)));
+		
+		Assert.assertEquals("empty.csv", input.getNextEntry().getName());
+		Assert.assertEquals(0, readAll(input).length);
+		
+		Assert.assertNull(input.getNextEntry());
+	}
+	
+	private static void assertCentralDirectory(byte[] archive, byte[] text, byte[] image) throws IOException
+	{
+		File file = File.createTempFile("ZipArchiveWriterTest", ".zip");
+		try {
+			FileOutputStream output = new FileOutputStream(file);
+			output.write(archive);
+			output.close();
+			
+			ZipFile zip = new ZipFile(file);
+			try {
+				Assert.assertEquals(3, zip.size());
+				
+				ZipEntry csv = zip.getEntry("SnapshotInfo.csv");
+				Assert.assertEquals(crc(text), csv.getCrc());
+				Assert.assertEquals(text.length, csv.getSize());
+				Assert.assertTrue(Arrays.equals(text, readAll(zip.getInputStream(csv))));
+				
+				ZipEntry stored = zip.getEntry("snapshot1/image.png");
+				Assert.assertEquals(crc(image), stored.getCrc());
+				Assert.assertTrue(Arrays.equals(image, readAll(zip.getInputStream(stored))));
+			}
+			finally {
+				zip.close();
+			}
+		}
+		finally {
+			file.delete();
+		}
+	}
+	
+	private static ConvertedImage convertedImage(byte[] bytes) throws IOException
+	{
+		ConvertedImage.Output output = new ConvertedImage.Output();
+		output.write(bytes);
+		return output.toConvertedImage();
+	}
+	
+	/**
+	 * CSV-like rows, so blocks compress and reference earlier blocks.
+	 */
+	private static byte[] compressibleBytes(int length)
+	{
+		StringBuilder rows = new StringBuilder(length + 64);
+		Random random = new Random(3);
+		while (rows.length() < length)
+			rows.append(random.nextInt(5000)).append(",VIS SV 0,").append(random.nextInt(360)).append(",plant\n");
+		
+		return rows.substring(0, length).getBytes();
+	}
+	
+	private static long crc(byte[] bytes)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return crc.getValue();
+	}
+	
+	private static byte[] readAll(InputStream input) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = input.read(buffer)) >= 0)
+			bytes.write(buffer, 0, read);
+		return bytes.toByteArray();
+	}
+}